@@ -0,0 +1,164 @@
+package com.ciplogic.statemachine;
+
+import com.ciplogic.statemachine.impl.XyzDataEvent;
+import com.ciplogic.statemachine.impl.XyzJournal;
+import com.ciplogic.statemachine.impl.XyzStateChangeEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for the hot paths of the state machine.
+ *
+ * The state machine is shared between all the benchmark threads, so
+ * running with `-t N` measures N threads contending on the same machine.
+ * Throughput is reported in ops/s, the sample mode gives the latency
+ * percentiles, and `-prof gc` (on by default in the `benchmark` profile)
+ * reports the allocation rate and B/op.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class XyzStateMachineBenchmark {
+    private static final String PAYLOAD = "payload";
+    private static final int BATCH_SIZE = 1000;
+    private static final String[] BATCH = new String[BATCH_SIZE];
+    private static final int JOURNAL_CAPACITY = 16 * 1024 * 1024;
+
+    static {
+        Arrays.fill(BATCH, PAYLOAD);
+    }
+
+    /**
+     * How many listeners of each kind are registered on every state.
+     */
+    @Param({"0", "1", "10", "100"})
+    public int listenerCount;
+
+    private XyzStateMachine stateMachine;
+
+    private Path journalFile;
+    private XyzJournal journal;
+    private XyzStateMachine journaledStateMachine;
+
+    // written by the listeners, so they can't be optimized away.
+    private volatile Object sink;
+    private volatile long longSink;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        stateMachine = new XyzStateMachine(XyzState.DEFAULT);
+
+        journalFile = Files.createTempFile("xyz-journal", ".bin");
+        journal = new XyzJournal(journalFile, JOURNAL_CAPACITY);
+        journaledStateMachine = new XyzStateMachine(XyzState.DEFAULT);
+        journaledStateMachine.setJournal(journal, 1);
+
+        for (XyzState state : XyzState.values()) {
+            for (int i = 0; i < listenerCount; i++) {
+                stateMachine.beforeEnter(state, (XyzStateChangeEvent ev) -> sink = ev);
+                stateMachine.afterEnter(state, (XyzStateChangeEvent ev) -> sink = ev);
+                stateMachine.beforeLeave(state, (XyzStateChangeEvent ev) -> sink = ev);
+                stateMachine.afterLeave(state, (XyzStateChangeEvent ev) -> sink = ev);
+                stateMachine.onData(state, (XyzDataEvent<String> ev) -> {
+                    sink = ev;
+                });
+                stateMachine.onLong(state, (ev, data) -> {
+                    longSink = data;
+                    return null;
+                });
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(2)
+    public XyzState changeState() {
+        stateMachine.changeState(XyzState.RUNNING);
+        return stateMachine.changeState(XyzState.DEFAULT);
+    }
+
+    /**
+     * Transitions appended to a memory-mapped journal. The journal is
+     * compacted every iteration, so it never gets full.
+     */
+    @Benchmark
+    @OperationsPerInvocation(2)
+    public XyzState changeStateJournaled() {
+        journaledStateMachine.changeState(XyzState.RUNNING);
+        return journaledStateMachine.changeState(XyzState.DEFAULT);
+    }
+
+    @Setup(Level.Iteration)
+    public void compactJournal() throws IOException {
+        journal.compact(journal.sequence());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        journal.close();
+        Files.deleteIfExists(journalFile);
+    }
+
+    @Benchmark
+    public XyzState changeStateToSameState() {
+        return stateMachine.changeState(XyzState.DEFAULT);
+    }
+
+    @Benchmark
+    public XyzState sendData() {
+        return stateMachine.sendData(PAYLOAD);
+    }
+
+    @Benchmark
+    public XyzState sendLong() {
+        return stateMachine.sendLong(42L);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public int sendAll() {
+        return stateMachine.sendAll(BATCH).getCount();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(2)
+    public XyzState sendDataWithState() {
+        stateMachine.sendData(XyzState.RUNNING, PAYLOAD);
+        return stateMachine.sendData(XyzState.DEFAULT, PAYLOAD);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(2)
+    public XyzState transition() {
+        stateMachine.transition("run");
+        return stateMachine.changeState(XyzState.DEFAULT);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(2)
+    public XyzState transitionLink() {
+        stateMachine.run();
+        return stateMachine.changeState(XyzState.DEFAULT);
+    }
+}
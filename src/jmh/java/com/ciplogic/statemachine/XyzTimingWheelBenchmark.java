@@ -0,0 +1,79 @@
+package com.ciplogic.statemachine;
+
+import com.ciplogic.statemachine.impl.XyzTimeout;
+import com.ciplogic.statemachine.impl.XyzTimingWheel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks arming and cancelling a timeout, and advancing the time, on
+ * a timing wheel that already holds millions of armed timeouts. Both
+ * should stay flat whatever the number of armed timeouts is.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class XyzTimingWheelBenchmark {
+    private static final Runnable NOTHING = () -> {};
+
+    // ticks of 10ms, so 30s timeouts.
+    private static final long DELAY_TICKS = 3000;
+
+    @Param({"1000", "10000000"})
+    public int armedCount;
+
+    private XyzTimingWheel wheel;
+    private final List<XyzTimeout> expired = new ArrayList<>();
+
+    @Setup
+    public void setUp() {
+        wheel = new XyzTimingWheel();
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        for (int i = 0; i < armedCount; i++) {
+            wheel.schedule(DELAY_TICKS + random.nextInt((int) DELAY_TICKS), NOTHING);
+        }
+    }
+
+    /**
+     * A state entered and left before its timeout expires.
+     */
+    @Benchmark
+    public boolean armAndCancel() {
+        return wheel.schedule(DELAY_TICKS, NOTHING).cancel();
+    }
+
+    /**
+     * One tick, re-arming the timeouts that expired, so the number of
+     * armed timeouts stays the same.
+     */
+    @Benchmark
+    public int advance() {
+        expired.clear();
+        int count = wheel.advance(wheel.getCurrentTick() + 1, expired);
+
+        for (int i = 0; i < count; i++) {
+            wheel.schedule(DELAY_TICKS * 2, NOTHING);
+        }
+
+        return count;
+    }
+}
@@ -0,0 +1,15 @@
+package com.ciplogic.statemachine;
+
+/**
+ * The named transitions of the state machine. Following a link by its
+ * handle is an array lookup, while following it by name compares the
+ * name against every link.
+ */
+public enum XyzLink {
+    //BEGIN_HANDLEBARS
+    //{{#each transitionSet}}
+    //    {{this}},
+    //{{/each}}
+    run,
+    //END_HANDLEBARS
+}
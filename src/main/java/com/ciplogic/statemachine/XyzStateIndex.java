@@ -0,0 +1,65 @@
+package com.ciplogic.statemachine;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps track of which state machines are in each state, so counting the
+ * state machines in a state, or going over them, doesn't need to visit
+ * every state machine.
+ *
+ * The index is updated by the state machines after they commit a
+ * transition, without taking their monitor. State machines join it with
+ * setIndex, and stay in it until they are removed with setIndex(null).
+ */
+public class XyzStateIndex {
+    private static final XyzState[] STATES = XyzState.values();
+
+    private final Set<XyzStateMachine>[] members;
+    private final LongAdder[] counts;
+
+    @SuppressWarnings("unchecked")
+    public XyzStateIndex() {
+        this.members = new Set[STATES.length];
+        this.counts = new LongAdder[STATES.length];
+
+        for (int i = 0; i < STATES.length; i++) {
+            members[i] = ConcurrentHashMap.newKeySet();
+            counts[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @return How many state machines are in the given state.
+     */
+    public long count(XyzState state) {
+        return counts[state.ordinal()].sum();
+    }
+
+    /**
+     * @return A read only view of the state machines in the given state.
+     * Iterating it is weakly consistent: state machines that transition
+     * meanwhile may or may not be seen.
+     */
+    public Set<XyzStateMachine> getStateMachines(XyzState state) {
+        return Collections.unmodifiableSet(members[state.ordinal()]);
+    }
+
+    /**
+     * Called by the state machine, one thread at a time for each state machine.
+     *
+     * @param fromState The state the machine leaves, or `null` if it joins the index.
+     * @param toState The state the machine enters, or `null` if it leaves the index.
+     */
+    void move(XyzStateMachine stateMachine, XyzState fromState, XyzState toState) {
+        if (fromState != null && members[fromState.ordinal()].remove(stateMachine)) {
+            counts[fromState.ordinal()].decrement();
+        }
+
+        if (toState != null && members[toState.ordinal()].add(stateMachine)) {
+            counts[toState.ordinal()].increment();
+        }
+    }
+}
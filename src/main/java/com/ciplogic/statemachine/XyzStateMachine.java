@@ -2,34 +2,124 @@ package com.ciplogic.statemachine;
 
 
 import com.ciplogic.statemachine.impl.XyzStateListenerRegistration;
+import com.ciplogic.statemachine.impl.XyzBulkResult;
+import com.ciplogic.statemachine.impl.XyzBulkTask;
 import com.ciplogic.statemachine.impl.XyzDataListenerRegistration;
 import com.ciplogic.statemachine.impl.XyzDataEvent;
+import com.ciplogic.statemachine.impl.XyzDefaultDiagnostics;
+import com.ciplogic.statemachine.impl.XyzDiagnostics;
+import com.ciplogic.statemachine.impl.XyzDoubleDataListener;
+import com.ciplogic.statemachine.impl.XyzIntDataListener;
+import com.ciplogic.statemachine.impl.XyzJournal;
+import com.ciplogic.statemachine.impl.XyzLongDataListener;
+import com.ciplogic.statemachine.impl.XyzMetrics;
 import com.ciplogic.statemachine.impl.XyzDataListeners;
 import com.ciplogic.statemachine.impl.XyzDataListenersSnapshot;
+import com.ciplogic.statemachine.impl.XyzSendResult;
+import com.ciplogic.statemachine.impl.XyzSerialExecutor;
+import com.ciplogic.statemachine.impl.XyzSnapshotReader;
+import com.ciplogic.statemachine.impl.XyzSnapshotWriter;
 import com.ciplogic.statemachine.impl.XyzStateChangeEvent;
+import com.ciplogic.statemachine.impl.XyzStateChangePublisher;
 import com.ciplogic.statemachine.impl.XyzStateException;
 import com.ciplogic.statemachine.impl.XyzStateListeners;
 import com.ciplogic.statemachine.impl.XyzStateListenersSnapshot;
-
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
+import com.ciplogic.statemachine.impl.XyzStateWaiters;
+import com.ciplogic.statemachine.impl.XyzTransitionOutcome;
+import com.ciplogic.statemachine.impl.XyzTransitionTable;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.LongFunction;
 import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 public class XyzStateMachine {
-    private static Set<Integer> transitionSet = new HashSet<>();
-    private static Map<Integer, Map<String, Integer>> linkMap = new HashMap<>();
+    // the {fromState, toState} pairs, named or not.
+    private static final XyzState[][] TRANSITIONS = {
+        //BEGIN_HANDLEBARS
+        //{{#each transitions}}
+        //        {XyzState.{{startState}}, XyzState.{{endState}}},
+        //{{/each}}
+        {XyzState.DEFAULT, XyzState.RUNNING},
+        {XyzState.DEFAULT, XyzState.STOPPED},
+        {XyzState.RUNNING, XyzState.DEFAULT},
+        {XyzState.RUNNING, XyzState.STOPPED},
+        {XyzState.RUNNING, XyzState.RUNNING},
+        //END_HANDLEBARS
+    };
+
+    private static final XyzTransitionTable transitionTable = new XyzTransitionTable(TRANSITIONS);
+
+    private static final XyzState[] STATES = XyzState.values();
+
+    // the ordinal of the target state, indexed by the ordinals of the
+    // state and of the link, or -1 if the state has no such link.
+    private static final int[][] LINK_TARGETS = new int[STATES.length][XyzLink.values().length];
+
+    private static final AtomicReferenceFieldUpdater<XyzStateMachine, XyzState> currentStateUpdater =
+            AtomicReferenceFieldUpdater.newUpdater(XyzStateMachine.class, XyzState.class, "currentState");
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<XyzStateMachine, XyzStateListeners> listenersUpdater =
+            AtomicReferenceFieldUpdater.newUpdater(XyzStateMachine.class, XyzStateListeners.class, "listeners");
+
+    private static final AtomicReferenceFieldUpdater<XyzStateMachine, XyzDataListeners> dataListenersUpdater =
+            AtomicReferenceFieldUpdater.newUpdater(XyzStateMachine.class, XyzDataListeners.class, "dataListeners");
+
+    private static final AtomicIntegerFieldUpdater<XyzStateMachine> indexingUpdater =
+            AtomicIntegerFieldUpdater.newUpdater(XyzStateMachine.class, "indexing");
+
+    private static final AtomicReferenceFieldUpdater<XyzStateMachine, XyzStateWaiters> waitersUpdater =
+            AtomicReferenceFieldUpdater.newUpdater(XyzStateMachine.class, XyzStateWaiters.class, "waiters");
 
+    private final XyzStateMachineDefinition definition;
     private final XyzState initialState;
     private volatile XyzState currentState;
 
     private volatile XyzStateChangeEvent currentChangeEvent;
 
-    private XyzStateListeners<XyzStateChangeEvent> listeners = new XyzStateListeners<>();
-    private XyzDataListeners dataListeners = new XyzDataListeners();
+    private volatile XyzSerialExecutor afterListenersExecutor;
+
+    private volatile XyzDiagnostics diagnostics;
+
+    private volatile XyzMetrics metrics;
+
+    private volatile XyzJournal journal;
+    private long journalId; // guarded by the monitor
+
+    private volatile XyzStateMachineMailbox mailbox;
+
+    private volatile XyzStateIndex index;
+
+    // 1 while a thread moves this state machine in the index.
+    private volatile int indexing;
+    // the state this state machine has in the index, written holding `indexing`.
+    private volatile XyzState indexedState;
+
+    // created by the first waiter.
+    private volatile XyzStateWaiters waiters;
+
+    private volatile XyzStateChangePublisher<XyzStateChangeEvent> publisher;
+
+    // the listeners of the definition, until the first listener is
+    // registered on this state machine itself.
+    private volatile XyzStateListeners<XyzStateChangeEvent> listeners;
+    private volatile XyzDataListeners dataListeners;
 
     //BEGIN_HANDLEBARS
     //{{#each properties}}
@@ -42,60 +132,96 @@ public class XyzStateMachine {
     //END_HANDLEBARS
 
     static {
+        for (int[] targets : LINK_TARGETS) {
+            Arrays.fill(targets, -1);
+        }
+
         //BEGIN_HANDLEBARS
         //{{#each transitions}}
-        //        XyzStateMachine.registerTransition("{{name}}", XyzState.{{startState}}, XyzState.{{endState}});
+        //{{#if name}}
+        //        registerLink(XyzState.{{startState}}, XyzLink.{{name}}, XyzState.{{endState}});
+        //{{/if}}
         //{{/each}}
-        XyzStateMachine.registerTransition("run", XyzState.DEFAULT, XyzState.RUNNING);
-        XyzStateMachine.registerTransition(null, XyzState.DEFAULT, XyzState.STOPPED);
-        XyzStateMachine.registerTransition(null, XyzState.RUNNING, XyzState.DEFAULT);
-        XyzStateMachine.registerTransition(null, XyzState.RUNNING, XyzState.STOPPED);
-        XyzStateMachine.registerTransition(null, XyzState.RUNNING, XyzState.RUNNING);
+        registerLink(XyzState.DEFAULT, XyzLink.run, XyzState.RUNNING);
         //END_HANDLEBARS
     }
 
     public XyzStateMachine() {
-        this(XyzState.values()[0]);
+        this(STATES[0]);
     }
 
     public XyzStateMachine(XyzState initialState) {
+        this(XyzStateMachineDefinition.EMPTY, initialState);
+    }
+
+    /**
+     * Creates a state machine that shares the listeners of the definition.
+     * Use XyzStateMachineDefinition.newStateMachine.
+     */
+    XyzStateMachine(XyzStateMachineDefinition definition, XyzState initialState) {
         if (initialState == null) {
             throw new IllegalArgumentException("Can not start state machine. Initial state is null.");
         }
 
+        this.definition = definition;
+
         // initial state
         this.initialState = initialState;
+
+        this.listeners = definition.getListeners();
+        this.dataListeners = definition.getDataListeners();
+        this.diagnostics = definition.getDiagnostics();
+        this.metrics = definition.getMetrics();
     }
 
     //BEGIN_HANDLEBARS
     //{{#each transitionSet}}
     //    public XyzState {{this}}() {
-    //        return this.transition("{{this}}");
+    //        return this.transition(XyzLink.{{this}}, null);
     //    }
     //
     //    public XyzState {{this}}(Object data) {
-    //        return this.transition("{{this}}", data);
+    //        return this.transition(XyzLink.{{this}}, data);
     //    }
     //
     //{{/each}}
     public XyzState run() {
-        return this.transition("run");
+        return this.transition(XyzLink.run, null);
     }
 
     public XyzState run(Object data) {
-        return this.transition("run", data);
+        return this.transition(XyzLink.run, data);
     }
     //END_HANDLEBARS
 
-    private static void registerTransition(String connectionName, XyzState fromState, XyzState toState) {
-        transitionSet.add(fromState.ordinal() << 14 | toState.ordinal());
+    private static void registerLink(XyzState fromState, XyzLink link, XyzState toState) {
+        int[] targets = LINK_TARGETS[fromState.ordinal()];
 
-        if (connectionName == null) {
-            return;
+        // as with the names, the first link wins.
+        if (targets[link.ordinal()] < 0) {
+            targets[link.ordinal()] = toState.ordinal();
         }
+    }
 
-        linkMap.computeIfAbsent(fromState.ordinal(), x -> new HashMap<>())
-            .computeIfAbsent(connectionName, x -> toState.ordinal());
+    /**
+     * Checks if a transition is defined between the two states. The
+     * transitions are fixed when the class is loaded, so this doesn't
+     * need any locking.
+     *
+     * @param fromState The state where the transition starts.
+     * @param toState The state where the transition ends.
+     * @return true if the state machine can go from `fromState` into `toState`.
+     */
+    public static boolean canTransition(XyzState fromState, XyzState toState) {
+        return transitionTable.canTransition(fromState, toState);
+    }
+
+    /**
+     * @param state The state where the transitions start.
+     * @return An unmodifiable set with the states that can be reached from the given state.
+     */
+    public static Set<XyzState> allowedTargets(XyzState state) {
+        return transitionTable.allowedTargets(state);
     }
 
     /**
@@ -125,6 +251,10 @@ public class XyzStateMachine {
      * A transition must exist from the current state to the target state. If
      * no such transition exists, the current state will be returned.
      *
+     * If another thread changes the state while the `before` listeners run,
+     * the transition is checked again from the new state, and the `before`
+     * listeners of that transition are called again, if any.
+     *
      * @param targetState The desired state we want the state machine to transition.
      * @param data The data to pass into the change state event.
      * @return The current state where the machine was transitioned,
@@ -134,62 +264,495 @@ public class XyzStateMachine {
         // the state machine was not initialized yet.
         ensureStateMachineInitialized();
 
-        return changeStateImpl(targetState, data);
+        return changeStateImpl(targetState, data, null);
     }
 
-    private XyzState changeStateImpl(XyzState targetState, Object data) {
+    /**
+     * @param outcome Gets what the transition did, for the bulk
+     *                transitions, or `null`.
+     */
+    private XyzState changeStateImpl(XyzState targetState, Object data, XyzTransitionOutcome[] outcome) {
         if (targetState == null) {
             throw new NullPointerException("targetState is null. Can not changeState.");
         }
 
-        // since the listeners are synchronized themselves, we can copy there before, so we don't do
-        // that in the lock.
-        XyzStateChangeEvent stateChangeEvent = new XyzStateChangeEvent(currentState, targetState, data);
-        XyzStateListenersSnapshot<XyzStateChangeEvent> beforeListenersCopy = listeners.copyBefore(stateChangeEvent);
-        XyzStateListenersSnapshot<XyzStateChangeEvent> afterListenersCopy = listeners.copyAfter(stateChangeEvent);
+        for (;;) {
+            // no-op and invalid transitions are answered without taking the lock
+            // or allocating anything.
+            XyzState previousState = currentState;
 
-        // don't fire a new event, since this might change
-        synchronized (this) {
-            if (currentState == targetState) {
-                return currentState;
+            if (previousState == targetState) {
+                setOutcome(outcome, XyzTransitionOutcome.NO_OP);
+                return previousState;
             }
 
-            if (currentState != null && // if the currentState == null, we're initializing
-                !transitionSet.contains(currentState.ordinal() << 14 | targetState.ordinal())) {
-                System.err.println(String.format(
-                        "No transition exists between %s -> %s.",
-                        currentState.name(),
-                        targetState.name()
-                ));
+            if (previousState != null && // if the currentState == null, we're initializing
+                !transitionTable.canTransition(previousState, targetState)) {
+                setOutcome(outcome, XyzTransitionOutcome.REJECTED);
+                return rejectTransition(previousState, targetState);
+            }
+
+            // if nobody listens on this transition, nobody can cancel it either,
+            // so the state is just swapped. If another thread changed the state
+            // meanwhile, everything is checked again against the new state.
+            // Journaled and published transitions are appended in commit order,
+            // so they always take the monitor (see setJournal and getPublisher).
+            if (currentChangeEvent == null &&
+                journal == null &&
+                publisher == null &&
+                !listeners.isListening(previousState, targetState)) {
+                if (currentStateUpdater.compareAndSet(this, previousState, targetState)) {
+                    updateIndex();
+
+                    XyzMetrics currentMetrics = metrics;
+
+                    if (currentMetrics != null) {
+                        currentMetrics.transitionCommitted(previousState, targetState);
+                    }
+
+                    // a transition racing with getPublisher is not published,
+                    // as if it committed before the publisher existed.
+                    notifyWaiters(previousState, targetState, data);
+                    setOutcome(outcome, XyzTransitionOutcome.CHANGED);
+
+                    return targetState;
+                }
+
+                continue;
+            }
+
+            XyzState newState;
+
+            synchronized (this) {
+                if (currentState != previousState) {
+                    continue;
+                }
+
+                newState = changeStateLocked(previousState, targetState, data, outcome);
+            }
+
+            if (newState != null) {
+                awaitPublisher();
+
+                return newState;
+            }
+        }
+    }
 
+    /**
+     * Runs the transition while holding the monitor, notifying the listeners.
+     * The state is still committed with a compare and set, since lock-free
+     * transitions don't take the monitor.
+     *
+     * @return The new current state, or `null` if a lock-free transition
+     * changed the state before the commit, so the transition must be checked
+     * again from the new state.
+     */
+    private XyzState changeStateLocked(XyzState previousState,
+                                       XyzState targetState,
+                                       Object data,
+                                       XyzTransitionOutcome[] outcome) {
+        XyzMetrics currentMetrics = metrics;
+
+        if (currentChangeEvent != null) {
+            XyzStateMachineMailbox currentMailbox = mailbox;
+
+            // run-to-completion: the nested transition runs after the current command.
+            if (currentMailbox != null && currentMailbox.isRunningCommand()) {
+                currentMailbox.changeState(targetState, data);
+                // nothing changed yet, the transition is only queued.
+                setOutcome(outcome, XyzTransitionOutcome.NO_OP);
                 return currentState;
             }
 
-            if (currentChangeEvent != null) {
-                throw new XyzStateException(String.format(
-                        "The XyzStateMachine is already in a changeState (%s -> %s). " +
-                        "Transitioning the state machine (%s -> %s) in `before` events is not supported.",
-                        currentChangeEvent.getPreviousState(),
-                        currentChangeEvent.getTargetState(),
-                        currentState,
-                        targetState
-                ));
+            if (currentMetrics != null) {
+                currentMetrics.reentrancyError();
+            }
+
+            throw new XyzStateException(String.format(
+                    "The XyzStateMachine is already in a changeState (%s -> %s). " +
+                    "Transitioning the state machine (%s -> %s) in `before` events is not supported.",
+                    currentChangeEvent.getPreviousState(),
+                    currentChangeEvent.getTargetState(),
+                    previousState,
+                    targetState
+            ));
+        }
+
+        XyzStateListenersSnapshot<XyzStateChangeEvent> beforeListenersCopy = listeners.copyBefore(previousState, targetState);
+        XyzStateListenersSnapshot<XyzStateChangeEvent> afterListenersCopy = listeners.copyAfter(previousState, targetState);
+
+        // the listeners might have been detached in the meantime.
+        if (beforeListenersCopy.isEmpty() && afterListenersCopy.isEmpty()) {
+            if (!commit(previousState, targetState, data)) {
+                return null;
+            }
+
+            if (currentMetrics != null) {
+                currentMetrics.transitionCommitted(previousState, targetState);
             }
 
+            notifyCommitted(previousState, targetState, data, null);
+            setOutcome(outcome, XyzTransitionOutcome.CHANGED);
+
+            return currentState;
+        }
+
+        XyzStateChangeEvent stateChangeEvent = new XyzStateChangeEvent(previousState, targetState, data);
+
+        if (!beforeListenersCopy.isEmpty()) {
             currentChangeEvent = stateChangeEvent;
-            stateChangeEvent = beforeListenersCopy.notifyTransition(stateChangeEvent);
+
+            try {
+                beforeListenersCopy.notifyTransition(stateChangeEvent, diagnostics, currentMetrics);
+            } finally {
+                currentChangeEvent = null;
+            }
 
             if (stateChangeEvent.isCancelled()) {
+                if (currentMetrics != null) {
+                    currentMetrics.transitionCancelled(previousState, targetState);
+                }
+
+                setOutcome(outcome, XyzTransitionOutcome.CANCELLED);
                 return currentState; // state not changed.
             }
+        }
+
+        // a lock-free transition that started before the `before` listeners
+        // moved the state away. The listeners approved leaving a state the
+        // machine is not in anymore, so the transition is retried.
+        if (!commit(previousState, targetState, data)) {
+            if (currentMetrics != null) {
+                currentMetrics.transitionRetried();
+            }
+
+            return null;
+        }
+
+        if (currentMetrics != null) {
+            currentMetrics.transitionCommitted(previousState, targetState);
+        }
+
+        setOutcome(outcome, XyzTransitionOutcome.CHANGED);
 
-            this.currentState = targetState;
-            this.currentChangeEvent = null;
+        XyzSerialExecutor executor = afterListenersExecutor;
 
-            afterListenersCopy.notifyTransition(stateChangeEvent);
+        if (executor != null) {
+            // queued while still holding the lock, so the events keep the commit order.
+            XyzStateChangeEvent committedEvent = stateChangeEvent;
+            XyzDiagnostics currentDiagnostics = diagnostics;
+            executor.execute(() -> {
+                try {
+                    afterListenersCopy.notifyTransition(committedEvent, currentDiagnostics, currentMetrics);
+                } catch (RuntimeException e) {
+                    // not thrown back to anyone, the transition is already done.
+                    currentDiagnostics.listenerFailed(e);
+                }
+            });
+            notifyCommitted(previousState, targetState, data, stateChangeEvent);
 
             return this.currentState;
         }
+
+        // before the `after` listeners, so a transition nested in them is
+        // published after this one.
+        notifyCommitted(previousState, targetState, data, stateChangeEvent);
+        afterListenersCopy.notifyTransition(stateChangeEvent, diagnostics, currentMetrics);
+
+        return this.currentState;
+    }
+
+    /**
+     * Buffers the state change for the subscribers of the publisher,
+     * without waiting for them, then completes the waiters of the entered
+     * state. This runs holding the monitor, right after the commit, so the
+     * state changes are published in commit order, and the waiters can
+     * change the state again.
+     *
+     * @param stateChangeEvent The event of the transition, or `null` if
+     *                         none was created yet.
+     */
+    private void notifyCommitted(XyzState previousState,
+                                 XyzState targetState,
+                                 Object data,
+                                 XyzStateChangeEvent stateChangeEvent) {
+        XyzStateChangePublisher<XyzStateChangeEvent> currentPublisher = publisher;
+
+        if (currentPublisher != null) {
+            currentPublisher.offer(stateChangeEvent != null ?
+                    stateChangeEvent :
+                    new XyzStateChangeEvent(previousState, targetState, data));
+        }
+
+        notifyWaiters(previousState, targetState, data);
+    }
+
+    private void notifyWaiters(XyzState previousState, XyzState targetState, Object data) {
+        XyzStateWaiters currentWaiters = waiters;
+
+        if (currentWaiters != null) {
+            currentWaiters.entered(previousState, targetState, data);
+        }
+    }
+
+    /**
+     * Reports the outcome of a bulk transition, shared with the fleet.
+     */
+    static void setOutcome(XyzTransitionOutcome[] outcome, XyzTransitionOutcome value) {
+        if (outcome != null) {
+            outcome[0] = value;
+        }
+    }
+
+    /**
+     * Waits for the subscribers that block when their buffer is full, once
+     * the monitor is released. A transition nested in an `after` listener
+     * still holds the monitor of the outer one, so the outer one waits.
+     */
+    private void awaitPublisher() {
+        XyzStateChangePublisher<XyzStateChangeEvent> currentPublisher = publisher;
+
+        if (currentPublisher != null && !Thread.holdsLock(this)) {
+            currentPublisher.awaitCapacity();
+        }
+    }
+
+    /**
+     * Commits the new state, holding the monitor.
+     * @return false if a lock-free transition changed the state meanwhile.
+     */
+    private boolean commit(XyzState previousState, XyzState targetState, Object data) {
+        XyzJournal currentJournal = journal;
+
+        if (currentJournal == null) {
+            if (!currentStateUpdater.compareAndSet(this, previousState, targetState)) {
+                return false;
+            }
+
+            updateIndex();
+
+            return true;
+        }
+
+        // while journaling, the state is only changed holding the monitor, so
+        // the transition is journaled first, and a full journal fails it.
+        if (currentState != previousState) {
+            return false;
+        }
+
+        currentJournal.append(journalId, previousState, targetState, data);
+        currentState = targetState;
+        updateIndex();
+
+        return true;
+    }
+
+    /**
+     * Moves this state machine in the index into its current state, after
+     * the state was committed, on the lock-free path too. The moves are
+     * done by one thread at a time. A thread that finds another one moving
+     * leaves the work to it, so transitions never wait for each other. In
+     * a burst of transitions the index may skip the intermediate states,
+     * but it always ends up in the latest one.
+     */
+    private void updateIndex() {
+        if (index == null) {
+            return;
+        }
+
+        do {
+            if (!indexingUpdater.compareAndSet(this, 0, 1)) {
+                return; // the moving thread checks the state again when it's done.
+            }
+
+            try {
+                XyzStateIndex currentIndex = index;
+                XyzState state;
+
+                while (currentIndex != null && (state = currentState) != indexedState) {
+                    currentIndex.move(this, indexedState, state);
+                    indexedState = state;
+                }
+            } finally {
+                indexing = 0;
+            }
+
+            // a transition committed after the last check, whose thread
+            // found the flag still taken.
+        } while (index != null && currentState != indexedState);
+    }
+
+    /**
+     * Always called outside the lock, so the diagnostics don't hold up
+     * the other threads.
+     */
+    private XyzState rejectTransition(XyzState previousState, XyzState targetState) {
+        XyzMetrics currentMetrics = metrics;
+
+        if (currentMetrics != null) {
+            currentMetrics.transitionRejected(previousState, targetState);
+        }
+
+        diagnostics.invalidTransition(previousState, targetState);
+
+        return previousState;
+    }
+
+    /**
+     * Dispatches the `afterEnter` and `afterLeave` listeners on the given
+     * executor, instead of calling them inside changeState. changeState
+     * returns as soon as the new state is committed. The listeners of a
+     * state machine are still called one at a time, in the order the
+     * transitions were committed, whatever the executor is (e.g. a
+     * thread pool, or a virtual thread per task executor).
+     *
+     * This should be set before the state machine is used.
+     *
+     * @param executor The executor that runs the `after` listeners, or
+     *                 `null` to call them synchronously (the default).
+     */
+    public void setAfterListenersExecutor(Executor executor) {
+        this.afterListenersExecutor = executor == null ? null : new XyzSerialExecutor(executor);
+    }
+
+    /**
+     * Sets where the invalid transitions and the failing listeners are
+     * reported, together with the subscribers of the publisher whose
+     * onError fails too. By default they are counted, and at most one per
+     * second gets written to System.err.
+     *
+     * @param diagnostics The diagnostics sink, or `null` for the default one.
+     */
+    public synchronized void setDiagnostics(XyzDiagnostics diagnostics) {
+        this.diagnostics = diagnostics == null ? XyzDefaultDiagnostics.getInstance() : diagnostics;
+
+        if (publisher != null) {
+            publisher.setDiagnostics(this.diagnostics);
+        }
+    }
+
+    /**
+     * Records what happens in this state machine into the given metrics.
+     * The same metrics can be shared by many state machines, and exposed
+     * over JMX with XyzMetrics.registerMBean.
+     *
+     * @param metrics The metrics, or `null` to stop recording (the default).
+     */
+    public void setMetrics(XyzMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Appends every committed transition of this state machine to the
+     * journal. While journaling, all the transitions take the lock, so the
+     * journal has them in commit order: appending after a lock-free
+     * compare and set could journal two racing transitions in the reverse
+     * order, and replay the wrong state.
+     *
+     * This costs the lock-free path: a journaled transition takes the
+     * monitor even if nobody listens, so it is a few times slower than an
+     * unjournaled one, and threads changing the same state machine
+     * serialize on it. Different state machines sharing the journal only
+     * contend on the journal itself, which appends without locking.
+     *
+     * This should be set before the state machine is used.
+     *
+     * @param journal The journal, or `null` to stop journaling (the default).
+     * @param id The id of this state machine in the journal records.
+     */
+    public synchronized void setJournal(XyzJournal journal, long id) {
+        this.journal = journal;
+        this.journalId = id;
+    }
+
+    /**
+     * Adds this state machine to the index, that keeps track of the state
+     * machines in each state. The index is updated after each commit,
+     * lock-free transitions included.
+     *
+     * This should be set before the state machine is used.
+     *
+     * @param index The index, or `null` to leave the current index (the default).
+     */
+    public synchronized void setIndex(XyzStateIndex index) {
+        // waits for a move in progress, this is not on the transition path.
+        while (!indexingUpdater.compareAndSet(this, 0, 1)) {
+            Thread.yield();
+        }
+
+        try {
+            XyzStateIndex previousIndex = this.index;
+
+            if (previousIndex != null) {
+                previousIndex.move(this, indexedState, null);
+            }
+
+            this.index = index;
+            this.indexedState = null;
+        } finally {
+            indexing = 0;
+        }
+
+        // a state machine that is not initialized joins on its first transition.
+        updateIndex();
+    }
+
+    /**
+     * Gets the publisher of the state changes of this state machine,
+     * creating it on the first call. Unlike the `after` listeners, the
+     * subscribers are called on their own executor, with their own
+     * buffer, so a slow subscriber only slows down the transitions if
+     * it subscribed with the BLOCK overflow policy.
+     *
+     * The state changes are published from the commit itself, holding the
+     * monitor, so the subscribers get them in commit order, nested
+     * transitions included. As with a journal, once the publisher exists
+     * the transitions nobody listens on take the monitor too, instead of
+     * the lock-free path. With a BLOCK subscriber whose buffer is full,
+     * changeState waits after releasing the monitor, so the other threads
+     * can still use the state machine.
+     */
+    public synchronized XyzStateChangePublisher<XyzStateChangeEvent> getPublisher() {
+        if (publisher == null) {
+            XyzStateChangePublisher<XyzStateChangeEvent> result = new XyzStateChangePublisher<>();
+            result.setDiagnostics(diagnostics);
+            publisher = result;
+        }
+
+        return publisher;
+    }
+
+    /**
+     * Restores the states of the state machines from the journal. Each
+     * state machine gets the state of its last record, directly, without
+     * notifying any listeners.
+     *
+     * @param journal The journal to replay.
+     * @param stateMachines Gets the state machine for an id, or `null` to
+     *                      skip the records of that id.
+     * @return How many records were replayed.
+     */
+    public static int replayJournal(XyzJournal journal, LongFunction<XyzStateMachine> stateMachines) {
+        return journal.replay((id, fromState, toState, timestamp, dataReference) -> {
+            XyzStateMachine stateMachine = stateMachines.apply(id);
+
+            if (stateMachine != null) {
+                stateMachine.restoreState(toState);
+            }
+        });
+    }
+
+    /**
+     * Called by the XyzStateMachineMailbox created for this state machine.
+     */
+    void setMailbox(XyzStateMachineMailbox mailbox) {
+        this.mailbox = mailbox;
+    }
+
+    private synchronized void restoreState(XyzState state) {
+        this.currentState = state;
+        updateIndex();
     }
 
     public XyzState getState() {
@@ -198,75 +761,146 @@ public class XyzStateMachine {
         return this.currentState;
     }
 
+    /**
+     * Gets a future that completes the next time the state machine enters
+     * the state, without polling. If the state machine already is in the
+     * state, the future is already completed, with an event from the state
+     * into itself.
+     *
+     * Dependent actions that don't use an executor run in the thread that
+     * changed the state, like the `after` listeners. A future that is
+     * cancelled stops waiting, and is dropped from the state machine.
+     */
+    public CompletableFuture<XyzStateChangeEvent> whenEnters(XyzState state) {
+        if (state == null) {
+            throw new NullPointerException("state is null. Can not wait for it.");
+        }
+
+        XyzState current = getState();
+
+        if (current == state) {
+            return CompletableFuture.completedFuture(new XyzStateChangeEvent(state, state, null));
+        }
+
+        CompletableFuture<XyzStateChangeEvent> future = waiters().add(state);
+
+        // the state might have been entered before the waiter was added.
+        if (currentState == state) {
+            future.complete(new XyzStateChangeEvent(current, state, null));
+        }
+
+        return future;
+    }
+
+    /**
+     * Blocks until the state machine is in the state, or the timeout passes.
+     *
+     * @return false if the timeout passed first.
+     */
+    public boolean awaitState(XyzState state, long timeout, TimeUnit unit) throws InterruptedException {
+        CompletableFuture<XyzStateChangeEvent> future = whenEnters(state);
+
+        try {
+            future.get(timeout, unit);
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        } catch (ExecutionException e) {
+            throw new XyzStateException(e.getCause());
+        } finally {
+            // drops the waiter on a timeout or an interrupt.
+            future.cancel(false);
+        }
+    }
+
+    /**
+     * Gets how many futures from whenEnters or awaitState still wait for
+     * the state machine to enter the state.
+     */
+    public int getWaiterCount(XyzState state) {
+        XyzStateWaiters currentWaiters = waiters;
+
+        return currentWaiters == null ? 0 : currentWaiters.size(state);
+    }
+
+    private XyzStateWaiters waiters() {
+        XyzStateWaiters result = waiters;
+
+        if (result != null) {
+            return result;
+        }
+
+        waitersUpdater.compareAndSet(this, null, new XyzStateWaiters());
+
+        return waiters;
+    }
+
     public XyzStateListenerRegistration<XyzStateChangeEvent> beforeEnter(XyzState state,
                                                                          Consumer<XyzStateChangeEvent> callback) {
-        return listeners.beforeEnter(state, callback);
+        return ownListeners().beforeEnter(state, callback);
     }
 
     public XyzStateListenerRegistration<XyzStateChangeEvent> afterEnter(XyzState state,
                                                                         Consumer<XyzStateChangeEvent> callback) {
-        return listeners.afterEnter(state, callback);
+        return ownListeners().afterEnter(state, callback);
     }
 
     public XyzStateListenerRegistration<XyzStateChangeEvent> afterLeave(XyzState state,
                                                                         Consumer<XyzStateChangeEvent> callback) {
-        return listeners.afterLeave(state, callback);
+        return ownListeners().afterLeave(state, callback);
     }
 
     public XyzStateListenerRegistration<XyzStateChangeEvent> beforeLeave(XyzState state,
                                                                          Consumer<XyzStateChangeEvent> callback) {
-        return listeners.beforeLeave(state, callback);
+        return ownListeners().beforeLeave(state, callback);
     }
 
     public XyzStateListenerRegistration<XyzStateChangeEvent> beforeEnter(XyzState state,
                                                                          Runnable callback) {
-        return listeners.beforeEnter(state, (ev) -> callback.run());
+        return ownListeners().beforeEnter(state, (ev) -> callback.run());
     }
 
     public XyzStateListenerRegistration<XyzStateChangeEvent> afterEnter(XyzState state,
                                                                         Runnable callback) {
-        return listeners.afterEnter(state, (ev) -> callback.run());
+        return ownListeners().afterEnter(state, (ev) -> callback.run());
     }
 
     public XyzStateListenerRegistration<XyzStateChangeEvent> afterLeave(XyzState state,
                                                                         Runnable callback) {
-        return listeners.afterLeave(state, (ev) -> callback.run());
+        return ownListeners().afterLeave(state, (ev) -> callback.run());
     }
 
     public XyzStateListenerRegistration<XyzStateChangeEvent> beforeLeave(XyzState state,
                                                                          Runnable callback) {
-        return listeners.beforeLeave(state, (ev) -> callback.run());
+        return ownListeners().beforeLeave(state, (ev) -> callback.run());
     }
 
+    /**
+     * Process data only if the data is of the specified type. Listeners
+     * that don't match the type of the data are not called at all.
+     * @param state
+     * @param clazz
+     * @param callback
+     * @param <T>
+     * @return
+     */
     public <T> XyzDataListenerRegistration<T> onData(XyzState state,
                                                      Class<? extends T> clazz,
                                                      Consumer<XyzDataEvent<T>> callback) {
-        return this.onData(state, dataEvent -> {
-			if (dataEvent.getData() == null) {
-				return;
-			}
-
-			if (! clazz.isAssignableFrom(dataEvent.getData().getClass())) {
-				return;
-			}
+        Function<XyzDataEvent<T>, XyzState> function = dataEvent -> {
+            callback.accept(dataEvent);
+            return null;
+        };
 
-			callback.accept(dataEvent);
-		});
+        return ownDataListeners().onData(state, clazz, function);
     }
 
     public <T> XyzDataListenerRegistration<T> onData(XyzState state,
                                                      Class<? extends T> clazz,
                                                      Runnable callback) {
-        return this.onData(state, dataEvent -> {
-            if (dataEvent.getData() == null) {
-                return;
-            }
-
-            if (! clazz.isAssignableFrom(dataEvent.getData().getClass())) {
-                return;
-            }
-
+        return ownDataListeners().onData(state, clazz, dataEvent -> {
             callback.run();
+            return null;
         });
     }
 
@@ -281,17 +915,7 @@ public class XyzStateMachine {
     public <T> XyzDataListenerRegistration<T> onData(XyzState state,
                                                      Class<? extends T> clazz,
                                                      Function<XyzDataEvent<T>, XyzState> callback) {
-        return this.onData(state, dataEvent -> {
-			if (dataEvent.getData() == null) {
-				return null;
-			}
-
-			if (! clazz.isAssignableFrom(dataEvent.getData().getClass())) {
-				return null;
-			}
-
-			return callback.apply(dataEvent);
-		});
+        return ownDataListeners().onData(state, clazz, callback);
     }
 
     /**
@@ -305,17 +929,7 @@ public class XyzStateMachine {
     public <T> XyzDataListenerRegistration<T> onData(XyzState state,
                                                      Class<? extends T> clazz,
                                                      Supplier<XyzState> callback) {
-        return this.onData(state, dataEvent -> {
-            if (dataEvent.getData() == null) {
-                return null;
-            }
-
-            if (! clazz.isAssignableFrom(dataEvent.getData().getClass())) {
-                return null;
-            }
-
-            return callback.get();
-        });
+        return ownDataListeners().onData(state, clazz, dataEvent -> callback.get());
     }
 
     public <T> XyzDataListenerRegistration<T> onData(XyzState state, Runnable callback) {
@@ -332,11 +946,27 @@ public class XyzStateMachine {
 
 
     public <T> XyzDataListenerRegistration<T> onData(XyzState state, Consumer<XyzDataEvent<T>> callback) {
-        return dataListeners.onData(state, callback);
+        return ownDataListeners().onData(state, callback);
     }
 
     public <T> XyzDataListenerRegistration<T> onData(XyzState state, Function<XyzDataEvent<T>, XyzState> callback) {
-        return dataListeners.onData(state, callback);
+        return ownDataListeners().onData(state, callback);
+    }
+
+    /**
+     * Process long data, without boxing it when it's sent with sendLong.
+     * Data sent as a Long object is unboxed.
+     */
+    public XyzDataListenerRegistration<Long> onLong(XyzState state, XyzLongDataListener callback) {
+        return ownDataListeners().onLong(state, callback);
+    }
+
+    public XyzDataListenerRegistration<Integer> onInt(XyzState state, XyzIntDataListener callback) {
+        return ownDataListeners().onInt(state, callback);
+    }
+
+    public XyzDataListenerRegistration<Double> onDouble(XyzState state, XyzDoubleDataListener callback) {
+        return ownDataListeners().onDouble(state, callback);
     }
 
     /**
@@ -380,8 +1010,52 @@ public class XyzStateMachine {
     public <T> XyzState sendData(T data) {
         ensureStateMachineInitialized();
 
-        XyzDataListenersSnapshot listeners = dataListeners.copy(currentState);
-        XyzState newState = listeners.notifyData(data);
+        XyzState state = currentState;
+        XyzMetrics currentMetrics = metrics;
+
+        if (currentMetrics != null) {
+            currentMetrics.dataSent(state);
+        }
+
+        XyzDataListenersSnapshot listeners = dataListeners.copy(state);
+        XyzState newState = listeners.notifyData(data, currentMetrics);
+
+        if (newState != null) {
+            return changeState(newState);
+        }
+
+        return currentState;
+    }
+
+    /**
+     * Sends a long into the state machine, as sendData(Long) would, but
+     * without boxing it for the primitive listeners, and reusing the data
+     * event of the current thread, so listeners must not keep a reference
+     * to the event.
+     */
+    public XyzState sendLong(long data) {
+        return sendPrimitive(Long.class, data, 0);
+    }
+
+    public XyzState sendInt(int data) {
+        return sendPrimitive(Integer.class, data, 0);
+    }
+
+    public XyzState sendDouble(double data) {
+        return sendPrimitive(Double.class, 0, data);
+    }
+
+    private XyzState sendPrimitive(Class<?> type, long longValue, double doubleValue) {
+        ensureStateMachineInitialized();
+
+        XyzState state = currentState;
+        XyzMetrics currentMetrics = metrics;
+
+        if (currentMetrics != null) {
+            currentMetrics.dataSent(state);
+        }
+
+        XyzState newState = dataListeners.copy(state).notifyPrimitive(type, longValue, doubleValue, currentMetrics);
 
         if (newState != null) {
             return changeState(newState);
@@ -390,9 +1064,95 @@ public class XyzStateMachine {
         return currentState;
     }
 
+    /**
+     * Sends all the data items into the state machine, one after the other,
+     * as sendData(T) would. The listeners of the current state are looked up
+     * again only when the state changes, and the same data event is reused
+     * for all the items, so listeners must not keep a reference to it.
+     *
+     * @param items The data to send.
+     * @param <T>
+     * @return A summary of the batch.
+     */
+    public <T> XyzSendResult sendAll(Iterable<? extends T> items) {
+        ensureStateMachineInitialized();
+
+        XyzDataEvent<T> dataEvent = new XyzDataEvent<>(null);
+        XyzMetrics currentMetrics = metrics;
+
+        XyzState listenersState = currentState;
+        XyzDataListenersSnapshot<T> listeners = dataListeners.copy(listenersState);
+
+        int count = 0;
+        int transitions = 0;
+
+        for (T item : items) {
+            XyzState state = currentState;
+
+            if (state != listenersState) {
+                listenersState = state;
+                listeners = dataListeners.copy(state);
+            }
+
+            if (currentMetrics != null) {
+                currentMetrics.dataSent(state);
+            }
+
+            count++;
+            XyzState newState = listeners.notifyData(item, dataEvent, currentMetrics);
+
+            if (newState != null && changeState(newState) != state) {
+                transitions++;
+            }
+        }
+
+        return new XyzSendResult(count, transitions, currentState);
+    }
+
+    public <T> XyzSendResult sendAll(Stream<T> items) {
+        Iterable<T> iterable = items::iterator;
+        return sendAll(iterable);
+    }
+
+    public <T> XyzSendResult sendAll(T[] items) {
+        return sendAll(Arrays.asList(items));
+    }
+
+    /**
+     * Gets the listeners of this state machine, creating them on top of
+     * the listeners of the definition the first time.
+     */
+    @SuppressWarnings("unchecked")
+    private XyzStateListeners<XyzStateChangeEvent> ownListeners() {
+        XyzStateListeners<XyzStateChangeEvent> definitionListeners = definition.getListeners();
+        XyzStateListeners<XyzStateChangeEvent> result = listeners;
+
+        if (result != definitionListeners) {
+            return result;
+        }
+
+        listenersUpdater.compareAndSet(this, definitionListeners, new XyzStateListeners<>(definitionListeners));
+
+        return listeners;
+    }
+
+    @SuppressWarnings("unchecked")
+    private XyzDataListeners ownDataListeners() {
+        XyzDataListeners definitionListeners = definition.getDataListeners();
+        XyzDataListeners result = dataListeners;
+
+        if (result != definitionListeners) {
+            return result;
+        }
+
+        dataListenersUpdater.compareAndSet(this, definitionListeners, new XyzDataListeners(definitionListeners));
+
+        return dataListeners;
+    }
+
     private void ensureStateMachineInitialized() {
         if (this.currentState == null) {
-            changeStateImpl(this.initialState, null);
+            changeStateImpl(this.initialState, null, null);
         }
     }
 
@@ -403,19 +1163,220 @@ public class XyzStateMachine {
     public XyzState transition(String linkName, Object data) {
         this.ensureStateMachineInitialized();
 
-        Map<String, Integer> linkMap = this.linkMap.get(currentState.ordinal());
+        XyzState targetState = linkTarget(currentState, linkName);
 
-        if (linkMap == null) {
+        if (targetState == null) {
             return null;
         }
 
-        Integer targetStateIndex = linkMap.get(linkName);
+        return changeState(targetState, data);
+    }
+
+    public XyzState transition(XyzLink link) {
+        return this.transition(link, null);
+    }
 
-        if (targetStateIndex == null) {
+    /**
+     * Follows the link from the current state, without looking up its name.
+     *
+     * @return The new state, or `null` if the current state has no such link.
+     */
+    public XyzState transition(XyzLink link, Object data) {
+        this.ensureStateMachineInitialized();
+
+        XyzState targetState = linkTarget(currentState, link);
+
+        if (targetState == null) {
             return null;
         }
 
-        return changeState(XyzState.values()[targetStateIndex], data);
+        return changeState(targetState, data);
+    }
+
+    /**
+     * @return The state where the link from the given state leads, or
+     * `null` if there is no such link.
+     */
+    static XyzState linkTarget(XyzState state, XyzLink link) {
+        int target = LINK_TARGETS[state.ordinal()][link.ordinal()];
+
+        return target < 0 ? null : STATES[target];
+    }
+
+    /**
+     * @return The state where the named link from the given state leads,
+     * or `null` if there is no such link.
+     */
+    static XyzState linkTarget(XyzState state, String linkName) {
+        // compiled into the class, so the JIT sees only constants. As with
+        // the previous registrations, the first link with the name wins.
+        //BEGIN_HANDLEBARS
+        //{{#each transitions}}
+        //{{#if name}}
+        //        if (state == XyzState.{{startState}} && "{{name}}".equals(linkName)) {
+        //            return XyzState.{{endState}};
+        //        }
+        //{{/if}}
+        //{{/each}}
+        if (state == XyzState.DEFAULT && "run".equals(linkName)) {
+            return XyzState.RUNNING;
+        }
+        //END_HANDLEBARS
+
+        return null;
+    }
+
+    /**
+     * Changes the state of all the state machines in parallel, on the
+     * common ForkJoinPool. Each state machine goes through its own
+     * changeState, with its own locking and listeners.
+     *
+     * @return The outcome for each state machine, in iteration order.
+     */
+    public static XyzBulkResult changeStateAll(Collection<XyzStateMachine> stateMachines, XyzState targetState) {
+        return changeStateAll(stateMachines, targetState, null, ForkJoinPool.commonPool());
+    }
+
+    public static XyzBulkResult changeStateAll(Collection<XyzStateMachine> stateMachines,
+                                               XyzState targetState,
+                                               Object data,
+                                               ForkJoinPool pool) {
+        if (targetState == null) {
+            throw new NullPointerException("targetState is null. Can not changeStateAll.");
+        }
+
+        XyzStateMachine[] machines = stateMachines.toArray(new XyzStateMachine[0]);
+
+        return XyzBulkTask.run(pool, machines.length, i -> machines[i].changeStateOutcome(targetState, data));
+    }
+
+    /**
+     * Follows the link from the current state of every state machine, in
+     * parallel on the common ForkJoinPool. State machines whose current
+     * state has no such link are REJECTED.
+     */
+    public static XyzBulkResult transitionAll(Collection<XyzStateMachine> stateMachines, XyzLink link) {
+        return transitionAll(stateMachines, link, null, ForkJoinPool.commonPool());
+    }
+
+    public static XyzBulkResult transitionAll(Collection<XyzStateMachine> stateMachines,
+                                              XyzLink link,
+                                              Object data,
+                                              ForkJoinPool pool) {
+        if (link == null) {
+            throw new NullPointerException("link is null. Can not transitionAll.");
+        }
+
+        XyzStateMachine[] machines = stateMachines.toArray(new XyzStateMachine[0]);
+
+        return XyzBulkTask.run(pool, machines.length, i -> {
+            XyzStateMachine stateMachine = machines[i];
+            XyzState targetState = linkTarget(stateMachine.getState(), link);
+
+            if (targetState == null) {
+                return XyzTransitionOutcome.REJECTED;
+            }
+
+            // if another thread changes the state meanwhile, the transition
+            // itself tells if the target can still be reached.
+            return stateMachine.changeStateOutcome(targetState, data);
+        });
+    }
+
+    /**
+     * Changes the state, as changeState does, and reports what the
+     * transition itself did, instead of guessing it from the states seen
+     * before and after, that other threads could change meanwhile.
+     */
+    private XyzTransitionOutcome changeStateOutcome(XyzState targetState, Object data) {
+        ensureStateMachineInitialized();
+
+        XyzTransitionOutcome[] outcome = new XyzTransitionOutcome[1];
+        changeStateImpl(targetState, data, outcome);
+
+        return outcome[0];
+    }
+
+    /**
+     * Writes the current state and the properties of the state machine
+     * into the snapshot. The listeners are not part of the snapshot.
+     */
+    public synchronized void writeSnapshot(XyzSnapshotWriter writer) throws IOException {
+        writer.writeState(currentState);
+
+        //BEGIN_HANDLEBARS
+        //{{#each properties}}
+        //        writer.writeValue(this.{{@key}});
+        //{{/each}}
+        //END_HANDLEBARS
+    }
+
+    /**
+     * Restores the state and the properties written by writeSnapshot. The
+     * state is set directly, without notifying any listeners.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized void readSnapshot(XyzSnapshotReader reader) throws IOException {
+        XyzState state = reader.readState();
+
+        //BEGIN_HANDLEBARS
+        //{{#each properties}}
+        //{{#if this.default}}
+        //        this.{{@key}} = ({{this.type}}) reader.readValue();
+        //{{else}}
+        //        this.{{@key}} = ({{this}}) reader.readValue();
+        //{{/if}}
+        //{{/each}}
+        //END_HANDLEBARS
+
+        restoreState(state);
+    }
+
+    /**
+     * Writes the snapshots of all the state machines into the channel.
+     *
+     * @param channel A blocking channel. It is not closed.
+     * @param stateMachines The state machines to write.
+     * @return How many state machines were written.
+     */
+    public static int writeSnapshots(WritableByteChannel channel,
+                                     Iterable<XyzStateMachine> stateMachines) throws IOException {
+        XyzSnapshotWriter writer = new XyzSnapshotWriter(channel);
+        int count = 0;
+
+        for (XyzStateMachine stateMachine : stateMachines) {
+            stateMachine.writeSnapshot(writer);
+            count++;
+        }
+
+        writer.flush();
+
+        return count;
+    }
+
+    /**
+     * Reads all the snapshots written by writeSnapshots, restoring each of
+     * them into a new state machine.
+     *
+     * @param channel A blocking channel. It is not closed.
+     * @param factory Creates the state machines, e.g. `definition::newStateMachine`.
+     * @param consumer Receives the restored state machines, in order.
+     * @return How many state machines were read.
+     */
+    public static int readSnapshots(ReadableByteChannel channel,
+                                    Supplier<XyzStateMachine> factory,
+                                    Consumer<XyzStateMachine> consumer) throws IOException {
+        XyzSnapshotReader reader = new XyzSnapshotReader(channel);
+        int count = 0;
+
+        while (reader.hasNext()) {
+            XyzStateMachine stateMachine = factory.get();
+            stateMachine.readSnapshot(reader);
+            consumer.accept(stateMachine);
+            count++;
+        }
+
+        return count;
     }
 
     // BEGIN_HANDLEBARS
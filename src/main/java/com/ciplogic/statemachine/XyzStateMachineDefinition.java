@@ -0,0 +1,200 @@
+package com.ciplogic.statemachine;
+
+import com.ciplogic.statemachine.impl.XyzDataEvent;
+import com.ciplogic.statemachine.impl.XyzDataListenerRegistration;
+import com.ciplogic.statemachine.impl.XyzDataListeners;
+import com.ciplogic.statemachine.impl.XyzDefaultDiagnostics;
+import com.ciplogic.statemachine.impl.XyzDiagnostics;
+import com.ciplogic.statemachine.impl.XyzMetrics;
+import com.ciplogic.statemachine.impl.XyzStateChangeEvent;
+import com.ciplogic.statemachine.impl.XyzStateListenerRegistration;
+import com.ciplogic.statemachine.impl.XyzStateListeners;
+
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * The listeners shared by many state machines. The listeners are
+ * registered once on the definition, then the definition gets frozen
+ * and the state machines are created from it.
+ *
+ * The state machines created from a definition don't copy anything, so
+ * creating them is cheap. Listeners registered on a state machine itself
+ * only apply to that state machine, and are notified after the listeners
+ * of the definition.
+ */
+public class XyzStateMachineDefinition {
+    /**
+     * The definition of the state machines created without one.
+     */
+    static final XyzStateMachineDefinition EMPTY = new XyzStateMachineDefinition().freeze();
+
+    private final XyzState initialState;
+
+    private final XyzStateListeners<XyzStateChangeEvent> listeners = new XyzStateListeners<>();
+    private final XyzDataListeners dataListeners = new XyzDataListeners();
+
+    private XyzDiagnostics diagnostics = XyzDefaultDiagnostics.getInstance();
+    private XyzMetrics metrics;
+
+    private volatile boolean frozen;
+
+    public XyzStateMachineDefinition() {
+        this(XyzState.values()[0]);
+    }
+
+    public XyzStateMachineDefinition(XyzState initialState) {
+        if (initialState == null) {
+            throw new IllegalArgumentException("Can not create state machine definition. Initial state is null.");
+        }
+
+        this.initialState = initialState;
+    }
+
+    /**
+     * Stops accepting new listeners, and detaching the registered ones.
+     * Called implicitly when the first state machine is created.
+     * @return this definition.
+     */
+    public synchronized XyzStateMachineDefinition freeze() {
+        frozen = true;
+
+        return this;
+    }
+
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    public XyzStateMachine newStateMachine() {
+        return newStateMachine(initialState);
+    }
+
+    public XyzStateMachine newStateMachine(XyzState initialState) {
+        if (initialState == null) {
+            throw new IllegalArgumentException("Can not start state machine. Initial state is null.");
+        }
+
+        if (!frozen) {
+            freeze();
+        }
+
+        return new XyzStateMachine(this, initialState);
+    }
+
+    public synchronized XyzStateListenerRegistration<XyzStateChangeEvent> beforeEnter(XyzState state,
+                                                                                      Consumer<XyzStateChangeEvent> callback) {
+        ensureNotFrozen();
+        return detachableUntilFrozen(listeners.beforeEnter(state, callback));
+    }
+
+    public synchronized XyzStateListenerRegistration<XyzStateChangeEvent> afterEnter(XyzState state,
+                                                                                     Consumer<XyzStateChangeEvent> callback) {
+        ensureNotFrozen();
+        return detachableUntilFrozen(listeners.afterEnter(state, callback));
+    }
+
+    public synchronized XyzStateListenerRegistration<XyzStateChangeEvent> beforeLeave(XyzState state,
+                                                                                      Consumer<XyzStateChangeEvent> callback) {
+        ensureNotFrozen();
+        return detachableUntilFrozen(listeners.beforeLeave(state, callback));
+    }
+
+    public synchronized XyzStateListenerRegistration<XyzStateChangeEvent> afterLeave(XyzState state,
+                                                                                     Consumer<XyzStateChangeEvent> callback) {
+        ensureNotFrozen();
+        return detachableUntilFrozen(listeners.afterLeave(state, callback));
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized <T> XyzDataListenerRegistration<T> onData(XyzState state, Consumer<XyzDataEvent<T>> callback) {
+        ensureNotFrozen();
+        return detachableUntilFrozen(dataListeners.onData(state, callback));
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized <T> XyzDataListenerRegistration<T> onData(XyzState state, Function<XyzDataEvent<T>, XyzState> callback) {
+        ensureNotFrozen();
+        return detachableUntilFrozen(dataListeners.onData(state, callback));
+    }
+
+    /**
+     * Process data only if the data is of the specified type.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized <T> XyzDataListenerRegistration<T> onData(XyzState state,
+                                                                  Class<? extends T> clazz,
+                                                                  Function<XyzDataEvent<T>, XyzState> callback) {
+        ensureNotFrozen();
+        return detachableUntilFrozen(dataListeners.onData(state, clazz, callback));
+    }
+
+    /**
+     * @param diagnostics The diagnostics the new state machines start with,
+     *                    or `null` for the default one.
+     */
+    public synchronized void setDiagnostics(XyzDiagnostics diagnostics) {
+        ensureNotFrozen();
+        this.diagnostics = diagnostics == null ? XyzDefaultDiagnostics.getInstance() : diagnostics;
+    }
+
+    /**
+     * @param metrics The metrics the new state machines start with, or `null`.
+     */
+    public synchronized void setMetrics(XyzMetrics metrics) {
+        ensureNotFrozen();
+        this.metrics = metrics;
+    }
+
+    XyzStateListeners<XyzStateChangeEvent> getListeners() {
+        return listeners;
+    }
+
+    XyzDataListeners getDataListeners() {
+        return dataListeners;
+    }
+
+    XyzDiagnostics getDiagnostics() {
+        return diagnostics;
+    }
+
+    XyzMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * The listeners of a frozen definition are shared by live state
+     * machines, so they can't be detached anymore either.
+     */
+    private <T> XyzStateListenerRegistration<T> detachableUntilFrozen(XyzStateListenerRegistration<T> registration) {
+        return () -> {
+            synchronized (this) {
+                ensureNotFrozenForDetach();
+                registration.detach();
+            }
+        };
+    }
+
+    private <T> XyzDataListenerRegistration<T> detachableUntilFrozen(XyzDataListenerRegistration<T> registration) {
+        return () -> {
+            synchronized (this) {
+                ensureNotFrozenForDetach();
+                registration.detach();
+            }
+        };
+    }
+
+    private void ensureNotFrozenForDetach() {
+        if (frozen) {
+            throw new IllegalStateException("The state machine definition is frozen. " +
+                    "Listeners can only be detached before creating state machines.");
+        }
+    }
+
+    private void ensureNotFrozen() {
+        if (frozen) {
+            throw new IllegalStateException("The state machine definition is frozen. " +
+                    "Listeners can only be registered before creating state machines.");
+        }
+    }
+}
@@ -0,0 +1,757 @@
+package com.ciplogic.statemachine;
+
+import com.ciplogic.statemachine.impl.XyzBulkResult;
+import com.ciplogic.statemachine.impl.XyzBulkTask;
+import com.ciplogic.statemachine.impl.XyzDataEvent;
+import com.ciplogic.statemachine.impl.XyzDataListenerRegistration;
+import com.ciplogic.statemachine.impl.XyzDataListeners;
+import com.ciplogic.statemachine.impl.XyzDataListenersSnapshot;
+import com.ciplogic.statemachine.impl.XyzDefaultDiagnostics;
+import com.ciplogic.statemachine.impl.XyzDiagnostics;
+import com.ciplogic.statemachine.impl.XyzFleetDataEvent;
+import com.ciplogic.statemachine.impl.XyzFleetStateChangeEvent;
+import com.ciplogic.statemachine.impl.XyzJournal;
+import com.ciplogic.statemachine.impl.XyzMetrics;
+import com.ciplogic.statemachine.impl.XyzSnapshotReader;
+import com.ciplogic.statemachine.impl.XyzSnapshotWriter;
+import com.ciplogic.statemachine.impl.XyzStateChangePublisher;
+import com.ciplogic.statemachine.impl.XyzStateException;
+import com.ciplogic.statemachine.impl.XyzStateListenerRegistration;
+import com.ciplogic.statemachine.impl.XyzStateListeners;
+import com.ciplogic.statemachine.impl.XyzStateListenersSnapshot;
+import com.ciplogic.statemachine.impl.XyzTransitionOutcome;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * A fixed number of state machines, addressed by their id (0 until size - 1),
+ * that share the same listeners.
+ *
+ * Each state machine only takes a byte: the ordinal of its state. The
+ * transitions and the changeState/sendData semantics are the same as for
+ * the XyzStateMachine, with the listeners receiving the id of the state
+ * machine in the events.
+ *
+ * The states are guarded by a fixed number of striped locks, that are
+ * only held to check and to commit a state, never while listeners run.
+ * While the `before` listeners of a state machine run, the other
+ * transitions of that state machine wait for them, but the other state
+ * machines of the stripe don't. Changing another state machine from a
+ * `before` listener can still deadlock, if a `before` listener of that
+ * state machine changes the first one in another thread.
+ *
+ * The `after` events are queued in commit order when the state is
+ * committed, and dispatched by one thread at a time for each stripe, so
+ * the `after` listeners of a state machine see its transitions in commit
+ * order, as with the XyzStateMachine, but without holding any lock. They
+ * may change any state machine of the fleet. Unlike the XyzStateMachine,
+ * the `after` listeners run in the thread that changed the state only if
+ * no other thread dispatches the stripe, otherwise that thread runs them,
+ * and changeState can return before they did. A transition nested in an
+ * `after` listener runs its own `after` listeners once the current one
+ * returns, and the failing `after` listeners are reported to the
+ * diagnostics, instead of being thrown.
+ */
+public class XyzStateMachineFleet {
+    private static final XyzState[] STATES = XyzState.values();
+
+    private static final byte UNINITIALIZED = 0;
+    private static final byte CHANGING = (byte) 0x80;
+    private static final int STATE_MASK = 0x7f;
+
+    private static final int MAX_LOCK_STRIPES = 1024;
+
+    static {
+        if (STATES.length > STATE_MASK) {
+            throw new IllegalStateException(String.format(
+                    "XyzStateMachineFleet supports at most %d states, but XyzState has %d.",
+                    STATE_MASK,
+                    STATES.length
+            ));
+        }
+    }
+
+    private final XyzState initialState;
+
+    // the ordinal + 1 of the state of each state machine, 0 if not yet initialized.
+    private final byte[] states;
+    private final Stripe[] stripes;
+
+    private final XyzStateListeners<XyzFleetStateChangeEvent> listeners = new XyzStateListeners<>();
+    private final XyzDataListeners dataListeners = new XyzDataListeners();
+
+    private volatile XyzDiagnostics diagnostics = XyzDefaultDiagnostics.getInstance();
+    private volatile XyzMetrics metrics;
+    private volatile XyzJournal journal;
+
+    private volatile XyzStateChangePublisher<XyzFleetStateChangeEvent> publisher;
+
+    public XyzStateMachineFleet(int size) {
+        this(size, XyzState.values()[0]);
+    }
+
+    public XyzStateMachineFleet(int size, XyzState initialState) {
+        if (size < 0) {
+            throw new IllegalArgumentException(String.format(
+                    "Can not create state machine fleet. The size %d is negative.",
+                    size
+            ));
+        }
+
+        if (initialState == null) {
+            throw new IllegalArgumentException("Can not create state machine fleet. Initial state is null.");
+        }
+
+        this.initialState = initialState;
+        this.states = new byte[size];
+
+        // a power of two, so the stripe is just a mask of the id.
+        int lockCount = 1;
+
+        while (lockCount < size && lockCount < MAX_LOCK_STRIPES) {
+            lockCount <<= 1;
+        }
+
+        this.stripes = new Stripe[lockCount];
+
+        for (int i = 0; i < lockCount; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    public int size() {
+        return states.length;
+    }
+
+    public XyzState getState(int id) {
+        ensureStateMachineInitialized(id);
+
+        synchronized (stripe(id)) {
+            return decode(states[id]);
+        }
+    }
+
+    public XyzState changeState(int id, XyzState targetState) {
+        return changeState(id, targetState, null);
+    }
+
+    /**
+     * Attempts to transition the state machine with the given id into the
+     * new state. In case the state cannot be changed, the old state will be
+     * returned.
+     *
+     * @param id The id of the state machine.
+     * @param targetState The desired state we want the state machine to transition.
+     * @param data The data to pass into the change state event.
+     * @return The current state of the state machine.
+     */
+    public XyzState changeState(int id, XyzState targetState, Object data) {
+        if (targetState == null) {
+            throw new NullPointerException("targetState is null. Can not changeState.");
+        }
+
+        ensureStateMachineInitialized(id);
+
+        return changeStateImpl(id, targetState, data, false, null);
+    }
+
+    /**
+     * Holds the lock of the id only to check and to commit the state. The
+     * `before` listeners run outside the lock, with the state machine
+     * marked as CHANGING, so only the transitions of the same state machine
+     * wait for them. The `after` events are queued on the stripe holding
+     * the lock, and dispatched once it's released.
+     *
+     * @param initialization true to only move a state machine that is not
+     *                       initialized yet into the target state.
+     * @param outcome Gets what the transition did, for the bulk
+     *                transitions, or `null`.
+     */
+    private XyzState changeStateImpl(int id,
+                                     XyzState targetState,
+                                     Object data,
+                                     boolean initialization,
+                                     XyzTransitionOutcome[] outcome) {
+        Stripe stripe = stripe(id);
+        XyzMetrics currentMetrics = metrics;
+
+        XyzState previousState;
+        XyzStateListenersSnapshot<XyzFleetStateChangeEvent> beforeListenersCopy;
+        XyzStateListenersSnapshot<XyzFleetStateChangeEvent> afterListenersCopy;
+        boolean dispatch = false;
+
+        synchronized (stripe) {
+            previousState = awaitNotChanging(id, stripe, targetState);
+
+            if (previousState == targetState || (initialization && previousState != null)) {
+                XyzStateMachine.setOutcome(outcome, XyzTransitionOutcome.NO_OP);
+                return previousState;
+            }
+
+            if (previousState != null && !XyzStateMachine.canTransition(previousState, targetState)) {
+                beforeListenersCopy = null;
+                afterListenersCopy = null;
+            } else {
+                beforeListenersCopy = listeners.copyBefore(previousState, targetState);
+                afterListenersCopy = listeners.copyAfter(previousState, targetState);
+
+                if (beforeListenersCopy.isEmpty()) {
+                    dispatch = commit(id, stripe, previousState, targetState, data, afterListenersCopy, null);
+                    XyzStateMachine.setOutcome(outcome, XyzTransitionOutcome.CHANGED);
+                } else {
+                    states[id] |= CHANGING;
+                    stripe.addChangingThread(id, Thread.currentThread());
+                }
+            }
+        }
+
+        if (beforeListenersCopy == null) {
+            // reported outside the lock.
+            if (currentMetrics != null) {
+                currentMetrics.transitionRejected(previousState, targetState);
+            }
+
+            diagnostics.invalidTransition(previousState, targetState);
+            XyzStateMachine.setOutcome(outcome, XyzTransitionOutcome.REJECTED);
+
+            return previousState;
+        }
+
+        if (!beforeListenersCopy.isEmpty()) {
+            XyzFleetStateChangeEvent stateChangeEvent = new XyzFleetStateChangeEvent(id, previousState, targetState, data);
+            boolean notified = false;
+
+            try {
+                beforeListenersCopy.notifyTransition(stateChangeEvent, diagnostics, currentMetrics);
+                notified = true;
+            } finally {
+                synchronized (stripe) {
+                    stripe.removeChangingThread(id);
+                    states[id] &= ~CHANGING;
+                    stripe.notifyAll();
+
+                    if (notified && !stateChangeEvent.isCancelled()) {
+                        dispatch = commit(id, stripe, previousState, targetState, data, afterListenersCopy, stateChangeEvent);
+                        XyzStateMachine.setOutcome(outcome, XyzTransitionOutcome.CHANGED);
+                    }
+                }
+            }
+
+            if (stateChangeEvent.isCancelled()) {
+                if (currentMetrics != null) {
+                    currentMetrics.transitionCancelled(previousState, targetState);
+                }
+
+                XyzStateMachine.setOutcome(outcome, XyzTransitionOutcome.CANCELLED);
+                return previousState; // state not changed.
+            }
+        }
+
+        // outside the lock, so the listeners can change any state machine.
+        if (dispatch) {
+            stripe.dispatchAfterEvents(diagnostics);
+        }
+
+        XyzStateChangePublisher<XyzFleetStateChangeEvent> currentPublisher = publisher;
+
+        if (currentPublisher != null) {
+            currentPublisher.awaitCapacity();
+        }
+
+        synchronized (stripe) {
+            return decode(states[id]);
+        }
+    }
+
+    /**
+     * Waits while another thread runs the `before` listeners of the state
+     * machine. Must be called holding the lock of the id.
+     *
+     * @return The current state of the state machine.
+     */
+    private XyzState awaitNotChanging(int id, Stripe stripe, XyzState targetState) {
+        boolean interrupted = false;
+
+        try {
+            while ((states[id] & CHANGING) != 0) {
+                if (stripe.changingThread(id) == Thread.currentThread()) {
+                    XyzMetrics currentMetrics = metrics;
+
+                    if (currentMetrics != null) {
+                        currentMetrics.reentrancyError();
+                    }
+
+                    throw new XyzStateException(String.format(
+                            "The XyzStateMachineFleet is already in a changeState for %d. " +
+                            "Transitioning the state machine (%s -> %s) in `before` events is not supported.",
+                            id,
+                            decode(states[id]),
+                            targetState
+                    ));
+                }
+
+                try {
+                    stripe.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        return decode(states[id]);
+    }
+
+    /**
+     * Must be called holding the lock of the id. A full journal fails the
+     * transition before the state is changed. The state change is offered
+     * to the publisher here, so the events of an id are published in commit
+     * order.
+     *
+     * @param stateChangeEvent The event of the transition, or `null` if
+     *                         none was created yet.
+     * @return true if the caller must dispatch the `after` events of the
+     * stripe, once the lock is released.
+     */
+    private boolean commit(int id,
+                           Stripe stripe,
+                           XyzState previousState,
+                           XyzState targetState,
+                           Object data,
+                           XyzStateListenersSnapshot<XyzFleetStateChangeEvent> afterListenersCopy,
+                           XyzFleetStateChangeEvent stateChangeEvent) {
+        XyzJournal currentJournal = journal;
+
+        if (currentJournal != null) {
+            currentJournal.append(id, previousState, targetState, data);
+        }
+
+        states[id] = encode(targetState);
+
+        XyzMetrics currentMetrics = metrics;
+
+        if (currentMetrics != null) {
+            currentMetrics.transitionCommitted(previousState, targetState);
+        }
+
+        XyzStateChangePublisher<XyzFleetStateChangeEvent> currentPublisher = publisher;
+
+        if (afterListenersCopy.isEmpty() && currentPublisher == null) {
+            return false;
+        }
+
+        XyzFleetStateChangeEvent committedEvent = stateChangeEvent != null ?
+                stateChangeEvent :
+                new XyzFleetStateChangeEvent(id, previousState, targetState, data);
+
+        if (currentPublisher != null) {
+            // never waits, the capacity is awaited once the lock is released.
+            currentPublisher.offer(committedEvent);
+        }
+
+        if (afterListenersCopy.isEmpty()) {
+            return false;
+        }
+
+        return stripe.queueAfterEvent(() -> afterListenersCopy.notifyTransition(committedEvent, diagnostics, currentMetrics));
+    }
+
+    /**
+     * Attempt at changing the state to the new state first, then pass
+     * the data to the state machine.
+     */
+    public <T> XyzState sendData(int id, XyzState state, T data) {
+        changeState(id, state);
+
+        return sendData(id, data);
+    }
+
+    /**
+     * Send some data into the state machine with the given id. This will
+     * be processed by the current state of that state machine.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> XyzState sendData(int id, T data) {
+        XyzState state = getState(id);
+        XyzMetrics currentMetrics = metrics;
+
+        if (currentMetrics != null) {
+            currentMetrics.dataSent(state);
+        }
+
+        XyzDataListenersSnapshot<T> listenersCopy = dataListeners.copy(state);
+        XyzState newState = listenersCopy.notifyData(data, new XyzFleetDataEvent<>(id, data), currentMetrics);
+
+        if (newState != null) {
+            return changeState(id, newState);
+        }
+
+        return getState(id);
+    }
+
+    public XyzState transition(int id, String linkName) {
+        return transition(id, linkName, null);
+    }
+
+    public XyzState transition(int id, String linkName, Object data) {
+        XyzState targetState = XyzStateMachine.linkTarget(getState(id), linkName);
+
+        if (targetState == null) {
+            return null;
+        }
+
+        return changeState(id, targetState, data);
+    }
+
+    public XyzState transition(int id, XyzLink link) {
+        return transition(id, link, null);
+    }
+
+    public XyzState transition(int id, XyzLink link, Object data) {
+        XyzState targetState = XyzStateMachine.linkTarget(getState(id), link);
+
+        if (targetState == null) {
+            return null;
+        }
+
+        return changeState(id, targetState, data);
+    }
+
+    /**
+     * Changes the state of every state machine of the fleet in parallel,
+     * on the common ForkJoinPool.
+     *
+     * @return The outcome for each id.
+     */
+    public XyzBulkResult changeStateAll(XyzState targetState) {
+        return changeStateAll(targetState, null, ForkJoinPool.commonPool());
+    }
+
+    public XyzBulkResult changeStateAll(XyzState targetState, Object data, ForkJoinPool pool) {
+        if (targetState == null) {
+            throw new NullPointerException("targetState is null. Can not changeStateAll.");
+        }
+
+        return XyzBulkTask.run(pool, size(), id -> changeStateOutcome(id, targetState, data));
+    }
+
+    /**
+     * Follows the link from the current state of every state machine of
+     * the fleet, in parallel on the common ForkJoinPool.
+     */
+    public XyzBulkResult transitionAll(XyzLink link) {
+        return transitionAll(link, null, ForkJoinPool.commonPool());
+    }
+
+    public XyzBulkResult transitionAll(XyzLink link, Object data, ForkJoinPool pool) {
+        if (link == null) {
+            throw new NullPointerException("link is null. Can not transitionAll.");
+        }
+
+        return XyzBulkTask.run(pool, size(), id -> {
+            XyzState targetState = XyzStateMachine.linkTarget(getState(id), link);
+
+            if (targetState == null) {
+                return XyzTransitionOutcome.REJECTED;
+            }
+
+            // if another thread changes the state meanwhile, the transition
+            // itself tells if the target can still be reached.
+            return changeStateOutcome(id, targetState, data);
+        });
+    }
+
+    /**
+     * Changes the state, as changeState does, and reports what the
+     * transition itself did.
+     */
+    private XyzTransitionOutcome changeStateOutcome(int id, XyzState targetState, Object data) {
+        ensureStateMachineInitialized(id);
+
+        XyzTransitionOutcome[] outcome = new XyzTransitionOutcome[1];
+        changeStateImpl(id, targetState, data, false, outcome);
+
+        return outcome[0];
+    }
+
+    public XyzStateListenerRegistration<XyzFleetStateChangeEvent> beforeEnter(XyzState state,
+                                                                              Consumer<XyzFleetStateChangeEvent> callback) {
+        return listeners.beforeEnter(state, callback);
+    }
+
+    public XyzStateListenerRegistration<XyzFleetStateChangeEvent> afterEnter(XyzState state,
+                                                                             Consumer<XyzFleetStateChangeEvent> callback) {
+        return listeners.afterEnter(state, callback);
+    }
+
+    public XyzStateListenerRegistration<XyzFleetStateChangeEvent> beforeLeave(XyzState state,
+                                                                              Consumer<XyzFleetStateChangeEvent> callback) {
+        return listeners.beforeLeave(state, callback);
+    }
+
+    public XyzStateListenerRegistration<XyzFleetStateChangeEvent> afterLeave(XyzState state,
+                                                                             Consumer<XyzFleetStateChangeEvent> callback) {
+        return listeners.afterLeave(state, callback);
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> XyzDataListenerRegistration<T> onData(XyzState state, Consumer<XyzFleetDataEvent<T>> callback) {
+        Function<XyzDataEvent<T>, XyzState> function = dataEvent -> {
+            callback.accept((XyzFleetDataEvent<T>) dataEvent);
+            return null;
+        };
+
+        return dataListeners.onData(state, function);
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> XyzDataListenerRegistration<T> onData(XyzState state, Function<XyzFleetDataEvent<T>, XyzState> callback) {
+        Function<XyzDataEvent<T>, XyzState> function = dataEvent -> callback.apply((XyzFleetDataEvent<T>) dataEvent);
+
+        return dataListeners.onData(state, function);
+    }
+
+    /**
+     * Process data only if the data is of the specified type.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> XyzDataListenerRegistration<T> onData(XyzState state,
+                                                     Class<? extends T> clazz,
+                                                     Function<XyzFleetDataEvent<T>, XyzState> callback) {
+        Function<XyzDataEvent<T>, XyzState> function = dataEvent -> callback.apply((XyzFleetDataEvent<T>) dataEvent);
+
+        return dataListeners.onData(state, clazz, function);
+    }
+
+    /**
+     * Writes the states of all the state machines into the channel, as
+     * one byte each.
+     *
+     * @param channel A blocking channel. It is not closed.
+     */
+    public void writeSnapshot(WritableByteChannel channel) throws IOException {
+        XyzSnapshotWriter writer = new XyzSnapshotWriter(channel);
+        writer.writeInt(states.length);
+
+        for (int id = 0; id < states.length; id++) {
+            synchronized (stripe(id)) {
+                writer.writeState(decode(states[id]));
+            }
+        }
+
+        writer.flush();
+    }
+
+    /**
+     * Restores the states written by writeSnapshot. The states are set
+     * directly, without notifying any listeners.
+     *
+     * @param channel A blocking channel. It is not closed.
+     */
+    public void readSnapshot(ReadableByteChannel channel) throws IOException {
+        XyzSnapshotReader reader = new XyzSnapshotReader(channel);
+        int size = reader.readInt();
+
+        if (size != states.length) {
+            throw new XyzStateException(String.format(
+                    "Unable to read snapshot. It has %d state machines, but the fleet has %d.",
+                    size,
+                    states.length
+            ));
+        }
+
+        for (int id = 0; id < states.length; id++) {
+            XyzState state = reader.readState();
+
+            synchronized (stripe(id)) {
+                states[id] = state == null ? UNINITIALIZED : encode(state);
+            }
+        }
+    }
+
+    /**
+     * Appends every committed transition to the journal, with the id of
+     * the state machine.
+     *
+     * @param journal The journal, or `null` to stop journaling (the default).
+     */
+    public void setJournal(XyzJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Restores the states from the journal. Each state machine gets the
+     * state of its last record, directly, without notifying any listeners.
+     *
+     * @return How many records were replayed.
+     */
+    public int replayJournal(XyzJournal journal) {
+        return journal.replay((id, fromState, toState, timestamp, dataReference) -> {
+            int index = (int) id;
+
+            synchronized (stripe(index)) {
+                states[index] = encode(toState);
+            }
+        });
+    }
+
+    /**
+     * Gets the publisher of the state changes of all the state machines of
+     * the fleet, creating it on the first call. The events carry the id.
+     *
+     * The state changes are offered when they are committed, holding the
+     * lock of the id, so the events of a state machine are published in
+     * commit order. With a BLOCK subscriber whose buffer is full,
+     * changeState waits once the lock is released.
+     */
+    public synchronized XyzStateChangePublisher<XyzFleetStateChangeEvent> getPublisher() {
+        if (publisher == null) {
+            XyzStateChangePublisher<XyzFleetStateChangeEvent> newPublisher = new XyzStateChangePublisher<>();
+            newPublisher.setDiagnostics(diagnostics);
+            publisher = newPublisher;
+        }
+
+        return publisher;
+    }
+
+    /**
+     * @param diagnostics The diagnostics sink, or `null` for the default one.
+     */
+    public synchronized void setDiagnostics(XyzDiagnostics diagnostics) {
+        this.diagnostics = diagnostics == null ? XyzDefaultDiagnostics.getInstance() : diagnostics;
+
+        if (publisher != null) {
+            publisher.setDiagnostics(this.diagnostics);
+        }
+    }
+
+    /**
+     * @param metrics The metrics, or `null` to stop recording (the default).
+     */
+    public void setMetrics(XyzMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    private void ensureStateMachineInitialized(int id) {
+        synchronized (stripe(id)) {
+            if (decode(states[id]) != null) {
+                return;
+            }
+        }
+
+        changeStateImpl(id, initialState, null, true, null);
+    }
+
+    private Stripe stripe(int id) {
+        if (id < 0 || id >= states.length) {
+            throw new IndexOutOfBoundsException(String.format(
+                    "No state machine with id %d. The fleet has %d state machines.",
+                    id,
+                    states.length
+            ));
+        }
+
+        return stripes[id & (stripes.length - 1)];
+    }
+
+    private static byte encode(XyzState state) {
+        return (byte) (state.ordinal() + 1);
+    }
+
+    private static XyzState decode(byte value) {
+        int ordinal = value & STATE_MASK;
+
+        return ordinal == UNINITIALIZED ? null : STATES[ordinal - 1];
+    }
+
+    /**
+     * The lock of the state machines of a stripe, with the threads running
+     * their `before` listeners, and their `after` events.
+     */
+    private static final class Stripe {
+        // the CHANGING ids, and the threads running their `before`
+        // listeners, guarded by the stripe. Usually only a few.
+        private int[] changingIds = new int[1];
+        private Thread[] changingThreads = new Thread[1];
+        private int changingCount;
+
+        // queued holding the stripe, in commit order.
+        private final Queue<Runnable> afterEvents = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pendingAfterEvents = new AtomicInteger();
+
+        void addChangingThread(int id, Thread thread) {
+            if (changingCount == changingIds.length) {
+                changingIds = Arrays.copyOf(changingIds, changingCount * 2);
+                changingThreads = Arrays.copyOf(changingThreads, changingCount * 2);
+            }
+
+            changingIds[changingCount] = id;
+            changingThreads[changingCount] = thread;
+            changingCount++;
+        }
+
+        Thread changingThread(int id) {
+            for (int i = 0; i < changingCount; i++) {
+                if (changingIds[i] == id) {
+                    return changingThreads[i];
+                }
+            }
+
+            return null;
+        }
+
+        void removeChangingThread(int id) {
+            for (int i = 0; i < changingCount; i++) {
+                if (changingIds[i] == id) {
+                    changingCount--;
+                    changingIds[i] = changingIds[changingCount];
+                    changingThreads[i] = changingThreads[changingCount];
+                    changingThreads[changingCount] = null;
+                    return;
+                }
+            }
+        }
+
+        /**
+         * @return true if no thread dispatches the `after` events yet, so
+         * the caller must do it.
+         */
+        boolean queueAfterEvent(Runnable afterEvent) {
+            afterEvents.add(afterEvent);
+
+            return pendingAfterEvents.getAndIncrement() == 0;
+        }
+
+        void dispatchAfterEvents(XyzDiagnostics diagnostics) {
+            do {
+                Runnable afterEvent = afterEvents.poll();
+
+                try {
+                    afterEvent.run();
+                } catch (RuntimeException e) {
+                    // not thrown back to anyone, the transition is already done.
+                    diagnostics.listenerFailed(e);
+                } catch (Error e) {
+                    // the events queued meanwhile are still dispatched.
+                    if (pendingAfterEvents.decrementAndGet() != 0) {
+                        dispatchAfterEvents(diagnostics);
+                    }
+
+                    throw e;
+                }
+            } while (pendingAfterEvents.decrementAndGet() != 0);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.ciplogic.statemachine;
+
+import com.ciplogic.statemachine.impl.XyzSerialExecutor;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+/**
+ * Runs the commands for a state machine one at a time, in the order they
+ * were sent, instead of having the callers contend on the state machine.
+ *
+ * The commands are queued into a lock-free queue, and drained by a single
+ * consumer on the executor. Each command runs to completion, listeners
+ * included, before the next one starts. Calling changeState on the state
+ * machine from the `before` listeners of a command doesn't fail: the
+ * transition is queued after the current command.
+ */
+public class XyzStateMachineMailbox {
+    private final XyzStateMachine stateMachine;
+    private final XyzSerialExecutor executor;
+
+    // the thread running a command right now, if any.
+    private volatile Thread consumer;
+
+    /**
+     * Creates a mailbox that drains the commands in the thread that sends
+     * a command into the empty mailbox.
+     */
+    public XyzStateMachineMailbox(XyzStateMachine stateMachine) {
+        this(stateMachine, Runnable::run);
+    }
+
+    /**
+     * @param stateMachine The state machine the commands are for.
+     * @param executor Where the commands are drained, e.g. a thread pool.
+     */
+    public XyzStateMachineMailbox(XyzStateMachine stateMachine, Executor executor) {
+        if (stateMachine == null) {
+            throw new IllegalArgumentException("Can not create mailbox. The state machine is null.");
+        }
+
+        if (executor == null) {
+            throw new IllegalArgumentException("Can not create mailbox. The executor is null.");
+        }
+
+        this.stateMachine = stateMachine;
+        this.executor = new XyzSerialExecutor(executor);
+
+        stateMachine.setMailbox(this);
+    }
+
+    public XyzStateMachine getStateMachine() {
+        return stateMachine;
+    }
+
+    public CompletableFuture<XyzState> changeState(XyzState targetState) {
+        return changeState(targetState, null);
+    }
+
+    /**
+     * @return The state after the command ran.
+     */
+    public CompletableFuture<XyzState> changeState(XyzState targetState, Object data) {
+        if (targetState == null) {
+            throw new NullPointerException("targetState is null. Can not changeState.");
+        }
+
+        return submit(() -> stateMachine.changeState(targetState, data));
+    }
+
+    public <T> CompletableFuture<XyzState> sendData(T data) {
+        return submit(() -> stateMachine.sendData(data));
+    }
+
+    public <T> CompletableFuture<XyzState> sendData(XyzState state, T data) {
+        return submit(() -> stateMachine.sendData(state, data));
+    }
+
+    public CompletableFuture<XyzState> transition(String linkName) {
+        return transition(linkName, null);
+    }
+
+    public CompletableFuture<XyzState> transition(String linkName, Object data) {
+        return submit(() -> stateMachine.transition(linkName, data));
+    }
+
+    public CompletableFuture<XyzState> transition(XyzLink link) {
+        return transition(link, null);
+    }
+
+    public CompletableFuture<XyzState> transition(XyzLink link, Object data) {
+        return submit(() -> stateMachine.transition(link, data));
+    }
+
+    /**
+     * @return true if the current thread is running a command of this mailbox.
+     */
+    boolean isRunningCommand() {
+        return consumer == Thread.currentThread();
+    }
+
+    private CompletableFuture<XyzState> submit(Supplier<XyzState> command) {
+        CompletableFuture<XyzState> result = new CompletableFuture<>();
+
+        executor.execute(() -> {
+            consumer = Thread.currentThread();
+
+            try {
+                result.complete(command.get());
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            } finally {
+                consumer = null;
+            }
+        });
+
+        return result;
+    }
+}
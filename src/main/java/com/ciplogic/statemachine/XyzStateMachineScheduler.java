@@ -0,0 +1,303 @@
+package com.ciplogic.statemachine;
+
+import com.ciplogic.statemachine.impl.XyzDefaultDiagnostics;
+import com.ciplogic.statemachine.impl.XyzDiagnostics;
+import com.ciplogic.statemachine.impl.XyzSerialExecutor;
+
+import java.io.Closeable;
+import java.lang.reflect.Method;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs the mailboxes of many state machines on a fixed number of workers.
+ *
+ * Each state machine is assigned by its id to a worker, so its commands
+ * are normally processed by the same thread. A mailbox only has one drain
+ * task queued at a time, so an idle worker can steal the queued drain
+ * tasks of other workers without breaking the order of the commands:
+ * only state machines that are not running are ever stolen.
+ *
+ * The workers can be virtual threads on the JDKs that have them, so
+ * listeners that block don't hold a carrier thread.
+ */
+public class XyzStateMachineScheduler implements Closeable {
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final Worker[] workers;
+    private volatile boolean closed;
+
+    private volatile XyzDiagnostics diagnostics = XyzDefaultDiagnostics.getInstance();
+
+    /**
+     * Creates a scheduler with daemon platform threads.
+     */
+    public XyzStateMachineScheduler(int workerCount) {
+        this(workerCount, runnable -> {
+            Thread thread = new Thread(runnable);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public XyzStateMachineScheduler(int workerCount, ThreadFactory threadFactory) {
+        if (workerCount <= 0) {
+            throw new IllegalArgumentException(String.format(
+                    "Can not create scheduler. The worker count %d is not positive.",
+                    workerCount
+            ));
+        }
+
+        if (threadFactory == null) {
+            throw new IllegalArgumentException("Can not create scheduler. The thread factory is null.");
+        }
+
+        this.workers = new Worker[workerCount];
+
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new Worker(i);
+        }
+
+        for (Worker worker : workers) {
+            worker.thread = threadFactory.newThread(worker::run);
+            worker.thread.setName("xyz-scheduler-" + worker.index);
+            worker.thread.start();
+        }
+    }
+
+    /**
+     * Creates a scheduler whose workers are virtual threads.
+     *
+     * @throws UnsupportedOperationException if the JDK has no virtual threads.
+     */
+    public static XyzStateMachineScheduler withVirtualThreads(int workerCount) {
+        return new XyzStateMachineScheduler(workerCount, virtualThreadFactory());
+    }
+
+    /**
+     * @return true if the JDK has virtual threads (JDK 21+).
+     */
+    public static boolean isVirtualThreadsSupported() {
+        try {
+            virtualThreadFactory();
+            return true;
+        } catch (UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Gets a new executor, that runs its tasks one at a time, in the order
+     * they were given, on the worker the id is assigned to. The queued
+     * tasks can still be stolen by idle workers, so only the tasks given to
+     * the same executor keep their order: keep the executor, don't call
+     * this for each task.
+     *
+     * The tasks that fail are reported to the diagnostics set when the
+     * executor was created.
+     */
+    public Executor executor(long id) {
+        return new XyzSerialExecutor(worker(id), diagnostics);
+    }
+
+    /**
+     * Creates a mailbox for the state machine, whose commands run on this
+     * scheduler.
+     *
+     * @param id The id of the state machine, that picks its worker.
+     * @param stateMachine The state machine.
+     */
+    public XyzStateMachineMailbox mailbox(long id, XyzStateMachine stateMachine) {
+        // the mailbox already runs its commands one at a time.
+        return new XyzStateMachineMailbox(stateMachine, worker(id));
+    }
+
+    public int getWorkerCount() {
+        return workers.length;
+    }
+
+    /**
+     * Sets where the tasks that fail are reported. The mailboxes complete
+     * their futures with the errors of the commands, so this only gets the
+     * errors of tasks given directly to an executor(), created after this
+     * call. The errors that are not exceptions go to the uncaught exception
+     * handler of the worker, that keeps running.
+     *
+     * @param diagnostics The diagnostics sink, or `null` for the default one.
+     */
+    public void setDiagnostics(XyzDiagnostics diagnostics) {
+        this.diagnostics = diagnostics == null ? XyzDefaultDiagnostics.getInstance() : diagnostics;
+    }
+
+    /**
+     * Stops the workers after they run the tasks already queued, and runs
+     * the tasks queued while they were stopping. Afterwards the workers
+     * reject the tasks, so the executors and the mailboxes run them in the
+     * caller thread, still in order.
+     *
+     * If the caller is interrupted while waiting for the workers, the
+     * queued tasks are still run, next to the workers that didn't stop yet.
+     */
+    @Override
+    public void close() {
+        closed = true;
+
+        for (Worker worker : workers) {
+            LockSupport.unpark(worker.thread);
+        }
+
+        boolean interrupted = false;
+
+        for (Worker worker : workers) {
+            if (worker.thread == Thread.currentThread()) {
+                continue;
+            }
+
+            try {
+                worker.thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+                break;
+            }
+        }
+
+        // tasks that were added while the workers were stopping.
+        for (Worker worker : workers) {
+            Runnable task;
+
+            while ((task = worker.tasks.pollFirst()) != null) {
+                worker.runTask(task);
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Worker worker(long id) {
+        return workers[(int) Math.floorMod(id, (long) workers.length)];
+    }
+
+    private Runnable steal(Worker thief) {
+        for (int i = 1; i < workers.length; i++) {
+            Worker victim = workers[(thief.index + i) % workers.length];
+            Runnable task = victim.tasks.pollLast();
+
+            if (task != null) {
+                return task;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Wakes up the owner of the task, or an idle worker that can steal it
+     * if the owner is busy.
+     */
+    private void signal(Worker owner) {
+        if (owner.parked) {
+            LockSupport.unpark(owner.thread);
+            return;
+        }
+
+        for (Worker worker : workers) {
+            if (worker.parked) {
+                LockSupport.unpark(worker.thread);
+                return;
+            }
+        }
+    }
+
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            Object builder = ofVirtual.invoke(null);
+
+            // looked up on the public interface, the builder class itself is not exported.
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            throw new UnsupportedOperationException("Virtual threads are not available in this JDK.", e);
+        }
+    }
+
+    private class Worker implements Executor {
+        private final int index;
+        private final Deque<Runnable> tasks = new ConcurrentLinkedDeque<>();
+
+        private Thread thread;
+        private volatile boolean parked;
+
+        private Worker(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            if (closed) {
+                throw new RejectedExecutionException("The scheduler is closed.");
+            }
+
+            tasks.addLast(task);
+
+            // close() might have drained the queue after the check. If the
+            // task is still queued it is taken back and rejected, otherwise
+            // a worker or close() already runs it.
+            if (closed && tasks.removeLastOccurrence(task)) {
+                throw new RejectedExecutionException("The scheduler is closed.");
+            }
+
+            signal(this);
+        }
+
+        private void run() {
+            while (true) {
+                Runnable task = tasks.pollFirst();
+
+                if (task == null) {
+                    task = steal(this);
+                }
+
+                if (task != null) {
+                    runTask(task);
+                    continue;
+                }
+
+                if (closed) {
+                    return;
+                }
+
+                parked = true;
+
+                // checked again after announcing the park, so a task added
+                // meanwhile is not missed.
+                if (tasks.isEmpty() && !closed) {
+                    LockSupport.parkNanos(this, PARK_NANOS);
+                }
+
+                parked = false;
+            }
+        }
+
+        private void runTask(Runnable task) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                diagnostics.listenerFailed(e);
+            } catch (Error e) {
+                // the worker keeps running, otherwise its queue would only
+                // be served by stealing, and close() would wait for it.
+                Thread current = Thread.currentThread();
+                current.getUncaughtExceptionHandler().uncaughtException(current, e);
+            }
+        }
+    }
+}
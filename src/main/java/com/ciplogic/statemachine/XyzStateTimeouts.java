@@ -0,0 +1,279 @@
+package com.ciplogic.statemachine;
+
+import com.ciplogic.statemachine.impl.XyzDefaultDiagnostics;
+import com.ciplogic.statemachine.impl.XyzDiagnostics;
+import com.ciplogic.statemachine.impl.XyzFleetStateChangeEvent;
+import com.ciplogic.statemachine.impl.XyzStateChangeEvent;
+import com.ciplogic.statemachine.impl.XyzStateListenerRegistration;
+import com.ciplogic.statemachine.impl.XyzTimeout;
+import com.ciplogic.statemachine.impl.XyzTimingWheel;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+
+/**
+ * Moves state machines into another state when they stay too long in a
+ * state, e.g. "if the state machine stays in RUNNING for 30s, move it to
+ * STOPPED".
+ *
+ * The timeout is armed by an `afterEnter` listener and cancelled by an
+ * `afterLeave` listener. All the timeouts live in a single timing wheel,
+ * so arming and cancelling are O(1), and a single thread expires them,
+ * calling changeState for all the timeouts that expired in a tick.
+ */
+public class XyzStateTimeouts implements Closeable {
+    private final XyzTimingWheel wheel = new XyzTimingWheel();
+    private final long tickNanos;
+    private final LongSupplier clock;
+    private final long startNanos;
+
+    private final Thread driver;
+    private volatile boolean closed;
+
+    private volatile XyzDiagnostics diagnostics = XyzDefaultDiagnostics.getInstance();
+
+    // only used by the thread expiring the timeouts.
+    private final List<XyzTimeout> expired = new ArrayList<>();
+
+    public XyzStateTimeouts() {
+        this(10, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts a daemon thread that expires the timeouts every tick.
+     *
+     * @param tick The resolution of the timeouts.
+     * @param unit The unit of the tick.
+     */
+    public XyzStateTimeouts(long tick, TimeUnit unit) {
+        this(unit.toNanos(tick), System::nanoTime, true);
+    }
+
+    /**
+     * @param startDriver false when the caller expires the timeouts itself,
+     *                    with expireTimeouts().
+     */
+    XyzStateTimeouts(long tickNanos, LongSupplier clock, boolean startDriver) {
+        if (tickNanos <= 0) {
+            throw new IllegalArgumentException("Can not create state timeouts. The tick must be positive.");
+        }
+
+        this.tickNanos = tickNanos;
+        this.clock = clock;
+        this.startNanos = clock.getAsLong();
+
+        if (!startDriver) {
+            this.driver = null;
+            return;
+        }
+
+        this.driver = new Thread(this::expirePeriodically, "xyz-state-timeouts");
+        this.driver.setDaemon(true);
+        this.driver.start();
+    }
+
+    /**
+     * Moves the state machine into `targetState` when it stays in `state`
+     * longer than the delay.
+     *
+     * @return The registration of the listeners that arm and cancel the timeout.
+     */
+    public XyzStateListenerRegistration<XyzStateChangeEvent> timeout(XyzStateMachine stateMachine,
+                                                                     XyzState state,
+                                                                     long delay,
+                                                                     TimeUnit unit,
+                                                                     XyzState targetState) {
+        return timeout(stateMachine, null, state, delay, unit, targetState);
+    }
+
+    /**
+     * Same as timeout(stateMachine, state, ...), but the timeout is only
+     * armed when `state` is entered from `fromState`.
+     *
+     * @param fromState The state the transition starts from, or `null` for any state.
+     */
+    public XyzStateListenerRegistration<XyzStateChangeEvent> timeout(XyzStateMachine stateMachine,
+                                                                     XyzState fromState,
+                                                                     XyzState state,
+                                                                     long delay,
+                                                                     TimeUnit unit,
+                                                                     XyzState targetState) {
+        checkTimeout(state, delay, targetState);
+
+        long delayTicks = toTicks(delay, unit);
+        AtomicReference<XyzTimeout> armed = new AtomicReference<>();
+
+        Runnable expire = () -> {
+            if (stateMachine.getState() == state) {
+                stateMachine.changeState(targetState);
+            }
+        };
+
+        XyzStateListenerRegistration<XyzStateChangeEvent> enter = stateMachine.afterEnter(state, (XyzStateChangeEvent ev) -> {
+            if (fromState == null || ev.getPreviousState() == fromState) {
+                cancel(armed.getAndSet(wheel.schedule(delayTicks, expire)));
+            }
+        });
+
+        XyzStateListenerRegistration<XyzStateChangeEvent> leave = stateMachine.afterLeave(state, (XyzStateChangeEvent ev) -> {
+            cancel(armed.getAndSet(null));
+        });
+
+        return () -> {
+            enter.detach();
+            leave.detach();
+            cancel(armed.getAndSet(null));
+        };
+    }
+
+    /**
+     * Moves each state machine of the fleet into `targetState` when it stays
+     * in `state` longer than the delay. Only a reference per state machine
+     * is kept, besides the armed timeouts.
+     */
+    public XyzStateListenerRegistration<XyzFleetStateChangeEvent> timeout(XyzStateMachineFleet fleet,
+                                                                          XyzState state,
+                                                                          long delay,
+                                                                          TimeUnit unit,
+                                                                          XyzState targetState) {
+        return timeout(fleet, null, state, delay, unit, targetState);
+    }
+
+    /**
+     * @param fromState The state the transition starts from, or `null` for any state.
+     */
+    public XyzStateListenerRegistration<XyzFleetStateChangeEvent> timeout(XyzStateMachineFleet fleet,
+                                                                          XyzState fromState,
+                                                                          XyzState state,
+                                                                          long delay,
+                                                                          TimeUnit unit,
+                                                                          XyzState targetState) {
+        checkTimeout(state, delay, targetState);
+
+        long delayTicks = toTicks(delay, unit);
+        AtomicReferenceArray<XyzTimeout> armed = new AtomicReferenceArray<>(fleet.size());
+
+        XyzStateListenerRegistration<XyzFleetStateChangeEvent> enter = fleet.afterEnter(state, (XyzFleetStateChangeEvent ev) -> {
+            if (fromState != null && ev.getPreviousState() != fromState) {
+                return;
+            }
+
+            int id = ev.getId();
+            Runnable expire = () -> {
+                if (fleet.getState(id) == state) {
+                    fleet.changeState(id, targetState);
+                }
+            };
+
+            cancel(armed.getAndSet(id, wheel.schedule(delayTicks, expire)));
+        });
+
+        XyzStateListenerRegistration<XyzFleetStateChangeEvent> leave = fleet.afterLeave(state, (XyzFleetStateChangeEvent ev) -> {
+            cancel(armed.getAndSet(ev.getId(), null));
+        });
+
+        return () -> {
+            enter.detach();
+            leave.detach();
+
+            for (int id = 0; id < armed.length(); id++) {
+                cancel(armed.getAndSet(id, null));
+            }
+        };
+    }
+
+    /**
+     * Sets where the timeouts whose changeState fails are reported. The
+     * other timeouts that expired in the same tick still run.
+     *
+     * @param diagnostics The diagnostics sink, or `null` for the default one.
+     */
+    public void setDiagnostics(XyzDiagnostics diagnostics) {
+        this.diagnostics = diagnostics == null ? XyzDefaultDiagnostics.getInstance() : diagnostics;
+    }
+
+    /**
+     * @return How many timeouts are armed.
+     */
+    public int size() {
+        return wheel.size();
+    }
+
+    /**
+     * Expires the timeouts due until now, calling changeState for them
+     * outside the timing wheel lock.
+     *
+     * @return How many timeouts expired.
+     */
+    synchronized int expireTimeouts() {
+        long currentTick = (clock.getAsLong() - startNanos) / tickNanos;
+
+        expired.clear();
+        int count = wheel.advance(currentTick, expired);
+
+        for (XyzTimeout timeout : expired) {
+            try {
+                timeout.run();
+            } catch (RuntimeException e) {
+                diagnostics.listenerFailed(e);
+            }
+        }
+
+        expired.clear();
+
+        return count;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+
+        if (driver == null) {
+            return;
+        }
+
+        LockSupport.unpark(driver);
+
+        try {
+            driver.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void expirePeriodically() {
+        while (!closed) {
+            expireTimeouts();
+            LockSupport.parkNanos(this, tickNanos);
+        }
+    }
+
+    private long toTicks(long delay, TimeUnit unit) {
+        return (unit.toNanos(delay) + tickNanos - 1) / tickNanos;
+    }
+
+    private static void cancel(XyzTimeout timeout) {
+        if (timeout != null) {
+            timeout.cancel();
+        }
+    }
+
+    private static void checkTimeout(XyzState state, long delay, XyzState targetState) {
+        if (state == null || targetState == null) {
+            throw new IllegalArgumentException("Can not register timeout. The state and the target state are required.");
+        }
+
+        if (delay < 0) {
+            throw new IllegalArgumentException(String.format(
+                    "Can not register timeout. The delay %d is negative.",
+                    delay
+            ));
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.ciplogic.statemachine.impl;
+
+/**
+ * The outcomes of a bulk transition, one byte per state machine, in the
+ * order the state machines were given.
+ */
+public class XyzBulkResult {
+    private final byte[] outcomes;
+
+    public XyzBulkResult(int size) {
+        this.outcomes = new byte[size];
+    }
+
+    public int size() {
+        return outcomes.length;
+    }
+
+    public XyzTransitionOutcome getOutcome(int index) {
+        return XyzTransitionOutcome.valueOf(outcomes[index]);
+    }
+
+    /**
+     * @return How many state machines had the given outcome.
+     */
+    public int count(XyzTransitionOutcome outcome) {
+        int count = 0;
+
+        for (byte code : outcomes) {
+            if (code == outcome.ordinal()) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    void setOutcome(int index, XyzTransitionOutcome outcome) {
+        outcomes[index] = (byte) outcome.ordinal();
+    }
+}
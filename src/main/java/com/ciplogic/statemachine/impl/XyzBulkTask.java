@@ -0,0 +1,58 @@
+package com.ciplogic.statemachine.impl;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntFunction;
+
+/**
+ * Applies a transition to a range of state machines, splitting the range
+ * between the workers of a ForkJoinPool.
+ */
+public class XyzBulkTask extends RecursiveAction {
+    // below this the range is not split anymore.
+    private static final int THRESHOLD = 256;
+
+    private final IntFunction<XyzTransitionOutcome> transition;
+    private final XyzBulkResult result;
+    private final int from;
+    private final int to;
+
+    private XyzBulkTask(IntFunction<XyzTransitionOutcome> transition, XyzBulkResult result, int from, int to) {
+        this.transition = transition;
+        this.result = result;
+        this.from = from;
+        this.to = to;
+    }
+
+    /**
+     * @param pool Where the transitions run.
+     * @param size How many state machines there are.
+     * @param transition Applies the transition to the state machine with the given index.
+     */
+    public static XyzBulkResult run(ForkJoinPool pool, int size, IntFunction<XyzTransitionOutcome> transition) {
+        if (pool == null) {
+            throw new IllegalArgumentException("Can not run bulk transition. The pool is null.");
+        }
+
+        XyzBulkResult result = new XyzBulkResult(size);
+        pool.invoke(new XyzBulkTask(transition, result, 0, size));
+
+        return result;
+    }
+
+    @Override
+    protected void compute() {
+        if (to - from <= THRESHOLD) {
+            for (int i = from; i < to; i++) {
+                result.setOutcome(i, transition.apply(i));
+            }
+
+            return;
+        }
+
+        int middle = (from + to) >>> 1;
+
+        invokeAll(new XyzBulkTask(transition, result, from, middle),
+                  new XyzBulkTask(transition, result, middle, to));
+    }
+}
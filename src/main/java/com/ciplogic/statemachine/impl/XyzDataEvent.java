@@ -12,6 +12,14 @@ public class XyzDataEvent<T> {
 		this.data = data;
 	}
 
+	/**
+	 * Reuses the event for another data item.
+	 */
+	void reset(T data) {
+		this.data = data;
+		this.consumed = false;
+	}
+
 	/**
 	 * Consuming a data event makes it unavailable for the other listeners that were
 	 * registered after this listener.
@@ -27,4 +35,11 @@ public class XyzDataEvent<T> {
 	public T getData() {
 		return data;
 	}
+
+	/**
+	 * @return The type the listeners are looked up with, or `null` for `null` data.
+	 */
+	Class<?> getDataType() {
+		return data == null ? null : data.getClass();
+	}
 }
@@ -2,25 +2,34 @@ package com.ciplogic.statemachine.impl;
 
 import com.ciplogic.statemachine.XyzState;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.LinkedHashSet;
-import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.Consumer;
 import java.util.function.Function;
 
 /**
  * Data listeners are listeners invoked when data is being sent into
- * the state machine.
+ * the state machine. As for the state listeners, the listeners of a
+ * parent are notified first.
  */
 public class XyzDataListeners<T> {
-    private Map<XyzState, Set<Function<XyzDataEvent<T>, XyzState>>> dataListeners = new HashMap<>();
+    private final XyzDataListeners<T> parent;
 
-    private ReadWriteLock readWriteLock = new ReentrantReadWriteLock();
+    private final XyzListenerTable<Function<XyzDataEvent<T>, XyzState>> dataListeners = new XyzListenerTable<>();
+
+    public XyzDataListeners() {
+        this(null);
+    }
+
+    /**
+     * @param parent The listeners notified before these ones, or `null`.
+     *               Only one level of parents is supported.
+     */
+    public XyzDataListeners(XyzDataListeners<T> parent) {
+        if (parent != null && parent.parent != null) {
+            throw new IllegalArgumentException("Can not create data listeners. The parent listeners have a parent already.");
+        }
+
+        this.parent = parent;
+    }
 
     public XyzDataListenerRegistration<T> onData(XyzState state, Consumer<XyzDataEvent<T>> callback) {
         return onData(state, (e) -> {
@@ -31,70 +40,79 @@ public class XyzDataListeners<T> {
     }
 
     public XyzDataListenerRegistration<T> onData(XyzState state, Function<XyzDataEvent<T>, XyzState> callback) {
-        return addListener(state, callback, dataListeners);
+        return addListener(state, null, callback, dataListeners);
     }
 
-    private XyzDataListenerRegistration<T> addListener(XyzState state,
-                                                       Function<XyzDataEvent<T>, XyzState> callback,
-                                                       Map<XyzState, Set<Function<XyzDataEvent<T>, XyzState>>> callbackCollection) {
-        try {
-            readWriteLock.writeLock().lock();
-
-            if (state != null) {
-                return registerDataListener(state, callback, callbackCollection);
-            }
-
-            XyzCompositeDataListenerRegistration<T> result = new XyzCompositeDataListenerRegistration<>();
+    /**
+     * Registers a listener that is called only for data that is an instance
+     * of the given type (so never for `null` data).
+     */
+    public XyzDataListenerRegistration<T> onData(XyzState state,
+                                                 Class<?> type,
+                                                 Function<XyzDataEvent<T>, XyzState> callback) {
+        if (type == null) {
+            throw new IllegalArgumentException("Can not register data listener. The data type is null.");
+        }
 
-            for (XyzState state1 : XyzState.values()) {
-                result.addListenerRegistration(registerDataListener(state1, callback, callbackCollection));
-            }
+        return addListener(state, type, callback, dataListeners);
+    }
 
-            return result;
-        } finally {
-            readWriteLock.writeLock().unlock();
-        }
+    /**
+     * Registers a listener for long data, called without boxing for the
+     * data sent with sendLong.
+     */
+    @SuppressWarnings("unchecked")
+    public XyzDataListenerRegistration<T> onLong(XyzState state, XyzLongDataListener callback) {
+        return addListener(state, Long.class, (Function<XyzDataEvent<T>, XyzState>) (Function<?, ?>) new XyzPrimitiveDataCallback(callback, null, null), dataListeners);
     }
 
-    private XyzDataListenerRegistration<T> registerDataListener(XyzState state, Function<XyzDataEvent<T>, XyzState> callback, Map<XyzState, Set<Function<XyzDataEvent<T>, XyzState>>> callbackCollection) {
-        Set<Function<XyzDataEvent<T>, XyzState>> items = callbackCollection.get(state);
+    @SuppressWarnings("unchecked")
+    public XyzDataListenerRegistration<T> onInt(XyzState state, XyzIntDataListener callback) {
+        return addListener(state, Integer.class, (Function<XyzDataEvent<T>, XyzState>) (Function<?, ?>) new XyzPrimitiveDataCallback(null, callback, null), dataListeners);
+    }
 
-        if (items == null) {
-			items = new LinkedHashSet<>();
-			callbackCollection.put(state, items);
-		}
+    @SuppressWarnings("unchecked")
+    public XyzDataListenerRegistration<T> onDouble(XyzState state, XyzDoubleDataListener callback) {
+        return addListener(state, Double.class, (Function<XyzDataEvent<T>, XyzState>) (Function<?, ?>) new XyzPrimitiveDataCallback(null, null, callback), dataListeners);
+    }
 
-        items.add(callback);
+    private XyzDataListenerRegistration<T> addListener(XyzState state,
+                                                       Class<?> type,
+                                                       Function<XyzDataEvent<T>, XyzState> callback,
+                                                       XyzListenerTable<Function<XyzDataEvent<T>, XyzState>> callbackCollection) {
+        if (state != null) {
+            return registerDataListener(state, type, callback, callbackCollection);
+        }
 
-        return new XyzDefaultDataListenerRegistration<T>(this, callbackCollection, callback);
-    }
+        XyzCompositeDataListenerRegistration<T> result = new XyzCompositeDataListenerRegistration<>();
 
-    public void removeListener(Map<XyzState, Set<Function<XyzDataEvent<T>, XyzState>>> callbackCollection,
-                               Function<XyzDataEvent<T>, XyzState> callback) {
-        try {
-            readWriteLock.writeLock().lock();
-            callbackCollection.remove(callback);
-        } finally {
-            readWriteLock.writeLock().unlock();
+        for (XyzState state1 : XyzState.values()) {
+            result.addListenerRegistration(registerDataListener(state1, type, callback, callbackCollection));
         }
-    }
 
-    public XyzDataListenersSnapshot<T> copy(XyzState state) {
-        return copyEventListeners(state, dataListeners);
+        return result;
     }
 
-    private XyzDataListenersSnapshot<T> copyEventListeners(XyzState event,
-                                                           Map<XyzState, Set<Function<XyzDataEvent<T>, XyzState>>> dataListeners) {
-        try {
-            readWriteLock.readLock().lock();
+    private XyzDataListenerRegistration<T> registerDataListener(XyzState state,
+                                                                Class<?> type,
+                                                                Function<XyzDataEvent<T>, XyzState> callback,
+                                                                XyzListenerTable<Function<XyzDataEvent<T>, XyzState>> callbackCollection) {
+        XyzDefaultDataListenerRegistration<T> registration =
+                new XyzDefaultDataListenerRegistration<>(callbackCollection, state, type, callback);
+        callbackCollection.add(registration);
 
-            Set<Function<XyzDataEvent<T>, XyzState>> dataListenerCallbacks = dataListeners.get(event);
+        return registration;
+    }
 
-            return new XyzDataListenersSnapshot<T>(
-                    dataListenerCallbacks == null ? Collections.emptyList() : new ArrayList<>(dataListenerCallbacks)
-            );
-        } finally {
-            readWriteLock.readLock().unlock();
+    /**
+     * The snapshot only references the current listener array, since
+     * the published slots are never moved, only cleared when detached.
+     */
+    public XyzDataListenersSnapshot<T> copy(XyzState state) {
+        if (parent == null) {
+            return new XyzDataListenersSnapshot<T>(dataListeners.get(state));
         }
+
+        return new XyzDataListenersSnapshot<T>(parent.dataListeners.get(state), dataListeners.get(state));
     }
 }
@@ -2,28 +2,102 @@ package com.ciplogic.statemachine.impl;
 
 import com.ciplogic.statemachine.XyzState;
 
-import java.util.List;
 import java.util.function.Function;
 
 public class XyzDataListenersSnapshot<T> {
-    private final List<Function<XyzDataEvent<T>, XyzState>> dataListeners;
+    // the listeners inherited from a parent, notified before the own ones.
+    private final XyzListenerTable.Slots parentDataListeners;
+    private final XyzListenerTable.Slots dataListeners;
 
-    public XyzDataListenersSnapshot(List<Function<XyzDataEvent<T>, XyzState>> dataListeners) {
+    public XyzDataListenersSnapshot(XyzListenerTable.Slots dataListeners) {
+        this(XyzListenerTable.NO_LISTENERS, dataListeners);
+    }
 
+    public XyzDataListenersSnapshot(XyzListenerTable.Slots parentDataListeners,
+                                    XyzListenerTable.Slots dataListeners) {
+        this.parentDataListeners = parentDataListeners;
         this.dataListeners = dataListeners;
     }
 
-    public XyzState notifyData(T data) {
+    /**
+     * @param data The data to send.
+     * @param metrics Where the listener latencies are recorded, or `null`.
+     * @return The state requested by the listeners, or `null`.
+     */
+    public XyzState notifyData(T data, XyzMetrics metrics) {
+        return notifyData(new XyzDataEvent<>(data), metrics);
+    }
+
+    /**
+     * Notifies the listeners reusing an existing event, so batches of data
+     * don't allocate an event per item.
+     * @param data The data to send.
+     * @param dataEvent The event to reuse. It gets reset with the new data.
+     * @param metrics Where the listener latencies are recorded, or `null`.
+     * @return The state requested by the listeners, or `null`.
+     */
+    public XyzState notifyData(T data, XyzDataEvent<T> dataEvent, XyzMetrics metrics) {
+        dataEvent.reset(data);
+
+        return notifyData(dataEvent, metrics);
+    }
+
+    /**
+     * Notifies the listeners with a long, int or double, without boxing it
+     * for the primitive listeners, and reusing the data event of the thread.
+     *
+     * @param type Long.class, Integer.class or Double.class.
+     * @param longValue The data, for longs and ints.
+     * @param doubleValue The data, for doubles.
+     */
+    @SuppressWarnings("unchecked")
+    public XyzState notifyPrimitive(Class<?> type, long longValue, double doubleValue, XyzMetrics metrics) {
+        XyzPrimitiveDataEvent dataEvent = XyzPrimitiveDataEvent.acquire();
+
+        try {
+            dataEvent.reset(type, longValue, doubleValue);
+            return notifyData((XyzDataEvent<T>) (XyzDataEvent<?>) dataEvent, metrics);
+        } finally {
+            dataEvent.release();
+        }
+    }
+
+    private XyzState notifyData(XyzDataEvent<T> dataEvent, XyzMetrics metrics) {
         XyzState result = null;
 
-        XyzDataEvent<T> dataEvent = new XyzDataEvent<>(data);
+        if (!parentDataListeners.isEmpty()) {
+            result = notifyData(dataEvent, parentDataListeners, null, metrics);
+        }
+
+        if (!dataListeners.isEmpty()) {
+            result = notifyData(dataEvent, dataListeners, result, metrics);
+        }
+
+        return result;
+    }
+
+    /**
+     * @param result The state requested by the listeners notified before, or `null`.
+     */
+    private XyzState notifyData(XyzDataEvent<T> dataEvent,
+                                XyzListenerTable.Slots slots,
+                                XyzState result,
+                                XyzMetrics metrics) {
+        // only the listeners that accept this type of data are called.
+        XyzListenerSlot<?>[] listeners = slots.forDataType(dataEvent.getDataType());
 
-        for (int i = 0; i < dataListeners.size(); i++) {
+        for (int i = 0; i < listeners.length; i++) {
             if (dataEvent.isConsumed()) {
                 break;
             }
 
-            XyzState newResult = throwEventualErrors(dataEvent, dataListeners.get(i));
+            if (listeners[i].isDetached()) { // detached in the meantime
+                continue;
+            }
+
+            XyzState newResult = metrics == null ?
+                    throwEventualErrors(dataEvent, listeners[i].callback) :
+                    measure(dataEvent, listeners[i].callback, metrics);
 
             if (newResult == null) {
                 continue;
@@ -45,9 +119,25 @@ public class XyzDataListenersSnapshot<T> {
         return result;
     }
 
-    private XyzState throwEventualErrors(XyzDataEvent<T> data, Function<XyzDataEvent<T>, XyzState> callback) {
+    private XyzState measure(XyzDataEvent<T> data, Object callback, XyzMetrics metrics) {
+        long start = System.nanoTime();
+
         try {
-            return callback.apply(data);
+            return throwEventualErrors(data, callback);
+        } finally {
+            metrics.dataListenerCalled(System.nanoTime() - start);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private XyzState throwEventualErrors(XyzDataEvent<T> data, Object callback) {
+        try {
+            // both classes are final, so these are cheap exact type checks.
+            if (callback instanceof XyzPrimitiveDataCallback && data instanceof XyzPrimitiveDataEvent) {
+                return ((XyzPrimitiveDataCallback) callback).applyPrimitive((XyzPrimitiveDataEvent) data);
+            }
+
+            return ((Function<XyzDataEvent<T>, XyzState>) callback).apply(data);
         } catch (Exception e) {
             if (e instanceof XyzStateException) {
                 throw e;
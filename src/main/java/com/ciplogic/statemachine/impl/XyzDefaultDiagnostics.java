@@ -0,0 +1,111 @@
+package com.ciplogic.statemachine.impl;
+
+import com.ciplogic.statemachine.XyzState;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the problems, and writes at most one of them per interval to
+ * System.err, together with how many were not written since the last one.
+ * Recording a problem only increments a counter, so a burst of bad input
+ * doesn't serialize the threads on the System.err lock.
+ */
+public class XyzDefaultDiagnostics implements XyzDiagnostics {
+    private static final XyzDefaultDiagnostics INSTANCE = new XyzDefaultDiagnostics(1, TimeUnit.SECONDS);
+
+    private final LongAdder invalidTransitions = new LongAdder();
+    private final LongAdder listenerFailures = new LongAdder();
+    private final LongAdder journalFailures = new LongAdder();
+
+    private final long reportIntervalNanos;
+    private final AtomicLong nextReportTime;
+    private final LongAdder suppressedReports = new LongAdder();
+
+    public XyzDefaultDiagnostics(long reportInterval, TimeUnit timeUnit) {
+        this.reportIntervalNanos = timeUnit.toNanos(reportInterval);
+        this.nextReportTime = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * @return The diagnostics used by the state machines that don't have their own.
+     */
+    public static XyzDefaultDiagnostics getInstance() {
+        return INSTANCE;
+    }
+
+    @Override
+    public void invalidTransition(XyzState fromState, XyzState toState) {
+        invalidTransitions.increment();
+
+        if (!shouldReport()) {
+            return;
+        }
+
+        System.err.println(String.format(
+                "No transition exists between %s -> %s.%s",
+                fromState.name(),
+                toState.name(),
+                suppressedMessage()
+        ));
+    }
+
+    @Override
+    public void listenerFailed(Exception error) {
+        listenerFailures.increment();
+
+        if (!shouldReport()) {
+            return;
+        }
+
+        System.err.printf("%s - %s%s\n", error, error.getMessage(), suppressedMessage());
+        error.printStackTrace(System.err);
+    }
+
+    @Override
+    public void journalFailed(Exception error) {
+        journalFailures.increment();
+
+        if (!shouldReport()) {
+            return;
+        }
+
+        System.err.printf("Unable to flush the journal. %s - %s%s\n", error, error.getMessage(), suppressedMessage());
+        error.printStackTrace(System.err);
+    }
+
+    public long getInvalidTransitionCount() {
+        return invalidTransitions.sum();
+    }
+
+    public long getListenerFailureCount() {
+        return listenerFailures.sum();
+    }
+
+    public long getJournalFailureCount() {
+        return journalFailures.sum();
+    }
+
+    private boolean shouldReport() {
+        long now = System.nanoTime();
+        long nextReport = nextReportTime.get();
+
+        if (now - nextReport < 0 || !nextReportTime.compareAndSet(nextReport, now + reportIntervalNanos)) {
+            suppressedReports.increment();
+            return false;
+        }
+
+        return true;
+    }
+
+    private String suppressedMessage() {
+        long suppressed = suppressedReports.sumThenReset();
+
+        if (suppressed == 0) {
+            return "";
+        }
+
+        return String.format(" (%d other problems were not reported)", suppressed);
+    }
+}
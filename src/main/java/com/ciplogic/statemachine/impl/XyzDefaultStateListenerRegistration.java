@@ -2,25 +2,13 @@ package com.ciplogic.statemachine.impl;
 
 import com.ciplogic.statemachine.XyzState;
 
-import java.util.Map;
-import java.util.Set;
 import java.util.function.Consumer;
 
-public class XyzDefaultStateListenerRegistration<T> implements XyzStateListenerRegistration {
-    private XyzStateListeners<T> stateListeners;
-    private final Map<XyzState, Set<Consumer<T>>> callbackCollection;
-    private final Consumer<T> callback;
-
-    public XyzDefaultStateListenerRegistration(XyzStateListeners<T> stateListeners,
-                                               Map<XyzState, Set<Consumer<T>>> callbackCollection,
+public class XyzDefaultStateListenerRegistration<T> extends XyzListenerSlot<Consumer<T>>
+                                                   implements XyzStateListenerRegistration<T> {
+    public XyzDefaultStateListenerRegistration(XyzListenerTable<Consumer<T>> callbackCollection,
+                                               XyzState state,
                                                Consumer<T> callback) {
-        this.stateListeners = stateListeners;
-        this.callbackCollection = callbackCollection;
-        this.callback = callback;
-    }
-
-    @Override
-    public void detach() {
-        stateListeners.removeListener(callbackCollection, callback);
+        super(callbackCollection, state, null, callback);
     }
 }
@@ -0,0 +1,31 @@
+package com.ciplogic.statemachine.impl;
+
+import com.ciplogic.statemachine.XyzState;
+
+/**
+ * Receives the problems the state machine runs into, that don't stop it
+ * from working. The methods are called on the hot path, so they should
+ * only record the problem, and do any formatting or I/O lazily.
+ */
+public interface XyzDiagnostics {
+    /**
+     * A changeState was requested for a transition that doesn't exist.
+     * The state machine stays in the `fromState`.
+     */
+    void invalidTransition(XyzState fromState, XyzState toState);
+
+    /**
+     * A state change listener threw an exception. The exception was
+     * swallowed, and the state machine continues with the next listener.
+     */
+    void listenerFailed(Exception error);
+
+    /**
+     * Forcing the journal to disk failed in the background. The records
+     * stay in the journal, and the next flush tries again. By default it is
+     * reported like the other problems of the default diagnostics.
+     */
+    default void journalFailed(Exception error) {
+        XyzDefaultDiagnostics.getInstance().journalFailed(error);
+    }
+}
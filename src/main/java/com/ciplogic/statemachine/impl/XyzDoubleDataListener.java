@@ -0,0 +1,24 @@
+package com.ciplogic.statemachine.impl;
+
+import com.ciplogic.statemachine.XyzState;
+
+import java.util.function.Function;
+
+/**
+ * A data listener for double data, called without boxing the data when it
+ * is sent with sendDouble. Data sent as a Double object is unboxed.
+ */
+@FunctionalInterface
+public interface XyzDoubleDataListener extends Function<XyzDataEvent<Double>, XyzState> {
+    /**
+     * @param event The event, to consume the data.
+     * @param data The data.
+     * @return The state where the state machine should go, or `null`.
+     */
+    XyzState onData(XyzDataEvent<Double> event, double data);
+
+    @Override
+    default XyzState apply(XyzDataEvent<Double> event) {
+        return onData(event, event.getData());
+    }
+}
@@ -0,0 +1,21 @@
+package com.ciplogic.statemachine.impl;
+
+/**
+ * Data sent into one of the state machines in a fleet.
+ * @param <T>
+ */
+public class XyzFleetDataEvent<T> extends XyzDataEvent<T> {
+	private final int id;
+
+	public XyzFleetDataEvent(int id, T data) {
+		super(data);
+		this.id = id;
+	}
+
+	/**
+	 * @return The id of the state machine in the fleet.
+	 */
+	public int getId() {
+		return id;
+	}
+}
@@ -0,0 +1,22 @@
+package com.ciplogic.statemachine.impl;
+
+import com.ciplogic.statemachine.XyzState;
+
+/**
+ * A state change of one of the state machines in a fleet.
+ */
+public class XyzFleetStateChangeEvent extends XyzStateChangeEvent {
+    private final int id;
+
+    public XyzFleetStateChangeEvent(int id, XyzState previousState, XyzState targetState, Object data) {
+        super(previousState, targetState, data);
+        this.id = id;
+    }
+
+    /**
+     * @return The id of the state machine in the fleet.
+     */
+    public int getId() {
+        return id;
+    }
+}
@@ -0,0 +1,24 @@
+package com.ciplogic.statemachine.impl;
+
+import com.ciplogic.statemachine.XyzState;
+
+import java.util.function.Function;
+
+/**
+ * A data listener for int data, called without boxing the data when it
+ * is sent with sendInt. Data sent as an Integer object is unboxed.
+ */
+@FunctionalInterface
+public interface XyzIntDataListener extends Function<XyzDataEvent<Integer>, XyzState> {
+    /**
+     * @param event The event, to consume the data.
+     * @param data The data.
+     * @return The state where the state machine should go, or `null`.
+     */
+    XyzState onData(XyzDataEvent<Integer> event, int data);
+
+    @Override
+    default XyzState apply(XyzDataEvent<Integer> event) {
+        return onData(event, event.getData());
+    }
+}
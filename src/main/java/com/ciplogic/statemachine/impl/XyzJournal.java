@@ -0,0 +1,420 @@
+package com.ciplogic.statemachine.impl;
+
+import com.ciplogic.statemachine.XyzState;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.ToLongFunction;
+
+/**
+ * An append-only journal of the committed transitions, kept in a
+ * preallocated memory-mapped file.
+ *
+ * Every transition is a fixed size record: the timestamp, the id of the
+ * state machine, a reference to the data, the from and to states, and a
+ * marker written last, so records that were not completely written are
+ * ignored at replay. Appending is just a few writes into the mapped
+ * memory. A background thread forces the file to disk every few
+ * milliseconds (group commit), and awaitDurable() waits until a record
+ * is on disk.
+ *
+ * When the journal gets full, appending fails. Use compact() after
+ * writing a snapshot of the state machines, to drop the records the
+ * snapshot already contains.
+ */
+public class XyzJournal implements Closeable {
+    private static final XyzState[] STATES = XyzState.values();
+
+    private static final long FILE_MAGIC = 0x58595a4a524e4c31L; // "XYZJRNL1"
+    private static final int RECORD_MAGIC = 0x58595a52; // "XYZR"
+
+    private static final int HEADER_SIZE = 32;
+    private static final int RECORD_SIZE = 32;
+
+    private static final int TIMESTAMP_OFFSET = 0;
+    private static final int ID_OFFSET = 8;
+    private static final int DATA_OFFSET = 16;
+    private static final int FROM_OFFSET = 24;
+    private static final int TO_OFFSET = 25;
+    private static final int MARKER_OFFSET = 28;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private final ToLongFunction<Object> dataReference;
+
+    // appends share the lock, compacting and finding a durable point take it exclusively.
+    private final StampedLock lock = new StampedLock();
+
+    // records before `base` were dropped by compacting. Guarded by the lock.
+    private long base;
+
+    // claimed with a CAS while holding the lock shared, changed otherwise only holding it exclusively.
+    private final AtomicInteger count = new AtomicInteger();
+
+    private volatile XyzDiagnostics diagnostics = XyzDefaultDiagnostics.getInstance();
+
+    private final Object flushLock = new Object();
+    private final Thread flusher;
+    private final long flushIntervalNanos;
+
+    // guarded by the flushLock.
+    private long durableSequence;
+    private boolean flushRequested;
+    private boolean closed;
+
+    /**
+     * Opens the journal without data references.
+     * @see #XyzJournal(Path, int, long, ToLongFunction)
+     */
+    public XyzJournal(Path file, int capacity) throws IOException {
+        this(file, capacity, 2, data -> 0);
+    }
+
+    /**
+     * Opens the journal, creating the file if needed. An existing journal
+     * keeps its records, so they can be replayed.
+     *
+     * @param file The journal file.
+     * @param capacity How many records the file holds.
+     * @param flushIntervalMillis How often the records are forced to disk.
+     * @param dataReference Converts the data of the transitions into the
+     *                      reference stored in the records (e.g. an id).
+     */
+    public XyzJournal(Path file,
+                      int capacity,
+                      long flushIntervalMillis,
+                      ToLongFunction<Object> dataReference) throws IOException {
+        if (capacity <= 0 || capacity > (Integer.MAX_VALUE - HEADER_SIZE) / RECORD_SIZE) {
+            throw new IllegalArgumentException(String.format(
+                    "Can not open journal. The capacity %d is invalid.",
+                    capacity
+            ));
+        }
+
+        if (flushIntervalMillis <= 0) {
+            throw new IllegalArgumentException("Can not open journal. The flush interval must be positive.");
+        }
+
+        if (dataReference == null) {
+            throw new IllegalArgumentException("Can not open journal. The data reference function is null.");
+        }
+
+        this.capacity = capacity;
+        this.dataReference = dataReference;
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+
+        this.channel = FileChannel.open(file,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+
+        try {
+            boolean created = channel.size() == 0;
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * RECORD_SIZE);
+
+            if (created) {
+                buffer.putLong(0, FILE_MAGIC);
+                buffer.putLong(8, XyzSnapshotWriter.schemaId());
+            } else {
+                checkHeader();
+            }
+
+            this.count.set(countRecords());
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+
+        this.durableSequence = count.get();
+
+        this.flusher = new Thread(this::flushPeriodically, "xyz-journal-flusher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * Sets where the failures of the background flushes are reported.
+     *
+     * @param diagnostics The diagnostics sink, or `null` for the default one.
+     */
+    public void setDiagnostics(XyzDiagnostics diagnostics) {
+        this.diagnostics = diagnostics == null ? XyzDefaultDiagnostics.getInstance() : diagnostics;
+    }
+
+    /**
+     * Appends a committed transition.
+     *
+     * @return The sequence of the record, to pass to awaitDurable().
+     */
+    public long append(long stateMachineId, XyzState fromState, XyzState toState, Object data) {
+        long reference = data == null ? 0 : dataReference.applyAsLong(data);
+        long stamp = lock.readLock();
+
+        try {
+            int index;
+
+            do {
+                index = count.get();
+
+                if (index >= capacity) {
+                    throw new XyzStateException(String.format(
+                            "Unable to journal the transition %s -> %s. The journal is full (%d records).",
+                            fromState,
+                            toState,
+                            capacity
+                    ));
+                }
+            } while (!count.compareAndSet(index, index + 1));
+
+            int offset = HEADER_SIZE + index * RECORD_SIZE;
+
+            buffer.putLong(offset + TIMESTAMP_OFFSET, System.currentTimeMillis());
+            buffer.putLong(offset + ID_OFFSET, stateMachineId);
+            buffer.putLong(offset + DATA_OFFSET, reference);
+            buffer.put(offset + FROM_OFFSET, encode(fromState));
+            buffer.put(offset + TO_OFFSET, encode(toState));
+            buffer.putInt(offset + MARKER_OFFSET, RECORD_MAGIC);
+
+            return base + index + 1;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * @return The sequence of the last appended record.
+     */
+    public long sequence() {
+        long stamp = lock.readLock();
+
+        try {
+            return base + count.get();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Waits until the record with the given sequence (and all the ones
+     * before it) is forced to disk. Many threads waiting are served by the
+     * same force.
+     */
+    public void awaitDurable(long sequence) throws InterruptedException {
+        synchronized (flushLock) {
+            while (durableSequence < sequence && !closed) {
+                flushRequested = true;
+                flushLock.notifyAll();
+                flushLock.wait();
+            }
+        }
+    }
+
+    /**
+     * Forces all the appended records to disk now.
+     */
+    public void flush() throws IOException {
+        long sequence = durablePoint();
+        buffer.force();
+
+        synchronized (flushLock) {
+            if (durableSequence < sequence) {
+                durableSequence = sequence;
+            }
+
+            flushLock.notifyAll();
+        }
+    }
+
+    /**
+     * Calls the consumer for every record in the journal, in the order
+     * they were appended.
+     *
+     * @return How many records were replayed.
+     */
+    public int replay(XyzJournalRecordConsumer consumer) {
+        long stamp = lock.writeLock();
+
+        try {
+            int records = count.get();
+
+            for (int i = 0; i < records; i++) {
+                int offset = HEADER_SIZE + i * RECORD_SIZE;
+
+                consumer.accept(
+                        buffer.getLong(offset + ID_OFFSET),
+                        decode(buffer.get(offset + FROM_OFFSET)),
+                        decode(buffer.get(offset + TO_OFFSET)),
+                        buffer.getLong(offset + TIMESTAMP_OFFSET),
+                        buffer.getLong(offset + DATA_OFFSET)
+                );
+            }
+
+            return records;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Drops the records up to the given sequence. Take the sequence()
+     * before writing a snapshot of the state machines, and compact with it
+     * when the snapshot is written. The records appended while writing the
+     * snapshot are kept, and replaying them on top of the snapshot gives
+     * the same states, since replaying just sets the latest states.
+     *
+     * The kept records are copied to the start of the file, and forced to
+     * disk before the markers after them are cleared, since the pages of
+     * the file can reach the disk in any order. Once the copies are forced,
+     * a crash only replays some kept records twice, which gives the same
+     * states. A crash while the records are being copied can still leave
+     * only some of the copies on disk, and lose kept records that were
+     * already durable: that window lasts until the first force.
+     *
+     * @param sequence The last sequence contained in the snapshot.
+     */
+    public void compact(long sequence) throws IOException {
+        long stamp = lock.writeLock();
+
+        try {
+            int records = count.get();
+            int dropped = (int) Math.min(records, Math.max(0, sequence - base));
+
+            if (dropped == 0) {
+                return;
+            }
+
+            int kept = records - dropped;
+
+            for (int i = 0; i < kept; i++) {
+                copyRecord(dropped + i, i);
+            }
+
+            // the copies are on disk before the old records are cleared.
+            buffer.force();
+
+            for (int i = kept; i < records; i++) {
+                buffer.putInt(HEADER_SIZE + i * RECORD_SIZE + MARKER_OFFSET, 0);
+            }
+
+            base += dropped;
+            count.set(kept);
+
+            buffer.force();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (flushLock) {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+            flushLock.notifyAll();
+        }
+
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        buffer.force();
+        channel.close();
+    }
+
+    /**
+     * Waits for the appends in progress, and gets the sequence that will be
+     * durable when the buffer is forced.
+     */
+    private long durablePoint() {
+        long stamp = lock.writeLock();
+
+        try {
+            return base + count.get();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private void flushPeriodically() {
+        while (true) {
+            synchronized (flushLock) {
+                if (!flushRequested && !closed) {
+                    try {
+                        TimeUnit.NANOSECONDS.timedWait(flushLock, flushIntervalNanos);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+
+                if (closed) {
+                    flushLock.notifyAll();
+                    return;
+                }
+
+                flushRequested = false;
+            }
+
+            try {
+                flush();
+            } catch (IOException | RuntimeException e) {
+                diagnostics.journalFailed(e);
+            }
+        }
+    }
+
+    private void copyRecord(int from, int to) {
+        int fromOffset = HEADER_SIZE + from * RECORD_SIZE;
+        int toOffset = HEADER_SIZE + to * RECORD_SIZE;
+
+        for (int i = 0; i < RECORD_SIZE; i += 8) {
+            buffer.putLong(toOffset + i, buffer.getLong(fromOffset + i));
+        }
+    }
+
+    private void checkHeader() {
+        if (buffer.getLong(0) != FILE_MAGIC) {
+            throw new XyzStateException("Unable to open journal. The file is not a XyzStateMachine journal.");
+        }
+
+        if (buffer.getLong(8) != XyzSnapshotWriter.schemaId()) {
+            throw new XyzStateException("Unable to open journal. It was written for a different XyzState schema.");
+        }
+    }
+
+    /**
+     * The records end at the first one without a marker.
+     */
+    private int countRecords() {
+        int result = 0;
+
+        while (result < capacity &&
+               buffer.getInt(HEADER_SIZE + result * RECORD_SIZE + MARKER_OFFSET) == RECORD_MAGIC) {
+            result++;
+        }
+
+        return result;
+    }
+
+    private static byte encode(XyzState state) {
+        return state == null ? 0 : (byte) (state.ordinal() + 1);
+    }
+
+    private static XyzState decode(byte value) {
+        int ordinal = value & 0xff;
+
+        return ordinal == 0 || ordinal > STATES.length ? null : STATES[ordinal - 1];
+    }
+}
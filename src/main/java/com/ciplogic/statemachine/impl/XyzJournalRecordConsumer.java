@@ -0,0 +1,18 @@
+package com.ciplogic.statemachine.impl;
+
+import com.ciplogic.statemachine.XyzState;
+
+/**
+ * Receives the records of a XyzJournal when it is replayed.
+ */
+@FunctionalInterface
+public interface XyzJournalRecordConsumer {
+    /**
+     * @param stateMachineId The id of the state machine.
+     * @param fromState The state that was left, or `null` if the state machine was initialized.
+     * @param toState The state that was entered.
+     * @param timestamp When the transition was committed, in epoch milliseconds.
+     * @param dataReference The reference of the transition data, or 0 if there was no data.
+     */
+    void accept(long stateMachineId, XyzState fromState, XyzState toState, long timestamp, long dataReference);
+}
@@ -0,0 +1,92 @@
+package com.ciplogic.statemachine.impl;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of latencies in nanoseconds, with power of two buckets.
+ * Recording is a single LongAdder increment, so it can be used from
+ * many threads at once.
+ */
+public class XyzLatencyHistogram {
+    private static final int BUCKETS = 64;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+
+    public XyzLatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void record(long nanos) {
+        buckets[bucket(nanos)].increment();
+    }
+
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+        }
+
+        return new Snapshot(counts);
+    }
+
+    private static int bucket(long nanos) {
+        return nanos <= 0 ? 0 : 63 - Long.numberOfLeadingZeros(nanos);
+    }
+
+    /**
+     * The bucket counts of a histogram at some point in time.
+     */
+    public static class Snapshot {
+        private final long[] counts;
+
+        Snapshot(long[] counts) {
+            this.counts = counts;
+        }
+
+        public long getCount() {
+            long count = 0;
+
+            for (long bucketCount : counts) {
+                count += bucketCount;
+            }
+
+            return count;
+        }
+
+        /**
+         * @param percentile The percentile, between 0 and 100.
+         * @return The upper bound in nanoseconds of the bucket holding the percentile,
+         * or 0 if nothing was recorded.
+         */
+        public long getPercentile(double percentile) {
+            if (percentile < 0 || percentile > 100) {
+                throw new IllegalArgumentException(String.format(
+                        "Can not compute percentile %s. It must be between 0 and 100.",
+                        percentile
+                ));
+            }
+
+            long count = getCount();
+
+            if (count == 0) {
+                return 0;
+            }
+
+            long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+            long seen = 0;
+
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+
+                if (seen >= rank) {
+                    return i == 62 ? Long.MAX_VALUE : (2L << i) - 1;
+                }
+            }
+
+            return Long.MAX_VALUE;
+        }
+    }
+}
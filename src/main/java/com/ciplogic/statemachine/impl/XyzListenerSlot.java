@@ -0,0 +1,49 @@
+package com.ciplogic.statemachine.impl;
+
+import com.ciplogic.statemachine.XyzState;
+
+/**
+ * A listener registered in a XyzListenerTable. The slot knows its own
+ * position in the table, so detaching it doesn't need to search
+ * for the callback.
+ */
+public abstract class XyzListenerSlot<L> {
+    final XyzListenerTable<L> table;
+    final XyzState state;
+    final Class<?> type;
+    final L callback;
+
+    // the position in the table, or -1 if it was detached. Written holding
+    // the table lock, read without it by the views over the slots.
+    volatile int index = -1;
+
+    /**
+     * @param table The table where the listener is registered.
+     * @param state The state where the listener is registered.
+     * @param type The type of data the listener accepts, or `null` if it
+     *             is not filtering by type.
+     * @param callback The listener itself.
+     */
+    protected XyzListenerSlot(XyzListenerTable<L> table, XyzState state, Class<?> type, L callback) {
+        this.table = table;
+        this.state = state;
+        this.type = type;
+        this.callback = callback;
+    }
+
+    boolean isDetached() {
+        return index < 0;
+    }
+
+    boolean accepts(Class<?> dataType) {
+        if (type == null) {
+            return true;
+        }
+
+        return dataType != null && type.isAssignableFrom(dataType);
+    }
+
+    public void detach() {
+        table.remove(this);
+    }
+}
@@ -0,0 +1,197 @@
+package com.ciplogic.statemachine.impl;
+
+import com.ciplogic.statemachine.XyzState;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Listeners of a single kind, kept per state in slot arrays.
+ *
+ * Readers get an immutable view of the slots (the array and how many
+ * slots of it are used), so they never need to lock or copy anything.
+ * New listeners are appended after the used slots, which the views that
+ * were already handed out don't see. Detaching a listener just clears
+ * its slot, and the array is compacted only when half of it is empty,
+ * so both operations are O(1) amortized.
+ */
+public class XyzListenerTable<L> {
+    private static final int INITIAL_CAPACITY = 4;
+
+    static final Slots NO_LISTENERS = new Slots(new XyzListenerSlot<?>[0], 0, 0);
+
+    private final AtomicReferenceArray<Slots> listeners;
+
+    public XyzListenerTable() {
+        XyzState[] states = XyzState.values();
+        Slots[] initialListeners = new Slots[states.length];
+        Arrays.fill(initialListeners, NO_LISTENERS);
+
+        this.listeners = new AtomicReferenceArray<>(initialListeners);
+    }
+
+    public synchronized void add(XyzListenerSlot<L> slot) {
+        Slots slots = listeners.get(slot.state.ordinal());
+        XyzListenerSlot<?>[] entries = slots.entries;
+        int size = slots.size;
+
+        if (size == entries.length) {
+            entries = compact(slots, (slots.live + 1) * 2);
+            size = slots.live;
+        }
+
+        entries[size] = slot;
+        slot.index = size;
+
+        listeners.set(slot.state.ordinal(), new Slots(entries, size + 1, slots.live + 1));
+    }
+
+    public synchronized void remove(XyzListenerSlot<L> slot) {
+        if (slot.index < 0) {
+            return; // already detached
+        }
+
+        Slots slots = listeners.get(slot.state.ordinal());
+
+        slots.entries[slot.index] = null;
+        slot.index = -1;
+
+        int live = slots.live - 1;
+
+        if (live == 0) {
+            listeners.set(slot.state.ordinal(), NO_LISTENERS);
+            return;
+        }
+
+        if (live * 2 < slots.size && slots.size > INITIAL_CAPACITY) {
+            XyzListenerSlot<?>[] entries = compact(slots, live * 2);
+            listeners.set(slot.state.ordinal(), new Slots(entries, live, live));
+            return;
+        }
+
+        listeners.set(slot.state.ordinal(), new Slots(slots.entries, slots.size, live));
+    }
+
+    /**
+     * Gets the current listeners of the state. The returned view never
+     * changes, except for the slots that get detached.
+     *
+     * @param state The state. A `null` state (the state machine is not yet
+     *              initialized) has no listeners.
+     * @return The listeners registered on that state, in registration order.
+     */
+    public Slots get(XyzState state) {
+        if (state == null) {
+            return NO_LISTENERS;
+        }
+
+        return listeners.get(state.ordinal());
+    }
+
+    /**
+     * Copies the live slots at the start of a new array, renumbering them.
+     */
+    private static XyzListenerSlot<?>[] compact(Slots slots, int capacity) {
+        XyzListenerSlot<?>[] entries = new XyzListenerSlot<?>[Math.max(capacity, INITIAL_CAPACITY)];
+        int index = 0;
+
+        for (int i = 0; i < slots.size; i++) {
+            XyzListenerSlot<?> slot = slots.entries[i];
+
+            if (slot != null) {
+                slot.index = index;
+                entries[index++] = slot;
+            }
+        }
+
+        return entries;
+    }
+
+    /**
+     * An immutable view over the slots of a state: the first `size`
+     * entries of the array. Detached slots are `null`.
+     */
+    public static final class Slots {
+        // the key used for `null` data. Void can't have instances, so it doesn't clash with real data.
+        private static final Class<?> NULL_DATA = Void.class;
+
+        private final XyzListenerSlot<?>[] entries;
+        private final int size;
+        private final int live;
+
+        // listeners matching each concrete data type, created on first use.
+        private volatile ConcurrentHashMap<Class<?>, XyzListenerSlot<?>[]> dispatchTable;
+
+        private Slots(XyzListenerSlot<?>[] entries, int size, int live) {
+            this.entries = entries;
+            this.size = size;
+            this.live = live;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public boolean isEmpty() {
+            return live == 0;
+        }
+
+        /**
+         * @param index The slot index, smaller than size().
+         * @return The callback in the slot, or `null` if it was detached.
+         */
+        public Object callback(int index) {
+            XyzListenerSlot<?> slot = entries[index];
+
+            // after a compaction, the slots detached later are only cleared
+            // in the new array, so the slot itself is checked.
+            return slot == null || slot.isDetached() ? null : slot.callback;
+        }
+
+        /**
+         * Gets the listeners that accept data of the given type, in
+         * registration order. The result is computed once per data type,
+         * since the view never gets new listeners.
+         *
+         * Listeners detached after the lookup are still in the returned array,
+         * so callers need to check them with isDetached().
+         *
+         * @param dataType The concrete type of the data, or `null` for `null` data.
+         * @return The matching slots. The array is shared, and must not be modified.
+         */
+        public XyzListenerSlot<?>[] forDataType(Class<?> dataType) {
+            ConcurrentHashMap<Class<?>, XyzListenerSlot<?>[]> table = dispatchTable;
+
+            if (table == null) {
+                table = new ConcurrentHashMap<>();
+                dispatchTable = table;
+            }
+
+            Class<?> key = dataType == null ? NULL_DATA : dataType;
+            XyzListenerSlot<?>[] result = table.get(key);
+
+            if (result == null) {
+                result = matching(dataType);
+                table.put(key, result);
+            }
+
+            return result;
+        }
+
+        private XyzListenerSlot<?>[] matching(Class<?> dataType) {
+            XyzListenerSlot<?>[] result = new XyzListenerSlot<?>[live];
+            int count = 0;
+
+            for (int i = 0; i < size; i++) {
+                XyzListenerSlot<?> slot = entries[i];
+
+                if (slot != null && slot.accepts(dataType)) {
+                    result[count++] = slot;
+                }
+            }
+
+            return count == result.length ? result : Arrays.copyOf(result, count);
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.ciplogic.statemachine.impl;
+
+import com.ciplogic.statemachine.XyzState;
+
+import java.util.function.Function;
+
+/**
+ * A data listener for long data, called without boxing the data when it
+ * is sent with sendLong. Data sent as a Long object is unboxed.
+ */
+@FunctionalInterface
+public interface XyzLongDataListener extends Function<XyzDataEvent<Long>, XyzState> {
+    /**
+     * @param event The event, to consume the data.
+     * @param data The data.
+     * @return The state where the state machine should go, or `null`.
+     */
+    XyzState onData(XyzDataEvent<Long> event, long data);
+
+    @Override
+    default XyzState apply(XyzDataEvent<Long> event) {
+        return onData(event, event.getData());
+    }
+}
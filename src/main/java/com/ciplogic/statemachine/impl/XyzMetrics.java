@@ -0,0 +1,214 @@
+package com.ciplogic.statemachine.impl;
+
+import com.ciplogic.statemachine.XyzState;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts what happens in the state machines: the transitions that were
+ * committed, cancelled by a `before` listener or rejected since they don't
+ * exist, the transitions retried since another thread changed the state
+ * while the `before` listeners ran, the nested changeState calls from
+ * `before` listeners, the data
+ * sent in each state, and how long the listeners take.
+ *
+ * The same metrics can be shared by many state machines. A state machine
+ * without metrics doesn't record anything.
+ */
+public class XyzMetrics implements XyzMetricsMXBean {
+    private static final XyzState[] STATES = XyzState.values();
+
+    // a row per state, plus a last row for the initializations.
+    private static final int TRANSITION_COUNT = (STATES.length + 1) * STATES.length;
+
+    private final LongAdder[] committed = adders(TRANSITION_COUNT);
+    private final LongAdder[] cancelled = adders(TRANSITION_COUNT);
+    private final LongAdder[] rejected = adders(TRANSITION_COUNT);
+    private final LongAdder[] data = adders(STATES.length);
+    private final LongAdder retried = new LongAdder();
+    private final LongAdder reentrancyErrors = new LongAdder();
+
+    private final XyzLatencyHistogram stateListenerLatency = new XyzLatencyHistogram();
+    private final XyzLatencyHistogram dataListenerLatency = new XyzLatencyHistogram();
+
+    /**
+     * @param fromState The state that was left. `null` when the state machine
+     *                  got initialized, that is counted apart from the
+     *                  transitions of the initial state into itself.
+     */
+    public void transitionCommitted(XyzState fromState, XyzState toState) {
+        committed[index(fromState, toState)].increment();
+    }
+
+    public void transitionCancelled(XyzState fromState, XyzState toState) {
+        cancelled[index(fromState, toState)].increment();
+    }
+
+    public void transitionRejected(XyzState fromState, XyzState toState) {
+        rejected[index(fromState, toState)].increment();
+    }
+
+    public void transitionRetried() {
+        retried.increment();
+    }
+
+    public void reentrancyError() {
+        reentrancyErrors.increment();
+    }
+
+    public void dataSent(XyzState state) {
+        data[state.ordinal()].increment();
+    }
+
+    public void stateListenerCalled(long nanos) {
+        stateListenerLatency.record(nanos);
+    }
+
+    public void dataListenerCalled(long nanos) {
+        dataListenerLatency.record(nanos);
+    }
+
+    public XyzMetricsSnapshot snapshot() {
+        return new XyzMetricsSnapshot(
+                sums(committed),
+                sums(cancelled),
+                sums(rejected),
+                sums(data),
+                retried.sum(),
+                reentrancyErrors.sum(),
+                stateListenerLatency.snapshot(),
+                dataListenerLatency.snapshot()
+        );
+    }
+
+    /**
+     * Registers the metrics in the platform MBean server.
+     * @param name The name of the metrics, e.g. what the state machines are used for.
+     * @return The name under which the metrics were registered.
+     */
+    public ObjectName registerMBean(String name) {
+        try {
+            ObjectName objectName = objectName(name);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+
+            return objectName;
+        } catch (JMException e) {
+            throw new XyzStateException(String.format("Unable to register metrics %s.", name), e);
+        }
+    }
+
+    public void unregisterMBean(String name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName(name));
+        } catch (JMException e) {
+            throw new XyzStateException(String.format("Unable to unregister metrics %s.", name), e);
+        }
+    }
+
+    @Override
+    public long getCommittedTransitions() {
+        return sum(committed);
+    }
+
+    @Override
+    public long getCancelledTransitions() {
+        return sum(cancelled);
+    }
+
+    @Override
+    public long getRejectedTransitions() {
+        return sum(rejected);
+    }
+
+    @Override
+    public long getRetriedTransitions() {
+        return retried.sum();
+    }
+
+    @Override
+    public long getReentrancyErrors() {
+        return reentrancyErrors.sum();
+    }
+
+    @Override
+    public long getDataCount() {
+        return sum(data);
+    }
+
+    @Override
+    public Map<String, Long> getCommittedTransitionCounts() {
+        return snapshot().committedByTransition();
+    }
+
+    @Override
+    public Map<String, Long> getCancelledTransitionCounts() {
+        return snapshot().cancelledByTransition();
+    }
+
+    @Override
+    public Map<String, Long> getRejectedTransitionCounts() {
+        return snapshot().rejectedByTransition();
+    }
+
+    @Override
+    public Map<String, Long> getDataCounts() {
+        return snapshot().dataByState();
+    }
+
+    @Override
+    public long getStateListenerLatencyPercentile(double percentile) {
+        return stateListenerLatency.snapshot().getPercentile(percentile);
+    }
+
+    @Override
+    public long getDataListenerLatencyPercentile(double percentile) {
+        return dataListenerLatency.snapshot().getPercentile(percentile);
+    }
+
+    /**
+     * @param fromState The state that was left, or `null` for an initialization.
+     */
+    static int index(XyzState fromState, XyzState toState) {
+        int row = fromState == null ? STATES.length : fromState.ordinal();
+
+        return row * STATES.length + toState.ordinal();
+    }
+
+    private static ObjectName objectName(String name) throws JMException {
+        return new ObjectName("com.ciplogic.statemachine:type=XyzMetrics,name=" + ObjectName.quote(name));
+    }
+
+    private static LongAdder[] adders(int count) {
+        LongAdder[] result = new LongAdder[count];
+
+        for (int i = 0; i < count; i++) {
+            result[i] = new LongAdder();
+        }
+
+        return result;
+    }
+
+    private static long[] sums(LongAdder[] adders) {
+        long[] result = new long[adders.length];
+
+        for (int i = 0; i < adders.length; i++) {
+            result[i] = adders[i].sum();
+        }
+
+        return result;
+    }
+
+    private static long sum(LongAdder[] adders) {
+        long result = 0;
+
+        for (LongAdder adder : adders) {
+            result += adder.sum();
+        }
+
+        return result;
+    }
+}
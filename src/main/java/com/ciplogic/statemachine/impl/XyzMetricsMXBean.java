@@ -0,0 +1,34 @@
+package com.ciplogic.statemachine.impl;
+
+import java.util.Map;
+
+/**
+ * JMX view over the XyzMetrics. The transition counts are keyed by
+ * `FROM->TO`, or `null->TO` for the initializations, the data counts by
+ * the state that received the data.
+ */
+public interface XyzMetricsMXBean {
+    long getCommittedTransitions();
+
+    long getCancelledTransitions();
+
+    long getRejectedTransitions();
+
+    long getRetriedTransitions();
+
+    long getReentrancyErrors();
+
+    long getDataCount();
+
+    Map<String, Long> getCommittedTransitionCounts();
+
+    Map<String, Long> getCancelledTransitionCounts();
+
+    Map<String, Long> getRejectedTransitionCounts();
+
+    Map<String, Long> getDataCounts();
+
+    long getStateListenerLatencyPercentile(double percentile);
+
+    long getDataListenerLatencyPercentile(double percentile);
+}
@@ -0,0 +1,151 @@
+package com.ciplogic.statemachine.impl;
+
+import com.ciplogic.statemachine.XyzState;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The values of the XyzMetrics at some point in time.
+ */
+public class XyzMetricsSnapshot {
+    private static final XyzState[] STATES = XyzState.values();
+
+    private final long[] committed;
+    private final long[] cancelled;
+    private final long[] rejected;
+    private final long[] data;
+    private final long retried;
+    private final long reentrancyErrors;
+
+    private final XyzLatencyHistogram.Snapshot stateListenerLatency;
+    private final XyzLatencyHistogram.Snapshot dataListenerLatency;
+
+    XyzMetricsSnapshot(long[] committed,
+                       long[] cancelled,
+                       long[] rejected,
+                       long[] data,
+                       long retried,
+                       long reentrancyErrors,
+                       XyzLatencyHistogram.Snapshot stateListenerLatency,
+                       XyzLatencyHistogram.Snapshot dataListenerLatency) {
+        this.committed = committed;
+        this.cancelled = cancelled;
+        this.rejected = rejected;
+        this.data = data;
+        this.retried = retried;
+        this.reentrancyErrors = reentrancyErrors;
+        this.stateListenerLatency = stateListenerLatency;
+        this.dataListenerLatency = dataListenerLatency;
+    }
+
+    /**
+     * @param fromState The state that was left, or `null` to get how many
+     *                  times the state machines were initialized into `toState`.
+     */
+    public long getCommitted(XyzState fromState, XyzState toState) {
+        return committed[XyzMetrics.index(fromState, toState)];
+    }
+
+    public long getCancelled(XyzState fromState, XyzState toState) {
+        return cancelled[XyzMetrics.index(fromState, toState)];
+    }
+
+    public long getRejected(XyzState fromState, XyzState toState) {
+        return rejected[XyzMetrics.index(fromState, toState)];
+    }
+
+    public long getData(XyzState state) {
+        return data[state.ordinal()];
+    }
+
+    public long getCommitted() {
+        return sum(committed);
+    }
+
+    public long getCancelled() {
+        return sum(cancelled);
+    }
+
+    public long getRejected() {
+        return sum(rejected);
+    }
+
+    public long getData() {
+        return sum(data);
+    }
+
+    public long getRetried() {
+        return retried;
+    }
+
+    public long getReentrancyErrors() {
+        return reentrancyErrors;
+    }
+
+    public XyzLatencyHistogram.Snapshot getStateListenerLatency() {
+        return stateListenerLatency;
+    }
+
+    public XyzLatencyHistogram.Snapshot getDataListenerLatency() {
+        return dataListenerLatency;
+    }
+
+    Map<String, Long> committedByTransition() {
+        return byTransition(committed);
+    }
+
+    Map<String, Long> cancelledByTransition() {
+        return byTransition(cancelled);
+    }
+
+    Map<String, Long> rejectedByTransition() {
+        return byTransition(rejected);
+    }
+
+    Map<String, Long> dataByState() {
+        Map<String, Long> result = new LinkedHashMap<>();
+
+        for (XyzState state : STATES) {
+            result.put(state.name(), data[state.ordinal()]);
+        }
+
+        return result;
+    }
+
+    /**
+     * Only the transitions that happened at least once are listed. The
+     * initializations are listed first, as `null->STATE`.
+     */
+    private static Map<String, Long> byTransition(long[] counts) {
+        Map<String, Long> result = new LinkedHashMap<>();
+
+        putTransitions(result, counts, null);
+
+        for (XyzState fromState : STATES) {
+            putTransitions(result, counts, fromState);
+        }
+
+        return result;
+    }
+
+    private static void putTransitions(Map<String, Long> result, long[] counts, XyzState fromState) {
+        for (XyzState toState : STATES) {
+            long count = counts[XyzMetrics.index(fromState, toState)];
+
+            if (count != 0) {
+                result.put((fromState == null ? "null" : fromState.name()) + "->" + toState.name(), count);
+            }
+        }
+    }
+
+    private static long sum(long[] counts) {
+        long result = 0;
+
+        for (long count : counts) {
+            result += count;
+        }
+
+        return result;
+    }
+}
@@ -0,0 +1,25 @@
+package com.ciplogic.statemachine.impl;
+
+/**
+ * What a publisher does with a state change when the buffer of a
+ * subscriber is full.
+ */
+public enum XyzOverflowPolicy {
+    /**
+     * The transition waits until the subscriber makes room, so no state
+     * change is lost, but a slow subscriber slows down the state machine.
+     */
+    BLOCK,
+
+    /**
+     * The state change is not delivered to this subscriber.
+     */
+    DROP,
+
+    /**
+     * The state change replaces the newest one in the buffer, so the
+     * subscriber always gets the latest state, but can miss the ones
+     * in between.
+     */
+    CONFLATE,
+}
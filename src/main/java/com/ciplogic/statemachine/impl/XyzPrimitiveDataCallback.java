@@ -0,0 +1,62 @@
+package com.ciplogic.statemachine.impl;
+
+import com.ciplogic.statemachine.XyzState;
+
+import java.util.function.Function;
+
+/**
+ * Wraps a primitive data listener when it's registered, so dispatching
+ * numbers only checks for this class, instead of checking every listener
+ * against each primitive listener interface.
+ */
+final class XyzPrimitiveDataCallback implements Function<XyzDataEvent<Object>, XyzState> {
+    private final XyzLongDataListener longListener;
+    private final XyzIntDataListener intListener;
+    private final XyzDoubleDataListener doubleListener;
+
+    XyzPrimitiveDataCallback(XyzLongDataListener longListener,
+                             XyzIntDataListener intListener,
+                             XyzDoubleDataListener doubleListener) {
+        this.longListener = longListener;
+        this.intListener = intListener;
+        this.doubleListener = doubleListener;
+    }
+
+    /**
+     * The listener is registered for its own data type only, so the event
+     * always holds the matching primitive.
+     */
+    @SuppressWarnings("unchecked")
+    XyzState applyPrimitive(XyzPrimitiveDataEvent event) {
+        XyzDataEvent<?> dataEvent = event;
+
+        if (longListener != null) {
+            return longListener.onData((XyzDataEvent<Long>) dataEvent, event.getLong());
+        }
+
+        if (intListener != null) {
+            return intListener.onData((XyzDataEvent<Integer>) dataEvent, event.getInt());
+        }
+
+        return doubleListener.onData((XyzDataEvent<Double>) dataEvent, event.getDouble());
+    }
+
+    /**
+     * Data sent as an object gets unboxed.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public XyzState apply(XyzDataEvent<Object> event) {
+        XyzDataEvent<?> dataEvent = event;
+
+        if (longListener != null) {
+            return longListener.apply((XyzDataEvent<Long>) dataEvent);
+        }
+
+        if (intListener != null) {
+            return intListener.apply((XyzDataEvent<Integer>) dataEvent);
+        }
+
+        return doubleListener.apply((XyzDataEvent<Double>) dataEvent);
+    }
+}
@@ -0,0 +1,98 @@
+package com.ciplogic.statemachine.impl;
+
+/**
+ * A data event carrying a long, int or double without boxing it. The
+ * primitive listeners get the value directly, the other listeners get
+ * it boxed, only when they call getData().
+ *
+ * Every thread reuses its own event, unless the data is sent from a
+ * listener of the data already being sent, so sending numbers doesn't
+ * allocate.
+ */
+public final class XyzPrimitiveDataEvent extends XyzDataEvent<Object> {
+    private static final ThreadLocal<XyzPrimitiveDataEvent> THREAD_EVENT =
+            ThreadLocal.withInitial(() -> new XyzPrimitiveDataEvent(true));
+
+    private final boolean pooled;
+    private boolean inUse;
+
+    private Class<?> type;
+    private long longValue;
+    private double doubleValue;
+    private Object boxed;
+
+    private XyzPrimitiveDataEvent(boolean pooled) {
+        super(null);
+        this.pooled = pooled;
+    }
+
+    /**
+     * Gets the event of the current thread, or a new one if the current
+     * thread's event is still being dispatched.
+     */
+    static XyzPrimitiveDataEvent acquire() {
+        XyzPrimitiveDataEvent event = THREAD_EVENT.get();
+
+        if (event.inUse) {
+            return new XyzPrimitiveDataEvent(false);
+        }
+
+        event.inUse = true;
+
+        return event;
+    }
+
+    void release() {
+        if (pooled) {
+            inUse = false;
+            boxed = null;
+        }
+    }
+
+    public long getLong() {
+        return longValue;
+    }
+
+    public int getInt() {
+        return (int) longValue;
+    }
+
+    public double getDouble() {
+        return doubleValue;
+    }
+
+    @Override
+    public Object getData() {
+        if (boxed != null) {
+            return boxed;
+        }
+
+        // not a conditional expression, that would promote all of them to double.
+        if (type == Long.class) {
+            boxed = longValue;
+        } else if (type == Integer.class) {
+            boxed = (int) longValue;
+        } else {
+            boxed = doubleValue;
+        }
+
+        return boxed;
+    }
+
+    @Override
+    Class<?> getDataType() {
+        return type;
+    }
+
+    /**
+     * Ints are kept in the long value, doubles in the double one.
+     */
+    void reset(Class<?> type, long longValue, double doubleValue) {
+        super.reset(null);
+
+        this.type = type;
+        this.longValue = longValue;
+        this.doubleValue = doubleValue;
+        this.boxed = null;
+    }
+}
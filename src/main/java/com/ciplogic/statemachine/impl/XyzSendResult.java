@@ -0,0 +1,39 @@
+package com.ciplogic.statemachine.impl;
+
+import com.ciplogic.statemachine.XyzState;
+
+/**
+ * Summary of sending a batch of data into the state machine.
+ */
+public class XyzSendResult {
+    private final int count;
+    private final int transitions;
+    private final XyzState state;
+
+    public XyzSendResult(int count, int transitions, XyzState state) {
+        this.count = count;
+        this.transitions = transitions;
+        this.state = state;
+    }
+
+    /**
+     * @return How many data items were sent.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @return How many times the data listeners changed the state.
+     */
+    public int getTransitions() {
+        return transitions;
+    }
+
+    /**
+     * @return The state of the state machine after the last item.
+     */
+    public XyzState getState() {
+        return state;
+    }
+}
@@ -0,0 +1,82 @@
+package com.ciplogic.statemachine.impl;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the tasks one at a time, in the order they were submitted, on top
+ * of any other executor. The underlying executor can be a thread pool,
+ * or a virtual thread per task executor, the tasks still never overlap.
+ */
+public class XyzSerialExecutor implements Executor {
+    private final Executor executor;
+    private final XyzDiagnostics diagnostics;
+
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingTasks = new AtomicInteger();
+
+    public XyzSerialExecutor(Executor executor) {
+        this(executor, XyzDefaultDiagnostics.getInstance());
+    }
+
+    /**
+     * @param executor Where the tasks run.
+     * @param diagnostics Where the tasks that fail are reported.
+     */
+    public XyzSerialExecutor(Executor executor, XyzDiagnostics diagnostics) {
+        if (executor == null) {
+            throw new IllegalArgumentException("Can not create serial executor. The executor is null.");
+        }
+
+        if (diagnostics == null) {
+            throw new IllegalArgumentException("Can not create serial executor. The diagnostics are null.");
+        }
+
+        this.executor = executor;
+        this.diagnostics = diagnostics;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(task);
+
+        // only the task that finds the queue empty schedules the draining.
+        if (pendingTasks.getAndIncrement() != 0) {
+            return;
+        }
+
+        scheduleDrain();
+    }
+
+    private void scheduleDrain() {
+        try {
+            executor.execute(this::drain);
+        } catch (RejectedExecutionException e) {
+            // keep the order, even if it means running in the caller thread.
+            drain();
+        }
+    }
+
+    private void drain() {
+        do {
+            Runnable task = tasks.poll();
+
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                diagnostics.listenerFailed(e);
+            } catch (Error e) {
+                // the error is thrown to the executor, but the next tasks
+                // still run, otherwise every later task would only be queued.
+                if (pendingTasks.decrementAndGet() != 0) {
+                    scheduleDrain();
+                }
+
+                throw e;
+            }
+        } while (pendingTasks.decrementAndGet() != 0);
+    }
+}
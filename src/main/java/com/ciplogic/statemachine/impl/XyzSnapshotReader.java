@@ -0,0 +1,172 @@
+package com.ciplogic.statemachine.impl;
+
+import com.ciplogic.statemachine.XyzState;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+import static com.ciplogic.statemachine.impl.XyzSnapshotWriter.BOOLEAN;
+import static com.ciplogic.statemachine.impl.XyzSnapshotWriter.BYTE;
+import static com.ciplogic.statemachine.impl.XyzSnapshotWriter.CHAR;
+import static com.ciplogic.statemachine.impl.XyzSnapshotWriter.DOUBLE;
+import static com.ciplogic.statemachine.impl.XyzSnapshotWriter.FLOAT;
+import static com.ciplogic.statemachine.impl.XyzSnapshotWriter.INT;
+import static com.ciplogic.statemachine.impl.XyzSnapshotWriter.LONG;
+import static com.ciplogic.statemachine.impl.XyzSnapshotWriter.MAGIC;
+import static com.ciplogic.statemachine.impl.XyzSnapshotWriter.NULL;
+import static com.ciplogic.statemachine.impl.XyzSnapshotWriter.SHORT;
+import static com.ciplogic.statemachine.impl.XyzSnapshotWriter.STRING;
+import static com.ciplogic.statemachine.impl.XyzSnapshotWriter.VERSION;
+
+/**
+ * Reads the snapshots written by the XyzSnapshotWriter. The header is
+ * checked when the reader is created, so snapshots of a different
+ * XyzState enum are refused.
+ */
+public class XyzSnapshotReader {
+    private static final XyzState[] STATES = XyzState.values();
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final ReadableByteChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    public XyzSnapshotReader(ReadableByteChannel channel) throws IOException {
+        if (channel == null) {
+            throw new IllegalArgumentException("Can not create snapshot reader. The channel is null.");
+        }
+
+        this.channel = channel;
+        buffer.flip(); // empty, ready for reading.
+
+        ensureAvailable(13);
+
+        int magic = buffer.getInt();
+        byte version = buffer.get();
+        long schemaId = buffer.getLong();
+
+        if (magic != MAGIC || version != VERSION) {
+            throw new XyzStateException("Unable to read snapshot. The data is not a XyzStateMachine snapshot.");
+        }
+
+        if (schemaId != XyzSnapshotWriter.schemaId()) {
+            throw new XyzStateException(String.format(
+                    "Unable to read snapshot. The schema id %016x doesn't match the XyzState schema %016x.",
+                    schemaId,
+                    XyzSnapshotWriter.schemaId()
+            ));
+        }
+    }
+
+    /**
+     * @return true if there is more data in the snapshot.
+     */
+    public boolean hasNext() throws IOException {
+        return buffer.hasRemaining() || fill();
+    }
+
+    public XyzState readState() throws IOException {
+        ensureAvailable(1);
+        int value = buffer.get() & 0xff;
+
+        if (value == 0) {
+            return null;
+        }
+
+        if (value > STATES.length) {
+            throw new XyzStateException(String.format(
+                    "Unable to read snapshot. Invalid state ordinal %d.",
+                    value - 1
+            ));
+        }
+
+        return STATES[value - 1];
+    }
+
+    public int readInt() throws IOException {
+        ensureAvailable(4);
+        return buffer.getInt();
+    }
+
+    public Object readValue() throws IOException {
+        ensureAvailable(1);
+        byte type = buffer.get();
+
+        switch (type) {
+            case NULL:
+                return null;
+            case BOOLEAN:
+                ensureAvailable(1);
+                return buffer.get() != 0;
+            case BYTE:
+                ensureAvailable(1);
+                return buffer.get();
+            case SHORT:
+                ensureAvailable(2);
+                return buffer.getShort();
+            case CHAR:
+                ensureAvailable(2);
+                return buffer.getChar();
+            case INT:
+                ensureAvailable(4);
+                return buffer.getInt();
+            case LONG:
+                ensureAvailable(8);
+                return buffer.getLong();
+            case FLOAT:
+                ensureAvailable(4);
+                return buffer.getFloat();
+            case DOUBLE:
+                ensureAvailable(8);
+                return buffer.getDouble();
+            case STRING:
+                return readString();
+            default:
+                throw new XyzStateException(String.format(
+                        "Unable to read snapshot. Unknown value type %d.",
+                        type
+                ));
+        }
+    }
+
+    private String readString() throws IOException {
+        ensureAvailable(4);
+        byte[] bytes = new byte[buffer.getInt()];
+
+        // strings bigger than the buffer are read in chunks.
+        for (int offset = 0; offset < bytes.length; ) {
+            if (!buffer.hasRemaining()) {
+                ensureAvailable(1);
+            }
+
+            int length = Math.min(buffer.remaining(), bytes.length - offset);
+            buffer.get(bytes, offset, length);
+            offset += length;
+        }
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void ensureAvailable(int size) throws IOException {
+        while (buffer.remaining() < size) {
+            if (!fill()) {
+                throw new XyzStateException("Unable to read snapshot. Unexpected end of data.");
+            }
+        }
+    }
+
+    /**
+     * Reads more data after the unread bytes.
+     * @return false if the channel has no more data.
+     */
+    private boolean fill() throws IOException {
+        buffer.compact();
+
+        try {
+            return channel.read(buffer) >= 0;
+        } finally {
+            buffer.flip();
+        }
+    }
+}
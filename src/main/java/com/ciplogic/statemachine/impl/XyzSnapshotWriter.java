@@ -0,0 +1,156 @@
+package com.ciplogic.statemachine.impl;
+
+import com.ciplogic.statemachine.XyzState;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes state machine snapshots into a channel, in a compact binary format.
+ *
+ * The snapshot starts with a header (magic, version and the schema id of
+ * XyzState), followed by the records. A state is written as a single byte
+ * (the ordinal + 1, 0 for a state machine that wasn't initialized yet), and
+ * the property values as a type tag followed by the value.
+ *
+ * The data is buffered, so flush() must be called at the end. The channel
+ * is expected to be blocking, and is not closed by the writer.
+ */
+public class XyzSnapshotWriter implements Flushable {
+    static final int MAGIC = 0x58595a53; // "XYZS"
+    static final byte VERSION = 1;
+
+    static final byte NULL = 0;
+    static final byte BOOLEAN = 1;
+    static final byte BYTE = 2;
+    static final byte SHORT = 3;
+    static final byte CHAR = 4;
+    static final byte INT = 5;
+    static final byte LONG = 6;
+    static final byte FLOAT = 7;
+    static final byte DOUBLE = 8;
+    static final byte STRING = 9;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long SCHEMA_ID = computeSchemaId();
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    public XyzSnapshotWriter(WritableByteChannel channel) throws IOException {
+        if (channel == null) {
+            throw new IllegalArgumentException("Can not create snapshot writer. The channel is null.");
+        }
+
+        this.channel = channel;
+
+        buffer.putInt(MAGIC);
+        buffer.put(VERSION);
+        buffer.putLong(SCHEMA_ID);
+    }
+
+    /**
+     * The schema id changes when the states are added, removed, renamed
+     * or reordered, so snapshots of other state machines are refused.
+     *
+     * @return A 64 bit FNV-1a hash of the state names, in ordinal order.
+     */
+    public static long schemaId() {
+        return SCHEMA_ID;
+    }
+
+    public void writeState(XyzState state) throws IOException {
+        ensureRemaining(1);
+        buffer.put(state == null ? 0 : (byte) (state.ordinal() + 1));
+    }
+
+    public void writeInt(int value) throws IOException {
+        ensureRemaining(4);
+        buffer.putInt(value);
+    }
+
+    /**
+     * Writes a property value. Only `null`, the primitive wrappers and
+     * strings are supported.
+     */
+    public void writeValue(Object value) throws IOException {
+        ensureRemaining(9);
+
+        if (value == null) {
+            buffer.put(NULL);
+        } else if (value instanceof Boolean) {
+            buffer.put(BOOLEAN).put((byte) ((Boolean) value ? 1 : 0));
+        } else if (value instanceof Byte) {
+            buffer.put(BYTE).put((Byte) value);
+        } else if (value instanceof Short) {
+            buffer.put(SHORT).putShort((Short) value);
+        } else if (value instanceof Character) {
+            buffer.put(CHAR).putChar((Character) value);
+        } else if (value instanceof Integer) {
+            buffer.put(INT).putInt((Integer) value);
+        } else if (value instanceof Long) {
+            buffer.put(LONG).putLong((Long) value);
+        } else if (value instanceof Float) {
+            buffer.put(FLOAT).putFloat((Float) value);
+        } else if (value instanceof Double) {
+            buffer.put(DOUBLE).putDouble((Double) value);
+        } else if (value instanceof String) {
+            writeString((String) value);
+        } else {
+            throw new XyzStateException(String.format(
+                    "Can not write a %s value into the snapshot. Only primitives and strings are supported.",
+                    value.getClass().getName()
+            ));
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        buffer.flip();
+
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+
+        buffer.clear();
+    }
+
+    private void writeString(String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+
+        buffer.put(STRING).putInt(bytes.length);
+
+        // strings bigger than the buffer are written in chunks.
+        for (int offset = 0; offset < bytes.length; ) {
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+
+            int length = Math.min(buffer.remaining(), bytes.length - offset);
+            buffer.put(bytes, offset, length);
+            offset += length;
+        }
+    }
+
+    private void ensureRemaining(int size) throws IOException {
+        if (buffer.remaining() < size) {
+            flush();
+        }
+    }
+
+    private static long computeSchemaId() {
+        long hash = 0xcbf29ce484222325L;
+
+        for (XyzState state : XyzState.values()) {
+            for (byte b : (state.name() + ",").getBytes(StandardCharsets.UTF_8)) {
+                hash ^= b & 0xff;
+                hash *= 0x100000001b3L;
+            }
+        }
+
+        return hash;
+    }
+}
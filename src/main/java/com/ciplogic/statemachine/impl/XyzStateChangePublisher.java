@@ -0,0 +1,343 @@
+package com.ciplogic.statemachine.impl;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes the state changes to subscribers that consume them at their
+ * own pace, following the java.util.concurrent.Flow protocol.
+ *
+ * Publishing only puts the event in the bounded buffer of each
+ * subscriber, the subscribers are called on their executor. When a
+ * buffer is full, the overflow policy of the subscriber decides if the
+ * transition waits, or the event is dropped or conflated.
+ *
+ * A state machine offers the events while committing, possibly holding
+ * locks, and waits for the BLOCK subscribers with awaitCapacity() only
+ * once the locks are released. Meanwhile a BLOCK buffer can hold a few
+ * more events than its size, at most one per thread that is publishing.
+ */
+public class XyzStateChangePublisher<T extends XyzStateChangeEvent> {
+    public static final int DEFAULT_BUFFER_SIZE = 256;
+
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    private volatile boolean closed;
+
+    private volatile XyzDiagnostics diagnostics = XyzDefaultDiagnostics.getInstance();
+
+    /**
+     * Sets where the errors thrown by the subscribers are reported, when
+     * they can't be passed to the subscriber itself. A subscriber whose
+     * onNext or onComplete throws is cancelled, and gets the error in
+     * onError; only an onError that throws too is reported here.
+     *
+     * @param diagnostics The diagnostics sink, or `null` for the default one.
+     */
+    public void setDiagnostics(XyzDiagnostics diagnostics) {
+        this.diagnostics = diagnostics == null ? XyzDefaultDiagnostics.getInstance() : diagnostics;
+    }
+
+    /**
+     * Subscribes with a buffer of DEFAULT_BUFFER_SIZE events, blocking
+     * when it is full, and calls the subscriber on the common ForkJoinPool.
+     */
+    public void subscribe(XyzStateChangeSubscriber<? super T> subscriber) {
+        subscribe(subscriber, DEFAULT_BUFFER_SIZE, XyzOverflowPolicy.BLOCK, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param subscriber Receives the state changes.
+     * @param bufferSize How many state changes are kept for the subscriber.
+     * @param overflowPolicy What to do with a state change when the buffer is full.
+     * @param executor Where the subscriber is called. With the BLOCK policy
+     *                 it must not be the thread that changes the state.
+     */
+    public void subscribe(XyzStateChangeSubscriber<? super T> subscriber,
+                          int bufferSize,
+                          XyzOverflowPolicy overflowPolicy,
+                          Executor executor) {
+        if (subscriber == null) {
+            throw new NullPointerException("subscriber is null. Can not subscribe.");
+        }
+
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException(String.format(
+                    "Can not subscribe. The buffer size %d is not positive.",
+                    bufferSize
+            ));
+        }
+
+        if (overflowPolicy == null || executor == null) {
+            throw new IllegalArgumentException("Can not subscribe. The overflow policy and the executor are required.");
+        }
+
+        Subscription subscription = new Subscription(subscriber, bufferSize, overflowPolicy, executor);
+
+        subscriber.onSubscribe(subscription);
+
+        if (closed) {
+            subscription.complete();
+            return;
+        }
+
+        subscriptions.add(subscription);
+    }
+
+    /**
+     * Buffers the state change for every subscriber, and waits for the
+     * BLOCK subscribers whose buffer is full. Must not be called holding
+     * locks the subscribers might need.
+     */
+    public void publish(T event) {
+        offer(event);
+        awaitCapacity();
+    }
+
+    /**
+     * Buffers the state change for every subscriber, without waiting.
+     */
+    public void offer(T event) {
+        for (Subscription subscription : subscriptions) {
+            subscription.offer(event);
+        }
+    }
+
+    /**
+     * Waits until the BLOCK subscribers are back within their buffer size.
+     */
+    public void awaitCapacity() {
+        for (Subscription subscription : subscriptions) {
+            subscription.awaitCapacity();
+        }
+    }
+
+    /**
+     * Completes the subscribers, after they receive the state changes
+     * already buffered.
+     */
+    public void close() {
+        closed = true;
+
+        for (Subscription subscription : subscriptions) {
+            subscription.complete();
+        }
+
+        subscriptions.clear();
+    }
+
+    public int getSubscriberCount() {
+        return subscriptions.size();
+    }
+
+    /**
+     * @return How many state changes were dropped, or replaced by a newer
+     * one, for all the subscribers.
+     */
+    public long getOverflowCount() {
+        long count = 0;
+
+        for (Subscription subscription : subscriptions) {
+            count += subscription.overflowCount.get();
+        }
+
+        return count;
+    }
+
+    private class Subscription implements XyzSubscription {
+        private final XyzStateChangeSubscriber<? super T> subscriber;
+        private final int bufferSize;
+        private final XyzOverflowPolicy overflowPolicy;
+        private final Executor executor;
+
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final AtomicLong overflowCount = new AtomicLong();
+
+        // guarded by this.
+        private final ArrayDeque<T> buffer = new ArrayDeque<>();
+        private long requested;
+        private boolean cancelled;
+        private boolean completed;
+        private Throwable error;
+
+        private Subscription(XyzStateChangeSubscriber<? super T> subscriber,
+                             int bufferSize,
+                             XyzOverflowPolicy overflowPolicy,
+                             Executor executor) {
+            this.subscriber = subscriber;
+            this.bufferSize = bufferSize;
+            this.overflowPolicy = overflowPolicy;
+            this.executor = executor;
+        }
+
+        @Override
+        public void request(long n) {
+            synchronized (this) {
+                if (cancelled) {
+                    return;
+                }
+
+                if (n <= 0) {
+                    error = new IllegalArgumentException(String.format(
+                            "Can not request %d items. The request must be positive.",
+                            n
+                    ));
+                    buffer.clear();
+                    notifyAll();
+                } else {
+                    requested = requested + n < 0 ? Long.MAX_VALUE : requested + n;
+                }
+            }
+
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (this) {
+                cancelled = true;
+                buffer.clear();
+                notifyAll();
+            }
+
+            subscriptions.remove(this);
+        }
+
+        private void offer(T event) {
+            synchronized (this) {
+                if (cancelled || completed || error != null) {
+                    return;
+                }
+
+                // a full BLOCK buffer still takes the event, the publisher
+                // waits afterwards in awaitCapacity.
+                if (buffer.size() >= bufferSize) {
+                    switch (overflowPolicy) {
+                        case DROP:
+                            overflowCount.incrementAndGet();
+                            return;
+
+                        case CONFLATE:
+                            overflowCount.incrementAndGet();
+                            buffer.pollLast();
+                            break;
+
+                        case BLOCK:
+                            break;
+                    }
+                }
+
+                buffer.addLast(event);
+            }
+
+            schedule();
+        }
+
+        private void awaitCapacity() {
+            if (overflowPolicy != XyzOverflowPolicy.BLOCK) {
+                return;
+            }
+
+            synchronized (this) {
+                boolean interrupted = false;
+
+                while (buffer.size() > bufferSize && !cancelled && error == null) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        private void complete() {
+            synchronized (this) {
+                completed = true;
+            }
+
+            schedule();
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                executor.execute(this::drain);
+            }
+        }
+
+        /**
+         * Runs on the executor, one drain at a time per subscriber.
+         */
+        private void drain() {
+            while (true) {
+                T event;
+                Throwable failure = null;
+                boolean done = false;
+
+                synchronized (this) {
+                    if (cancelled) {
+                        scheduled.set(false);
+                        return;
+                    }
+
+                    if (error != null) {
+                        cancelled = true;
+                        failure = error;
+                    } else if (buffer.isEmpty() && completed) {
+                        cancelled = true;
+                        done = true;
+                    } else if (buffer.isEmpty() || requested == 0) {
+                        // checked and reset under the lock, so a concurrent
+                        // offer either is seen here or schedules again.
+                        scheduled.set(false);
+                        return;
+                    }
+
+                    event = failure == null && !done ? buffer.pollFirst() : null;
+
+                    if (event != null) {
+                        requested--;
+                        notifyAll();
+                    }
+                }
+
+                if (failure != null) {
+                    subscriptions.remove(this);
+                    signalError(failure);
+                    return;
+                }
+
+                try {
+                    if (done) {
+                        subscriber.onComplete();
+                        return;
+                    }
+
+                    subscriber.onNext(event);
+                } catch (RuntimeException e) {
+                    // a failing subscriber is cancelled, and gets its own
+                    // error, as with the SubmissionPublisher.
+                    cancel();
+                    signalError(e);
+                    return;
+                }
+            }
+        }
+
+        private void signalError(Throwable failure) {
+            try {
+                subscriber.onError(failure);
+            } catch (RuntimeException e) {
+                diagnostics.listenerFailed(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package com.ciplogic.statemachine.impl;
+
+/**
+ * Receives the state changes of a XyzStateChangePublisher, with the same
+ * contract as java.util.concurrent.Flow.Subscriber, so adapting a Flow
+ * subscriber is a matter of forwarding the calls.
+ */
+public interface XyzStateChangeSubscriber<T> {
+    void onSubscribe(XyzSubscription subscription);
+
+    void onNext(T item);
+
+    void onError(Throwable throwable);
+
+    void onComplete();
+}
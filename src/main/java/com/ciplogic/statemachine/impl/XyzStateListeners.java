@@ -2,29 +2,41 @@ package com.ciplogic.statemachine.impl;
 
 import com.ciplogic.statemachine.XyzState;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.LinkedHashSet;
-import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.Consumer;
 
 /**
  * Holds the references to all the listeners, in an easily
  * accessible data structure, and allows calling them
  * for updates.
+ *
+ * The listeners can extend the listeners of a parent (e.g. the ones of
+ * a state machine definition), in which case the parent listeners are
+ * notified first, for both the leave and the enter events.
  */
 public class XyzStateListeners<T> {
-    private Map<XyzState, Set<Consumer<T>>> beforeEnter = new HashMap<>();
-    private Map<XyzState, Set<Consumer<T>>> afterEnter = new HashMap<>();
+    private final XyzStateListeners<T> parent;
 
-    private Map<XyzState, Set<Consumer<T>>> beforeLeave = new HashMap<>();
-    private Map<XyzState, Set<Consumer<T>>> afterLeave = new HashMap<>();
+    private final XyzListenerTable<Consumer<T>> beforeEnter = new XyzListenerTable<>();
+    private final XyzListenerTable<Consumer<T>> afterEnter = new XyzListenerTable<>();
 
-    private ReadWriteLock readWriteLock = new ReentrantReadWriteLock();
+    private final XyzListenerTable<Consumer<T>> beforeLeave = new XyzListenerTable<>();
+    private final XyzListenerTable<Consumer<T>> afterLeave = new XyzListenerTable<>();
+
+    public XyzStateListeners() {
+        this(null);
+    }
+
+    /**
+     * @param parent The listeners notified before these ones, or `null`.
+     *               Only one level of parents is supported.
+     */
+    public XyzStateListeners(XyzStateListeners<T> parent) {
+        if (parent != null && parent.parent != null) {
+            throw new IllegalArgumentException("Can not create listeners. The parent listeners have a parent already.");
+        }
+
+        this.parent = parent;
+    }
 
     public XyzStateListenerRegistration<T> beforeEnter(XyzState state, Consumer<T> callback) {
         return addListener(state, callback, beforeEnter);
@@ -42,69 +54,82 @@ public class XyzStateListeners<T> {
         return addListener(state, callback, afterLeave);
     }
 
-    private XyzStateListenerRegistration<T> addListener(XyzState state, Consumer<T> callback, Map<XyzState, Set<Consumer<T>>> callbackCollection) {
-        try {
-            readWriteLock.writeLock().lock();
-
-            if (state != null) {
-                return registerStateChangeListener(state, callback, callbackCollection);
-            }
-
-            XyzCompositeStateListenerRegistration<T> result = new XyzCompositeStateListenerRegistration<>();
+    private XyzStateListenerRegistration<T> addListener(XyzState state, Consumer<T> callback, XyzListenerTable<Consumer<T>> callbackCollection) {
+        if (state != null) {
+            return registerStateChangeListener(state, callback, callbackCollection);
+        }
 
-            for (XyzState state1: XyzState.values()) {
-                result.addListenerRegistration(registerStateChangeListener(state1, callback, callbackCollection));
-            }
+        XyzCompositeStateListenerRegistration<T> result = new XyzCompositeStateListenerRegistration<>();
 
-            return result;
-        } finally {
-            readWriteLock.writeLock().unlock();
+        for (XyzState state1: XyzState.values()) {
+            result.addListenerRegistration(registerStateChangeListener(state1, callback, callbackCollection));
         }
-    }
-
-    private XyzStateListenerRegistration<T> registerStateChangeListener(XyzState state, Consumer<T> callback, Map<XyzState, Set<Consumer<T>>> callbackCollection) {
-        Set<Consumer<T>> items = callbackCollection.get(state);
 
-        if (items == null) {
-			items = new LinkedHashSet<>();
-			callbackCollection.put(state, items);
-		}
+        return result;
+    }
 
-        items.add(callback);
+    private XyzStateListenerRegistration<T> registerStateChangeListener(XyzState state, Consumer<T> callback, XyzListenerTable<Consumer<T>> callbackCollection) {
+        XyzDefaultStateListenerRegistration<T> registration =
+                new XyzDefaultStateListenerRegistration<>(callbackCollection, state, callback);
+        callbackCollection.add(registration);
 
-        return new XyzDefaultStateListenerRegistration<T>(this, callbackCollection, callback);
+        return registration;
     }
 
-    public void removeListener(Map<XyzState, Set<Consumer<T>>> callbackCollection, Consumer<T> callback) {
-        try {
-            readWriteLock.writeLock().lock();
-            callbackCollection.remove(callback);
-        } finally {
-            readWriteLock.writeLock().unlock();
+    /**
+     * Checks if there is any listener, before or after, for the transition.
+     * @param previousState The state being left.
+     * @param targetState The state being entered.
+     * @return true if at least one listener needs to be notified.
+     */
+    public boolean isListening(XyzState previousState, XyzState targetState) {
+        if (parent != null && parent.isListening(previousState, targetState)) {
+            return true;
         }
-    }
 
-    public XyzStateListenersSnapshot<T> copyBefore(XyzStateChangeEvent event) {
-        return copyEventListeners(event, beforeLeave, beforeEnter);
+        return !beforeLeave.get(previousState).isEmpty() ||
+               !beforeEnter.get(targetState).isEmpty() ||
+               !afterLeave.get(previousState).isEmpty() ||
+               !afterEnter.get(targetState).isEmpty();
     }
 
-    public XyzStateListenersSnapshot<T> copyAfter(XyzStateChangeEvent event) {
-        return copyEventListeners(event, afterLeave, afterEnter);
+    public XyzStateListenersSnapshot<T> copyBefore(XyzState previousState, XyzState targetState) {
+        XyzStateListenersSnapshot<T> parentListeners = parent == null ?
+                XyzStateListenersSnapshot.empty() :
+                parent.copyBefore(previousState, targetState);
+
+        return copyEventListeners(previousState, targetState, beforeLeave, beforeEnter, parentListeners);
     }
 
-    private XyzStateListenersSnapshot<T> copyEventListeners(XyzStateChangeEvent event, Map<XyzState, Set<Consumer<T>>> leaveListeners, Map<XyzState, Set<Consumer<T>>> enterListeners) {
-        try {
-            readWriteLock.readLock().lock();
+    public XyzStateListenersSnapshot<T> copyAfter(XyzState previousState, XyzState targetState) {
+        XyzStateListenersSnapshot<T> parentListeners = parent == null ?
+                XyzStateListenersSnapshot.empty() :
+                parent.copyAfter(previousState, targetState);
 
-            Set<Consumer<T>> afterLeaveCallbacks = leaveListeners.get(event.getPreviousState());
-            Set<Consumer<T>> afterEnterCallbacks = enterListeners.get(event.getTargetState());
+        return copyEventListeners(previousState, targetState, afterLeave, afterEnter, parentListeners);
+    }
+
+    /**
+     * The snapshot only references the current listener arrays, since
+     * the published slots are never moved, only cleared when detached. When there
+     * are no listeners, a shared empty snapshot is returned.
+     */
+    private XyzStateListenersSnapshot<T> copyEventListeners(XyzState previousState,
+                                                            XyzState targetState,
+                                                            XyzListenerTable<Consumer<T>> leaveListeners,
+                                                            XyzListenerTable<Consumer<T>> enterListeners,
+                                                            XyzStateListenersSnapshot<T> parentListeners) {
+        XyzListenerTable.Slots leaveCallbacks = leaveListeners.get(previousState);
+        XyzListenerTable.Slots enterCallbacks = enterListeners.get(targetState);
+
+        if (leaveCallbacks.isEmpty() && enterCallbacks.isEmpty()) {
+            return parentListeners;
+        }
 
-            return new XyzStateListenersSnapshot<T>(
-                    afterLeaveCallbacks == null ? Collections.emptyList() : new ArrayList<>(afterLeaveCallbacks),
-                    afterEnterCallbacks == null ? Collections.emptyList() : new ArrayList<>(afterEnterCallbacks)
-            );
-        } finally {
-            readWriteLock.readLock().unlock();
+        if (parentListeners.isEmpty()) {
+            return new XyzStateListenersSnapshot<T>(leaveCallbacks, enterCallbacks);
         }
+
+        return parentListeners.extend(leaveCallbacks, enterCallbacks);
     }
 }
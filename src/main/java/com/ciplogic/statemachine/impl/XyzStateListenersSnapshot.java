@@ -1,41 +1,110 @@
 package com.ciplogic.statemachine.impl;
 
-import java.util.List;
 import java.util.function.Consumer;
 
 public class XyzStateListenersSnapshot<T> {
-    private final List<Consumer<T>> beforeLeave;
-    private final List<Consumer<T>> beforeEnter;
+    private static final XyzStateListenersSnapshot<?> EMPTY = new XyzStateListenersSnapshot<>(
+            XyzListenerTable.NO_LISTENERS,
+            XyzListenerTable.NO_LISTENERS
+    );
 
-    public XyzStateListenersSnapshot(List<Consumer<T>> beforeLeave,
-                                     List<Consumer<T>> beforeEnter) {
+    // the listeners inherited from a parent, notified before the own ones.
+    private final XyzListenerTable.Slots parentLeaveListeners;
+    private final XyzListenerTable.Slots parentEnterListeners;
 
-        this.beforeLeave = beforeLeave;
-        this.beforeEnter = beforeEnter;
+    private final XyzListenerTable.Slots leaveListeners;
+    private final XyzListenerTable.Slots enterListeners;
+
+    public XyzStateListenersSnapshot(XyzListenerTable.Slots leaveListeners,
+                                     XyzListenerTable.Slots enterListeners) {
+        this(XyzListenerTable.NO_LISTENERS, leaveListeners, XyzListenerTable.NO_LISTENERS, enterListeners);
     }
 
-    public T notifyTransition(T stateChangeEvent) {
-        for (int i = 0; i < beforeLeave.size(); i++) {
-            callCatchingErrors(stateChangeEvent, beforeLeave.get(i));
-        }
+    private XyzStateListenersSnapshot(XyzListenerTable.Slots parentLeaveListeners,
+                                      XyzListenerTable.Slots leaveListeners,
+                                      XyzListenerTable.Slots parentEnterListeners,
+                                      XyzListenerTable.Slots enterListeners) {
+        this.parentLeaveListeners = parentLeaveListeners;
+        this.leaveListeners = leaveListeners;
+        this.parentEnterListeners = parentEnterListeners;
+        this.enterListeners = enterListeners;
+    }
 
-        for (int i = 0; i < beforeEnter.size(); i++) {
-            callCatchingErrors(stateChangeEvent, beforeEnter.get(i));
-        }
+    /**
+     * Creates a snapshot that notifies the given listeners after the ones
+     * of this snapshot: leave listeners of this snapshot, the given leave
+     * listeners, enter listeners of this snapshot, the given enter listeners.
+     * This snapshot must not have parent listeners itself.
+     */
+    XyzStateListenersSnapshot<T> extend(XyzListenerTable.Slots leaveListeners,
+                                        XyzListenerTable.Slots enterListeners) {
+        return new XyzStateListenersSnapshot<>(this.leaveListeners,
+                                               leaveListeners,
+                                               this.enterListeners,
+                                               enterListeners);
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T> XyzStateListenersSnapshot<T> empty() {
+        return (XyzStateListenersSnapshot<T>) EMPTY;
+    }
+
+    public boolean isEmpty() {
+        return parentLeaveListeners.isEmpty() && leaveListeners.isEmpty() &&
+               parentEnterListeners.isEmpty() && enterListeners.isEmpty();
+    }
+
+    /**
+     * @param stateChangeEvent The event passed to the listeners.
+     * @param diagnostics Where the failing listeners are reported.
+     * @param metrics Where the listener latencies are recorded, or `null`.
+     * @return The event.
+     */
+    public T notifyTransition(T stateChangeEvent, XyzDiagnostics diagnostics, XyzMetrics metrics) {
+        notifyListeners(stateChangeEvent, parentLeaveListeners, diagnostics, metrics);
+        notifyListeners(stateChangeEvent, leaveListeners, diagnostics, metrics);
+        notifyListeners(stateChangeEvent, parentEnterListeners, diagnostics, metrics);
+        notifyListeners(stateChangeEvent, enterListeners, diagnostics, metrics);
 
         return stateChangeEvent;
     }
 
-    private void callCatchingErrors(T stateChangeEvent, Consumer<T> callback) {
+    private void notifyListeners(T stateChangeEvent,
+                                 XyzListenerTable.Slots listeners,
+                                 XyzDiagnostics diagnostics,
+                                 XyzMetrics metrics) {
+        for (int i = 0; i < listeners.size(); i++) {
+            Object callback = listeners.callback(i);
+
+            if (callback == null) { // detached in the meantime
+                continue;
+            }
+
+            if (metrics == null) {
+                callCatchingErrors(stateChangeEvent, callback, diagnostics);
+                continue;
+            }
+
+            long start = System.nanoTime();
+
+            try {
+                callCatchingErrors(stateChangeEvent, callback, diagnostics);
+            } finally {
+                metrics.stateListenerCalled(System.nanoTime() - start);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void callCatchingErrors(T stateChangeEvent, Object callback, XyzDiagnostics diagnostics) {
         try {
-            callback.accept(stateChangeEvent);
+            ((Consumer<T>) callback).accept(stateChangeEvent);
         } catch (Exception e) {
             if (e instanceof XyzStateException) {
                 throw e;
             }
 
-            System.err.printf("%s - %s\n", e, e.getMessage());
-            e.printStackTrace(System.err);
+            diagnostics.listenerFailed(e);
         }
     }
 }
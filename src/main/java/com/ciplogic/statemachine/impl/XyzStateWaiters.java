@@ -0,0 +1,90 @@
+package com.ciplogic.statemachine.impl;
+
+import com.ciplogic.statemachine.XyzState;
+
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The futures waiting for a state machine to enter a state, kept in a
+ * queue per state, so a transition only looks at the waiters of the
+ * state it enters.
+ *
+ * A transition polls its waiters out of the queue before completing them.
+ * Only the waiters completed some other way, cancelled or timed out, are
+ * searched in the queue to be removed, so completing many waiters at once
+ * doesn't scan the queue for each of them.
+ */
+public class XyzStateWaiters {
+    private static final int STATE_COUNT = XyzState.values().length;
+
+    private final AtomicReferenceArray<Queue<Waiter>> waiters = new AtomicReferenceArray<>(STATE_COUNT);
+    private final AtomicIntegerArray counts = new AtomicIntegerArray(STATE_COUNT);
+
+    /**
+     * Adds a future that completes when the state is entered. The future
+     * removes itself if it gets completed, or cancelled, by anyone else.
+     */
+    public CompletableFuture<XyzStateChangeEvent> add(XyzState state) {
+        Queue<Waiter> queue = queue(state);
+        Waiter waiter = new Waiter();
+
+        counts.incrementAndGet(state.ordinal());
+        queue.add(waiter);
+
+        waiter.whenComplete((event, error) -> {
+            if (!waiter.dequeued && queue.remove(waiter)) {
+                counts.decrementAndGet(state.ordinal());
+            }
+        });
+
+        return waiter;
+    }
+
+    public int size(XyzState state) {
+        return counts.get(state.ordinal());
+    }
+
+    /**
+     * Completes the futures waiting for the target state. The event is only
+     * created if someone waits.
+     */
+    public void entered(XyzState previousState, XyzState targetState, Object data) {
+        Queue<Waiter> queue = waiters.get(targetState.ordinal());
+
+        if (queue == null || queue.isEmpty()) {
+            return;
+        }
+
+        XyzStateChangeEvent event = new XyzStateChangeEvent(previousState, targetState, data);
+        Waiter waiter;
+
+        // drained in place, the queue is never swapped, so a waiter added
+        // meanwhile is either seen here, or sees the new state itself.
+        while ((waiter = queue.poll()) != null) {
+            counts.decrementAndGet(targetState.ordinal());
+            waiter.dequeued = true;
+            waiter.complete(event);
+        }
+    }
+
+    private Queue<Waiter> queue(XyzState state) {
+        Queue<Waiter> queue = waiters.get(state.ordinal());
+
+        if (queue != null) {
+            return queue;
+        }
+
+        waiters.compareAndSet(state.ordinal(), null, new ConcurrentLinkedQueue<>());
+
+        return waiters.get(state.ordinal());
+    }
+
+    private static final class Waiter extends CompletableFuture<XyzStateChangeEvent> {
+        // set by the transition that polled it, before completing it.
+        volatile boolean dequeued;
+    }
+}
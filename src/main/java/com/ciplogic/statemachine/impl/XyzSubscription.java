@@ -0,0 +1,18 @@
+package com.ciplogic.statemachine.impl;
+
+/**
+ * The link between a publisher and one of its subscribers, with the
+ * same contract as java.util.concurrent.Flow.Subscription.
+ */
+public interface XyzSubscription {
+    /**
+     * Allows the publisher to send `n` more items to the subscriber.
+     */
+    void request(long n);
+
+    /**
+     * Stops sending items to the subscriber. Items already buffered are
+     * discarded.
+     */
+    void cancel();
+}
@@ -0,0 +1,44 @@
+package com.ciplogic.statemachine.impl;
+
+/**
+ * A timer armed in a XyzTimingWheel. The timer is a node of the list of
+ * its wheel slot, so cancelling it doesn't need to search for it.
+ */
+public class XyzTimeout {
+    final XyzTimingWheel wheel;
+    final Runnable task;
+
+    // the tick when the timer expires.
+    long deadline;
+
+    // the list of the slot, guarded by the wheel.
+    XyzTimeout previous;
+    XyzTimeout next;
+    int level = -1; // -1 when not in the wheel.
+    int slot;
+
+    XyzTimeout(XyzTimingWheel wheel, long deadline, Runnable task) {
+        this.wheel = wheel;
+        this.deadline = deadline;
+        this.task = task;
+    }
+
+    /**
+     * @return false if the timer already expired, or was cancelled.
+     */
+    public boolean cancel() {
+        return wheel.cancel(this);
+    }
+
+    /**
+     * Runs the task of the timer. Called by the owner of the wheel, after
+     * the timer expired.
+     */
+    public void run() {
+        task.run();
+    }
+
+    public long getDeadline() {
+        return deadline;
+    }
+}
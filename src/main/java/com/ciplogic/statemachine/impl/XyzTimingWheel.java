@@ -0,0 +1,163 @@
+package com.ciplogic.statemachine.impl;
+
+import java.util.List;
+
+/**
+ * A hierarchical timing wheel: 4 levels of 256 slots, each slot of a level
+ * covering a full turn of the level below. Timers are kept in the level
+ * that fits their deadline, and moved to the lower levels as the time
+ * advances, so arming and cancelling a timer are O(1), whatever the
+ * number of armed timers is.
+ *
+ * The time is counted in ticks, the duration of a tick is up to the
+ * caller. Timers further than 2^32 ticks are parked in the last level,
+ * and re-inserted when their slot comes up.
+ */
+public class XyzTimingWheel {
+    private static final int LEVELS = 4;
+    private static final int SLOT_BITS = 8;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+
+    private final XyzTimeout[][] wheels = new XyzTimeout[LEVELS][SLOTS];
+
+    private long currentTick;
+    private int size;
+
+    /**
+     * @param delayTicks In how many ticks the timer expires. Timers expire
+     *                   at the earliest on the next tick.
+     * @param task What to run when the timer expires.
+     * @return The armed timer.
+     */
+    public synchronized XyzTimeout schedule(long delayTicks, Runnable task) {
+        if (task == null) {
+            throw new IllegalArgumentException("Can not schedule timeout. The task is null.");
+        }
+
+        XyzTimeout timeout = new XyzTimeout(this, currentTick + Math.max(1, delayTicks), task);
+        insert(timeout);
+        size++;
+
+        return timeout;
+    }
+
+    synchronized boolean cancel(XyzTimeout timeout) {
+        if (timeout.level < 0) {
+            return false;
+        }
+
+        remove(timeout);
+        size--;
+
+        return true;
+    }
+
+    /**
+     * Advances the time, collecting the expired timers in the order of
+     * their deadlines. The tasks are not run, so the caller can run them
+     * without holding the wheel.
+     *
+     * @param toTick The current tick.
+     * @param expired Receives the expired timers.
+     * @return How many timers expired.
+     */
+    public synchronized int advance(long toTick, List<XyzTimeout> expired) {
+        int count = 0;
+
+        while (currentTick < toTick && size > 0) {
+            currentTick++;
+            cascade();
+
+            XyzTimeout timeout = wheels[0][(int) (currentTick & SLOT_MASK)];
+
+            while (timeout != null) {
+                XyzTimeout next = timeout.next;
+                remove(timeout);
+                size--;
+                count++;
+                expired.add(timeout);
+                timeout = next;
+            }
+        }
+
+        // nothing is armed, so there's nothing to visit on the way.
+        if (currentTick < toTick) {
+            currentTick = toTick;
+        }
+
+        return count;
+    }
+
+    public synchronized long getCurrentTick() {
+        return currentTick;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * When a level completes a turn, the next slot of the level above is
+     * spread over the levels below.
+     */
+    private void cascade() {
+        for (int level = 1; level < LEVELS; level++) {
+            if (((currentTick >>> ((level - 1) * SLOT_BITS)) & SLOT_MASK) != 0) {
+                return;
+            }
+
+            int slot = (int) ((currentTick >>> (level * SLOT_BITS)) & SLOT_MASK);
+            XyzTimeout timeout = wheels[level][slot];
+            wheels[level][slot] = null;
+
+            while (timeout != null) {
+                XyzTimeout next = timeout.next;
+                timeout.level = -1;
+                insert(timeout);
+                timeout = next;
+            }
+        }
+    }
+
+    private void insert(XyzTimeout timeout) {
+        long delta = timeout.deadline - currentTick;
+        int level = 0;
+
+        while (level < LEVELS - 1 && delta >= 1L << ((level + 1) * SLOT_BITS)) {
+            level++;
+        }
+
+        long deadline = Math.min(timeout.deadline, currentTick + (1L << (LEVELS * SLOT_BITS)) - 1);
+        int slot = (int) ((deadline >>> (level * SLOT_BITS)) & SLOT_MASK);
+
+        XyzTimeout head = wheels[level][slot];
+
+        timeout.previous = null;
+        timeout.next = head;
+        timeout.level = level;
+        timeout.slot = slot;
+
+        if (head != null) {
+            head.previous = timeout;
+        }
+
+        wheels[level][slot] = timeout;
+    }
+
+    private void remove(XyzTimeout timeout) {
+        if (timeout.previous == null) {
+            wheels[timeout.level][timeout.slot] = timeout.next;
+        } else {
+            timeout.previous.next = timeout.next;
+        }
+
+        if (timeout.next != null) {
+            timeout.next.previous = timeout.previous;
+        }
+
+        timeout.previous = null;
+        timeout.next = null;
+        timeout.level = -1;
+    }
+}
@@ -0,0 +1,32 @@
+package com.ciplogic.statemachine.impl;
+
+/**
+ * What happened to a single state machine in a bulk transition.
+ */
+public enum XyzTransitionOutcome {
+    /**
+     * The state machine moved into the target state.
+     */
+    CHANGED,
+
+    /**
+     * The state machine already was in the target state.
+     */
+    NO_OP,
+
+    /**
+     * There is no transition (or link) from the current state.
+     */
+    REJECTED,
+
+    /**
+     * A listener cancelled the transition.
+     */
+    CANCELLED;
+
+    private static final XyzTransitionOutcome[] VALUES = values();
+
+    static XyzTransitionOutcome valueOf(byte code) {
+        return VALUES[code];
+    }
+}
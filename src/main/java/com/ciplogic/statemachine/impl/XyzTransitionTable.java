@@ -0,0 +1,99 @@
+package com.ciplogic.statemachine.impl;
+
+import com.ciplogic.statemachine.XyzState;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Dense transition matrix, indexed by the ordinals of the states.
+ *
+ * The transitions are registered while the state machine class is
+ * initialized, then the table gets frozen. After that it is read only,
+ * so it can be queried from any thread without locking.
+ *
+ * The generated state machines pass all their transitions at once, from
+ * a `static final` array, so the table is frozen when it is created.
+ */
+public class XyzTransitionTable {
+    private static final XyzState[] STATES = XyzState.values();
+
+    private final long[] matrix = new long[(STATES.length * STATES.length + 63) >>> 6];
+    private final Set<XyzState>[] allowedTargets;
+
+    private boolean frozen;
+
+    @SuppressWarnings("unchecked")
+    public XyzTransitionTable() {
+        this.allowedTargets = new Set[STATES.length];
+    }
+
+    /**
+     * Creates a frozen table.
+     *
+     * @param transitions Pairs of {fromState, toState}.
+     */
+    public XyzTransitionTable(XyzState[][] transitions) {
+        this();
+
+        for (XyzState[] transition : transitions) {
+            registerTransition(transition[0], transition[1]);
+        }
+
+        freeze();
+    }
+
+    public void registerTransition(XyzState fromState, XyzState toState) {
+        if (frozen) {
+            throw new IllegalStateException(String.format(
+                    "Can not register transition %s -> %s. The transition table is frozen.",
+                    fromState,
+                    toState
+            ));
+        }
+
+        int index = index(fromState, toState);
+        matrix[index >>> 6] |= 1L << index;
+    }
+
+    /**
+     * Precomputes the allowed targets for every state, and stops
+     * accepting new transitions.
+     * @return this table.
+     */
+    public XyzTransitionTable freeze() {
+        for (XyzState fromState : STATES) {
+            EnumSet<XyzState> targets = EnumSet.noneOf(XyzState.class);
+
+            for (XyzState toState : STATES) {
+                if (canTransition(fromState, toState)) {
+                    targets.add(toState);
+                }
+            }
+
+            allowedTargets[fromState.ordinal()] = Collections.unmodifiableSet(targets);
+        }
+
+        frozen = true;
+
+        return this;
+    }
+
+    public boolean canTransition(XyzState fromState, XyzState toState) {
+        int index = index(fromState, toState);
+        return (matrix[index >>> 6] & (1L << index)) != 0;
+    }
+
+    /**
+     * @param state The state to check.
+     * @return The states that can be reached directly from the given state.
+     */
+    public Set<XyzState> allowedTargets(XyzState state) {
+        return allowedTargets[state.ordinal()];
+    }
+
+    private static int index(XyzState fromState, XyzState toState) {
+        return fromState.ordinal() * STATES.length + toState.ordinal();
+    }
+}
@@ -0,0 +1,143 @@
+package com.ciplogic.statemachine;
+
+import com.ciplogic.statemachine.impl.XyzJournal;
+import com.ciplogic.statemachine.impl.XyzStateChangeEvent;
+import com.ciplogic.statemachine.impl.XyzStateException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class XyzJournalTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testReplayingTheJournal() throws Exception {
+        Path file = temporaryFolder.newFile().toPath();
+        List<XyzStateMachine> stateMachines = new ArrayList<>();
+
+        try (XyzJournal journal = new XyzJournal(file, 1000, 1, data -> (Integer) data)) {
+            for (int i = 0; i < 3; i++) {
+                XyzStateMachine stateMachine = new XyzStateMachine();
+                stateMachine.setJournal(journal, i);
+                stateMachines.add(stateMachine);
+            }
+
+            stateMachines.get(0).changeState(XyzState.RUNNING, 7);
+            stateMachines.get(1).changeState(XyzState.STOPPED);
+            stateMachines.get(0).changeState(XyzState.DEFAULT);
+
+            journal.awaitDurable(journal.sequence());
+        }
+
+        try (XyzJournal journal = new XyzJournal(file, 1000)) {
+            List<String> records = new ArrayList<>();
+
+            journal.replay((id, fromState, toState, timestamp, dataReference) ->
+                    records.add(id + ":" + fromState + "->" + toState + ":" + dataReference));
+
+            assertEquals(5, records.size());
+            assertTrue(records.contains("0:DEFAULT->RUNNING:7"));
+
+            List<XyzStateMachine> restored = new ArrayList<>();
+
+            for (int i = 0; i < 3; i++) {
+                restored.add(new XyzStateMachine());
+            }
+
+            assertEquals(5, XyzStateMachine.replayJournal(journal, id -> restored.get((int) id)));
+
+            assertEquals(XyzState.DEFAULT, restored.get(0).getState());
+            assertEquals(XyzState.STOPPED, restored.get(1).getState());
+            assertEquals(XyzState.DEFAULT, restored.get(2).getState()); // never used
+        }
+    }
+
+    @Test
+    public void testFullJournalFailsTheTransition() throws Exception {
+        try (XyzJournal journal = new XyzJournal(temporaryFolder.newFile().toPath(), 1)) {
+            XyzStateMachine stateMachine = new XyzStateMachine();
+            stateMachine.setJournal(journal, 0);
+
+            stateMachine.getState(); // the initialization takes the only record
+
+            try {
+                stateMachine.changeState(XyzState.RUNNING);
+                throw new AssertionError("The transition should fail.");
+            } catch (XyzStateException e) {
+                assertEquals(XyzState.DEFAULT, stateMachine.getState());
+            }
+        }
+    }
+
+    @Test
+    public void testCompactingAgainstASnapshot() throws Exception {
+        Path file = temporaryFolder.newFile().toPath();
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+
+        // the initialization of the state machines is journaled too.
+        try (XyzJournal journal = new XyzJournal(file, 20)) {
+            XyzStateMachineFleet fleet = new XyzStateMachineFleet(100);
+            fleet.setJournal(journal);
+
+            for (int i = 0; i < 8; i++) {
+                fleet.changeState(i, XyzState.RUNNING);
+            }
+
+            long sequence = journal.sequence();
+            fleet.writeSnapshot(Channels.newChannel(snapshot));
+            journal.compact(sequence);
+
+            fleet.changeState(0, XyzState.STOPPED);
+            fleet.changeState(1, XyzState.DEFAULT);
+        }
+
+        try (XyzJournal journal = new XyzJournal(file, 20)) {
+            List<String> records = new ArrayList<>();
+            journal.replay((id, fromState, toState, timestamp, dataReference) -> records.add(id + ":" + toState));
+
+            assertEquals(2, records.size());
+
+            XyzStateMachineFleet restored = new XyzStateMachineFleet(100);
+            restored.readSnapshot(Channels.newChannel(new ByteArrayInputStream(snapshot.toByteArray())));
+            restored.replayJournal(journal);
+
+            assertEquals(XyzState.STOPPED, restored.getState(0));
+            assertEquals(XyzState.DEFAULT, restored.getState(1));
+            assertEquals(XyzState.RUNNING, restored.getState(7));
+            assertEquals(XyzState.DEFAULT, restored.getState(8));
+        }
+    }
+
+    @Test
+    public void testJournalingKeepsTheListeners() throws Exception {
+        try (XyzJournal journal = new XyzJournal(temporaryFolder.newFile().toPath(), 100)) {
+            XyzStateMachine stateMachine = new XyzStateMachine();
+            stateMachine.setJournal(journal, 1);
+
+            List<XyzState> entered = new ArrayList<>();
+            stateMachine.afterEnter(null, (XyzStateChangeEvent ev) -> entered.add(ev.getTargetState()));
+            stateMachine.beforeEnter(XyzState.STOPPED, XyzStateChangeEvent::cancel);
+
+            stateMachine.changeState(XyzState.RUNNING);
+            stateMachine.changeState(XyzState.STOPPED); // cancelled, not journaled
+
+            List<XyzState> journaled = new ArrayList<>();
+            journal.replay((id, fromState, toState, timestamp, dataReference) -> journaled.add(toState));
+
+            assertEquals(Arrays.asList(XyzState.DEFAULT, XyzState.RUNNING), journaled);
+            assertEquals(entered, journaled);
+        }
+    }
+}
@@ -0,0 +1,394 @@
+package com.ciplogic.statemachine;
+
+import com.ciplogic.statemachine.impl.XyzDiagnostics;
+import com.ciplogic.statemachine.impl.XyzFleetStateChangeEvent;
+import com.ciplogic.statemachine.impl.XyzOverflowPolicy;
+import com.ciplogic.statemachine.impl.XyzStateChangeEvent;
+import com.ciplogic.statemachine.impl.XyzStateChangePublisher;
+import com.ciplogic.statemachine.impl.XyzStateChangeSubscriber;
+import com.ciplogic.statemachine.impl.XyzSubscription;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class XyzStateChangePublisherTest {
+    @Test
+    public void testBlockingSubscriberGetsEveryStateChange() throws Exception {
+        XyzStateMachine stateMachine = new XyzStateMachine();
+        RecordingSubscriber<XyzStateChangeEvent> subscriber = new RecordingSubscriber<>(Long.MAX_VALUE);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        stateMachine.getPublisher().subscribe(subscriber, 2, XyzOverflowPolicy.BLOCK, executor);
+
+        for (int i = 0; i < 100; i++) {
+            stateMachine.changeState(XyzState.RUNNING);
+            stateMachine.changeState(XyzState.DEFAULT);
+        }
+
+        stateMachine.getPublisher().close();
+
+        assertTrue(subscriber.completed.await(5, TimeUnit.SECONDS));
+        assertEquals(201, subscriber.states.size()); // with the initialization
+
+        for (int i = 1; i < subscriber.states.size(); i++) {
+            assertEquals(i % 2 == 1 ? XyzState.RUNNING : XyzState.DEFAULT, subscriber.states.get(i));
+        }
+
+        executor.shutdown();
+    }
+
+    @Test
+    public void testTransitionsNestedInAfterListenersArePublishedInCommitOrder() {
+        XyzStateMachine stateMachine = new XyzStateMachine();
+        List<String> events = new CopyOnWriteArrayList<>();
+
+        stateMachine.afterEnter(XyzState.RUNNING, () -> {
+            stateMachine.changeState(XyzState.STOPPED);
+        });
+
+        stateMachine.getPublisher().subscribe(new RecordingSubscriber<XyzStateChangeEvent>(Long.MAX_VALUE) {
+            @Override
+            public void onNext(XyzStateChangeEvent item) {
+                events.add(item.getPreviousState() + "->" + item.getTargetState());
+            }
+        }, 16, XyzOverflowPolicy.BLOCK, Runnable::run);
+
+        CompletableFuture<XyzStateChangeEvent> stopped = stateMachine.whenEnters(XyzState.STOPPED);
+        stateMachine.changeState(XyzState.RUNNING);
+
+        assertEquals(Arrays.asList("null->DEFAULT", "DEFAULT->RUNNING", "RUNNING->STOPPED"), events);
+        assertEquals(XyzState.RUNNING, stopped.join().getPreviousState());
+    }
+
+    @Test
+    public void testConcurrentTransitionsArePublishedInCommitOrder() throws Exception {
+        XyzStateMachine stateMachine = new XyzStateMachine();
+        List<XyzStateChangeEvent> events = Collections.synchronizedList(new ArrayList<>());
+        ExecutorService subscriberExecutor = Executors.newSingleThreadExecutor();
+        ExecutorService transitionExecutor = Executors.newFixedThreadPool(3);
+
+        RecordingSubscriber<XyzStateChangeEvent> subscriber = new RecordingSubscriber<XyzStateChangeEvent>(Long.MAX_VALUE) {
+            @Override
+            public void onNext(XyzStateChangeEvent item) {
+                events.add(item);
+            }
+        };
+
+        stateMachine.getPublisher().subscribe(subscriber, 1024, XyzOverflowPolicy.BLOCK, subscriberExecutor);
+
+        List<Future<?>> transitions = new ArrayList<>();
+
+        for (int i = 0; i < 3; i++) {
+            transitions.add(transitionExecutor.submit(() -> {
+                for (int j = 0; j < 20000; j++) {
+                    stateMachine.changeState(XyzState.RUNNING);
+                    stateMachine.changeState(XyzState.DEFAULT);
+                }
+            }));
+        }
+
+        for (Future<?> transition : transitions) {
+            transition.get(30, TimeUnit.SECONDS);
+        }
+
+        stateMachine.getPublisher().close();
+        assertTrue(subscriber.completed.await(10, TimeUnit.SECONDS));
+
+        for (int i = 1; i < events.size(); i++) {
+            assertEquals(events.get(i - 1).getTargetState(), events.get(i).getPreviousState());
+        }
+
+        subscriberExecutor.shutdown();
+        transitionExecutor.shutdown();
+    }
+
+    @Test
+    public void testBlockingSubscriberDoesNotHoldTheStateMachineLock() throws Exception {
+        XyzStateMachine stateMachine = new XyzStateMachine();
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService subscriberExecutor = Executors.newSingleThreadExecutor();
+        ExecutorService transitionExecutor = Executors.newSingleThreadExecutor();
+
+        RecordingSubscriber<XyzStateChangeEvent> subscriber = new RecordingSubscriber<XyzStateChangeEvent>(Long.MAX_VALUE) {
+            @Override
+            public void onNext(XyzStateChangeEvent item) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+
+                super.onNext(item);
+            }
+        };
+
+        stateMachine.getPublisher().subscribe(subscriber, 1, XyzOverflowPolicy.BLOCK, subscriberExecutor);
+
+        Future<?> transitions = transitionExecutor.submit(() -> {
+            for (int i = 0; i < 10; i++) {
+                stateMachine.changeState(XyzState.RUNNING);
+                stateMachine.changeState(XyzState.DEFAULT);
+            }
+        });
+
+        // the transitions wait for the subscriber, but not holding the monitor.
+        Thread.sleep(100);
+        assertFalse(transitions.isDone());
+
+        Future<?> lockingCall = ForkJoinPool.commonPool().submit(() -> stateMachine.setIndex(null));
+        lockingCall.get(5, TimeUnit.SECONDS);
+
+        release.countDown();
+        transitions.get(5, TimeUnit.SECONDS);
+        stateMachine.getPublisher().close();
+
+        assertTrue(subscriber.completed.await(5, TimeUnit.SECONDS));
+        assertEquals(21, subscriber.states.size()); // with the initialization
+
+        subscriberExecutor.shutdown();
+        transitionExecutor.shutdown();
+    }
+
+    @Test
+    public void testDroppingSubscriberDoesNotSlowDownTheStateMachine() throws Exception {
+        XyzStateMachine stateMachine = new XyzStateMachine();
+        RecordingSubscriber<XyzStateChangeEvent> subscriber = new RecordingSubscriber<>(0);
+        XyzStateChangePublisher<XyzStateChangeEvent> publisher = stateMachine.getPublisher();
+
+        publisher.subscribe(subscriber, 4, XyzOverflowPolicy.DROP, Runnable::run);
+
+        for (int i = 0; i < 100; i++) {
+            stateMachine.changeState(XyzState.RUNNING);
+            stateMachine.changeState(XyzState.DEFAULT);
+        }
+
+        assertEquals(201 - 4, publisher.getOverflowCount());
+
+        subscriber.subscription.request(10);
+
+        // the first state changes were kept.
+        assertEquals(4, subscriber.states.size());
+        assertEquals(XyzState.DEFAULT, subscriber.states.get(0));
+        assertEquals(XyzState.RUNNING, subscriber.states.get(1));
+    }
+
+    @Test
+    public void testConflatingSubscriberGetsTheLatestState() throws Exception {
+        XyzStateMachineFleet fleet = new XyzStateMachineFleet(1);
+        RecordingSubscriber<XyzFleetStateChangeEvent> subscriber = new RecordingSubscriber<>(0);
+
+        fleet.getPublisher().subscribe(subscriber, 1, XyzOverflowPolicy.CONFLATE, Runnable::run);
+
+        fleet.changeState(0, XyzState.RUNNING);
+        fleet.changeState(0, XyzState.DEFAULT);
+        fleet.changeState(0, XyzState.STOPPED);
+
+        subscriber.subscription.request(10);
+
+        assertEquals(1, subscriber.states.size());
+        assertEquals(XyzState.STOPPED, subscriber.states.get(0));
+    }
+
+    @Test
+    public void testFleetStateChangesArePublishedInCommitOrder() throws Exception {
+        XyzStateMachineFleet fleet = new XyzStateMachineFleet(2);
+        List<XyzFleetStateChangeEvent> events = Collections.synchronizedList(new ArrayList<>());
+        ExecutorService subscriberExecutor = Executors.newSingleThreadExecutor();
+        ExecutorService transitionExecutor = Executors.newFixedThreadPool(3);
+
+        RecordingSubscriber<XyzFleetStateChangeEvent> subscriber = new RecordingSubscriber<XyzFleetStateChangeEvent>(Long.MAX_VALUE) {
+            @Override
+            public void onNext(XyzFleetStateChangeEvent item) {
+                events.add(item);
+            }
+        };
+
+        fleet.getPublisher().subscribe(subscriber, 1024, XyzOverflowPolicy.BLOCK, subscriberExecutor);
+
+        List<Future<?>> transitions = new ArrayList<>();
+
+        for (int i = 0; i < 3; i++) {
+            final int id = i % 2;
+
+            transitions.add(transitionExecutor.submit(() -> {
+                for (int j = 0; j < 20000; j++) {
+                    fleet.changeState(id, XyzState.RUNNING);
+                    fleet.changeState(id, XyzState.DEFAULT);
+                }
+            }));
+        }
+
+        for (Future<?> transition : transitions) {
+            transition.get(30, TimeUnit.SECONDS);
+        }
+
+        fleet.getPublisher().close();
+        assertTrue(subscriber.completed.await(10, TimeUnit.SECONDS));
+
+        XyzState[] lastStates = new XyzState[2];
+
+        for (XyzFleetStateChangeEvent event : events) {
+            assertEquals(lastStates[event.getId()], event.getPreviousState());
+            lastStates[event.getId()] = event.getTargetState();
+        }
+
+        subscriberExecutor.shutdown();
+        transitionExecutor.shutdown();
+    }
+
+    @Test
+    public void testInvalidRequestFailsTheSubscription() throws Exception {
+        XyzStateMachine stateMachine = new XyzStateMachine();
+        RecordingSubscriber<XyzStateChangeEvent> subscriber = new RecordingSubscriber<>(0);
+
+        stateMachine.getPublisher().subscribe(subscriber, 4, XyzOverflowPolicy.BLOCK, Runnable::run);
+        subscriber.subscription.request(0);
+
+        assertTrue(subscriber.error instanceof IllegalArgumentException);
+        assertEquals(0, stateMachine.getPublisher().getSubscriberCount());
+    }
+
+    @Test
+    public void testFailingSubscriberGetsItsErrorAndIsCancelled() throws Exception {
+        XyzStateMachine stateMachine = new XyzStateMachine();
+        RuntimeException failure = new IllegalStateException("subscriber error");
+
+        RecordingSubscriber<XyzStateChangeEvent> subscriber = new RecordingSubscriber<XyzStateChangeEvent>(Long.MAX_VALUE) {
+            @Override
+            public void onNext(XyzStateChangeEvent item) {
+                throw failure;
+            }
+        };
+
+        stateMachine.getPublisher().subscribe(subscriber, 4, XyzOverflowPolicy.BLOCK, Runnable::run);
+        stateMachine.changeState(XyzState.RUNNING);
+
+        assertEquals(failure, subscriber.error);
+        assertEquals(0, stateMachine.getPublisher().getSubscriberCount());
+    }
+
+    @Test
+    public void testFailingOnErrorIsReportedToTheDiagnostics() {
+        XyzStateMachine stateMachine = new XyzStateMachine();
+        List<Exception> reported = new CopyOnWriteArrayList<>();
+        RuntimeException failure = new IllegalStateException("onError error");
+
+        stateMachine.setDiagnostics(new XyzDiagnostics() {
+            @Override
+            public void invalidTransition(XyzState fromState, XyzState toState) {
+            }
+
+            @Override
+            public void listenerFailed(Exception error) {
+                reported.add(error);
+            }
+        });
+
+        RecordingSubscriber<XyzStateChangeEvent> subscriber = new RecordingSubscriber<XyzStateChangeEvent>(Long.MAX_VALUE) {
+            @Override
+            public void onNext(XyzStateChangeEvent item) {
+                throw new IllegalStateException("onNext error");
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                throw failure;
+            }
+        };
+
+        stateMachine.getPublisher().subscribe(subscriber, 4, XyzOverflowPolicy.BLOCK, Runnable::run);
+        stateMachine.changeState(XyzState.RUNNING);
+
+        assertEquals(1, reported.size());
+        assertEquals(failure, reported.get(0));
+        assertEquals(0, stateMachine.getPublisher().getSubscriberCount());
+    }
+
+    @Test
+    public void testSlowSubscribersDontHoldTheTransitions() throws Exception {
+        XyzStateMachine stateMachine = new XyzStateMachine();
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        RecordingSubscriber<XyzStateChangeEvent> subscriber = new RecordingSubscriber<XyzStateChangeEvent>(Long.MAX_VALUE) {
+            @Override
+            public void onNext(XyzStateChangeEvent item) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+
+                super.onNext(item);
+            }
+        };
+
+        stateMachine.getPublisher().subscribe(subscriber, 1, XyzOverflowPolicy.CONFLATE, executor);
+
+        for (int i = 0; i < 10_000; i++) {
+            stateMachine.changeState(XyzState.RUNNING);
+            stateMachine.changeState(XyzState.DEFAULT);
+        }
+
+        release.countDown();
+        stateMachine.getPublisher().close();
+
+        assertTrue(subscriber.completed.await(5, TimeUnit.SECONDS));
+        assertEquals(XyzState.DEFAULT, subscriber.states.get(subscriber.states.size() - 1));
+
+        executor.shutdown();
+    }
+
+    private static class RecordingSubscriber<T extends XyzStateChangeEvent> implements XyzStateChangeSubscriber<T> {
+        private final long initialRequest;
+
+        final List<XyzState> states = new CopyOnWriteArrayList<>();
+        final CountDownLatch completed = new CountDownLatch(1);
+
+        volatile XyzSubscription subscription;
+        volatile Throwable error;
+
+        RecordingSubscriber(long initialRequest) {
+            this.initialRequest = initialRequest;
+        }
+
+        @Override
+        public void onSubscribe(XyzSubscription subscription) {
+            this.subscription = subscription;
+
+            if (initialRequest > 0) {
+                subscription.request(initialRequest);
+            }
+        }
+
+        @Override
+        public void onNext(T item) {
+            states.add(item.getTargetState());
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+        }
+
+        @Override
+        public void onComplete() {
+            completed.countDown();
+        }
+    }
+}
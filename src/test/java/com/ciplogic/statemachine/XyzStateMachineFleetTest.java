@@ -0,0 +1,292 @@
+package com.ciplogic.statemachine;
+
+import com.ciplogic.statemachine.impl.XyzBulkResult;
+import com.ciplogic.statemachine.impl.XyzFleetDataEvent;
+import com.ciplogic.statemachine.impl.XyzFleetStateChangeEvent;
+import com.ciplogic.statemachine.impl.XyzStateException;
+import com.ciplogic.statemachine.impl.XyzTransitionOutcome;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class XyzStateMachineFleetTest {
+    @Test
+    public void testStateMachinesAreIndependent() {
+        XyzStateMachineFleet fleet = new XyzStateMachineFleet(3);
+
+        assertEquals(3, fleet.size());
+        assertEquals(XyzState.RUNNING, fleet.changeState(1, XyzState.RUNNING));
+        assertEquals(XyzState.STOPPED, fleet.changeState(2, XyzState.STOPPED));
+
+        assertEquals(XyzState.DEFAULT, fleet.getState(0));
+        assertEquals(XyzState.RUNNING, fleet.getState(1));
+        assertEquals(XyzState.STOPPED, fleet.getState(2));
+
+        // STOPPED -> RUNNING is not a valid transition.
+        assertEquals(XyzState.STOPPED, fleet.changeState(2, XyzState.RUNNING));
+        assertEquals(XyzState.RUNNING, fleet.transition(0, "run"));
+    }
+
+    @Test
+    public void testListenersReceiveTheId() {
+        XyzStateMachineFleet fleet = new XyzStateMachineFleet(10, XyzState.DEFAULT);
+        List<String> events = new ArrayList<>();
+
+        fleet.beforeEnter(XyzState.RUNNING, (XyzFleetStateChangeEvent ev) -> {
+            if (ev.getId() == 3) {
+                ev.cancel();
+            }
+        });
+
+        fleet.afterEnter(XyzState.RUNNING, (XyzFleetStateChangeEvent ev) -> {
+            events.add(ev.getId() + ":" + ev.getPreviousState() + "->" + ev.getTargetState());
+        });
+
+        fleet.onData(XyzState.RUNNING, (XyzFleetDataEvent<String> ev) -> {
+            events.add(ev.getId() + ":" + ev.getData());
+            return XyzState.STOPPED;
+        });
+
+        fleet.changeState(7, XyzState.RUNNING);
+        assertEquals(XyzState.DEFAULT, fleet.changeState(3, XyzState.RUNNING));
+        assertEquals(XyzState.STOPPED, fleet.sendData(7, "x"));
+        assertEquals(XyzState.DEFAULT, fleet.sendData(5, "y"));
+
+        assertEquals(Arrays.asList("7:DEFAULT->RUNNING", "7:x"), events);
+    }
+
+    @Test(expected = XyzStateException.class)
+    public void testChangingStateInBeforeListenersFails() {
+        XyzStateMachineFleet fleet = new XyzStateMachineFleet(2);
+
+        fleet.beforeEnter(XyzState.RUNNING, (XyzFleetStateChangeEvent ev) -> {
+            fleet.changeState(ev.getId(), XyzState.STOPPED);
+        });
+
+        fleet.changeState(1, XyzState.RUNNING);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testUnknownId() {
+        new XyzStateMachineFleet(2).getState(2);
+    }
+
+    @Test
+    public void testSnapshot() throws Exception {
+        XyzStateMachineFleet fleet = new XyzStateMachineFleet(1_000_000);
+
+        for (int i = 0; i < fleet.size(); i += 3) {
+            fleet.changeState(i, XyzState.RUNNING);
+        }
+
+        fleet.changeState(1, XyzState.STOPPED);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        fleet.writeSnapshot(Channels.newChannel(output));
+
+        XyzStateMachineFleet restored = new XyzStateMachineFleet(1_000_000);
+        restored.readSnapshot(Channels.newChannel(new ByteArrayInputStream(output.toByteArray())));
+
+        for (int i = 0; i < fleet.size(); i++) {
+            assertEquals(fleet.getState(i), restored.getState(i));
+        }
+    }
+
+    @Test
+    public void testConcurrentTransitions() throws Exception {
+        int size = 10_000;
+        XyzStateMachineFleet fleet = new XyzStateMachineFleet(size);
+        AtomicInteger enteredRunning = new AtomicInteger();
+
+        fleet.afterEnter(XyzState.RUNNING, (XyzFleetStateChangeEvent ev) -> enteredRunning.incrementAndGet());
+
+        ExecutorService executorService = Executors.newFixedThreadPool(4);
+
+        for (int thread = 0; thread < 4; thread++) {
+            executorService.execute(() -> {
+                for (int i = 0; i < size; i++) {
+                    fleet.changeState(i, XyzState.RUNNING);
+                }
+            });
+        }
+
+        executorService.shutdown();
+        assertTrue(executorService.awaitTermination(10, TimeUnit.SECONDS));
+
+        // every state machine entered RUNNING exactly once.
+        assertEquals(size, enteredRunning.get());
+
+        for (int i = 0; i < size; i++) {
+            assertEquals(XyzState.RUNNING, fleet.getState(i));
+        }
+    }
+
+    @Test
+    public void testSlowListenersDontHoldTheOtherStateMachinesOfTheStripe() throws Exception {
+        // 2048 state machines on 1024 stripes, so 0 and 1024 share a lock.
+        XyzStateMachineFleet fleet = new XyzStateMachineFleet(2048);
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        fleet.beforeEnter(XyzState.RUNNING, (XyzFleetStateChangeEvent ev) -> {
+            if (ev.getId() != 0) {
+                return;
+            }
+
+            entered.countDown();
+
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        Future<XyzState> slowTransition = executorService.submit(() -> fleet.changeState(0, XyzState.RUNNING));
+
+        assertTrue(entered.await(5, TimeUnit.SECONDS));
+        assertEquals(XyzState.RUNNING, fleet.changeState(1024, XyzState.RUNNING));
+        assertEquals(XyzState.DEFAULT, fleet.getState(0));
+
+        release.countDown();
+        assertEquals(XyzState.RUNNING, slowTransition.get(5, TimeUnit.SECONDS));
+
+        executorService.shutdown();
+    }
+
+    @Test
+    public void testAfterListenersChangingOtherStateMachinesDontDeadlock() throws Exception {
+        XyzStateMachineFleet fleet = new XyzStateMachineFleet(2);
+
+        // each state machine that enters RUNNING stops the other one.
+        fleet.afterEnter(XyzState.RUNNING, (XyzFleetStateChangeEvent ev) -> {
+            fleet.changeState(1 - ev.getId(), XyzState.STOPPED);
+        });
+
+        ExecutorService executorService = Executors.newFixedThreadPool(2);
+
+        for (int thread = 0; thread < 2; thread++) {
+            final int id = thread;
+
+            executorService.execute(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    fleet.changeState(id, XyzState.RUNNING);
+                    fleet.changeState(id, XyzState.DEFAULT);
+                }
+            });
+        }
+
+        executorService.shutdown();
+        assertTrue(executorService.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testAfterListenersSeeTheTransitionsInCommitOrder() throws Exception {
+        XyzStateMachineFleet fleet = new XyzStateMachineFleet(4);
+        List<XyzFleetStateChangeEvent> events = new ArrayList<>(); // changed by one dispatching thread at a time
+
+        fleet.getState(0);
+        fleet.afterEnter(null, (XyzFleetStateChangeEvent ev) -> {
+            if (ev.getId() == 0) {
+                events.add(ev);
+            }
+        });
+
+        ExecutorService executorService = Executors.newFixedThreadPool(3);
+
+        for (int thread = 0; thread < 3; thread++) {
+            executorService.execute(() -> {
+                for (int i = 0; i < 20_000; i++) {
+                    fleet.changeState(0, XyzState.RUNNING);
+                    fleet.changeState(0, XyzState.DEFAULT);
+                }
+            });
+        }
+
+        executorService.shutdown();
+        assertTrue(executorService.awaitTermination(30, TimeUnit.SECONDS));
+
+        for (int i = 1; i < events.size(); i++) {
+            assertEquals(events.get(i - 1).getTargetState(), events.get(i).getPreviousState());
+        }
+    }
+
+    @Test
+    public void testBulkOutcomesUnderConcurrentTransitions() throws Exception {
+        int size = 20_000;
+        XyzStateMachineFleet fleet = new XyzStateMachineFleet(size);
+        AtomicInteger entered = new AtomicInteger();
+
+        fleet.afterEnter(XyzState.RUNNING, (XyzFleetStateChangeEvent ev) -> entered.incrementAndGet());
+
+        for (int id = 0; id < size; id++) {
+            fleet.getState(id);
+        }
+
+        // races the bulk transition, making RUNNING unreachable.
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        Future<?> stopping = executorService.submit(() -> {
+            for (int id = 0; id < size; id++) {
+                fleet.changeState(id, XyzState.STOPPED);
+            }
+        });
+
+        XyzBulkResult result = fleet.changeStateAll(XyzState.RUNNING);
+        stopping.get(30, TimeUnit.SECONDS);
+        executorService.shutdown();
+
+        assertEquals(entered.get(), result.count(XyzTransitionOutcome.CHANGED));
+        assertEquals(size - entered.get(), result.count(XyzTransitionOutcome.REJECTED));
+    }
+
+    @Test
+    public void testBulkTransitionOutcomes() {
+        int size = 10_000;
+        XyzStateMachineFleet fleet = new XyzStateMachineFleet(size);
+
+        // RUNNING is left only for the odd ids.
+        fleet.beforeLeave(XyzState.RUNNING, (XyzFleetStateChangeEvent ev) -> {
+            if (ev.getId() % 2 == 0) {
+                ev.cancel();
+            }
+        });
+
+        for (int id = 0; id < size; id++) {
+            fleet.changeState(id, id % 3 == 0 ? XyzState.STOPPED : XyzState.RUNNING);
+        }
+
+        XyzBulkResult result = fleet.changeStateAll(XyzState.DEFAULT);
+
+        assertEquals(size, result.size());
+
+        for (int id = 0; id < size; id++) {
+            XyzTransitionOutcome expected = id % 3 == 0 ? XyzTransitionOutcome.REJECTED :
+                                            id % 2 == 0 ? XyzTransitionOutcome.CANCELLED :
+                                            XyzTransitionOutcome.CHANGED;
+
+            assertEquals(expected, result.getOutcome(id));
+        }
+
+        // only the ones that changed are in DEFAULT, and have the link.
+        int changed = result.count(XyzTransitionOutcome.CHANGED);
+        result = fleet.transitionAll(XyzLink.run);
+
+        assertEquals(changed, result.count(XyzTransitionOutcome.CHANGED));
+        assertEquals(size - changed, result.count(XyzTransitionOutcome.REJECTED));
+    }
+}
@@ -0,0 +1,199 @@
+package com.ciplogic.statemachine;
+
+import com.ciplogic.statemachine.impl.XyzDataEvent;
+import com.ciplogic.statemachine.impl.XyzDiagnostics;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class XyzStateMachineSchedulerTest {
+    @Test
+    public void testCommandsOfEachStateMachineStayInOrder() throws Exception {
+        try (XyzStateMachineScheduler scheduler = new XyzStateMachineScheduler(4)) {
+            checkOrder(scheduler);
+        }
+    }
+
+    @Test
+    public void testVirtualThreadWorkers() throws Exception {
+        Assume.assumeTrue(XyzStateMachineScheduler.isVirtualThreadsSupported());
+
+        try (XyzStateMachineScheduler scheduler = XyzStateMachineScheduler.withVirtualThreads(4)) {
+            checkOrder(scheduler);
+        }
+    }
+
+    @Test
+    public void testCommandsAfterCloseRunInTheCaller() throws Exception {
+        XyzStateMachineScheduler scheduler = new XyzStateMachineScheduler(2);
+        XyzStateMachineMailbox mailbox = scheduler.mailbox(1, new XyzStateMachine());
+
+        scheduler.close();
+
+        assertEquals(XyzState.RUNNING, mailbox.changeState(XyzState.RUNNING).get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testCommandsSentWhileClosingAreNotLost() throws Exception {
+        XyzStateMachineScheduler scheduler = new XyzStateMachineScheduler(2);
+        List<XyzStateMachineMailbox> mailboxes = new ArrayList<>();
+        List<CompletableFuture<XyzState>> results = Collections.synchronizedList(new ArrayList<>());
+
+        for (int i = 0; i < 4; i++) {
+            mailboxes.add(scheduler.mailbox(i, new XyzStateMachine()));
+        }
+
+        ExecutorService senders = Executors.newFixedThreadPool(4);
+
+        for (XyzStateMachineMailbox mailbox : mailboxes) {
+            senders.execute(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    results.add(mailbox.sendData(i));
+                }
+            });
+        }
+
+        scheduler.close();
+
+        senders.shutdown();
+        assertTrue(senders.awaitTermination(10, TimeUnit.SECONDS));
+
+        CompletableFuture.allOf(results.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+        assertEquals(40_000, results.size());
+    }
+
+    @Test
+    public void testFailingTasksAreReported() throws Exception {
+        CompletableFuture<Exception> reported = new CompletableFuture<>();
+
+        try (XyzStateMachineScheduler scheduler = new XyzStateMachineScheduler(1)) {
+            scheduler.setDiagnostics(new XyzDiagnostics() {
+                @Override
+                public void invalidTransition(XyzState fromState, XyzState toState) {
+                }
+
+                @Override
+                public void listenerFailed(Exception error) {
+                    reported.complete(error);
+                }
+            });
+
+            scheduler.executor(0).execute(() -> {
+                throw new IllegalStateException("task error");
+            });
+
+            assertEquals("task error", reported.get(5, TimeUnit.SECONDS).getMessage());
+        }
+    }
+
+    @Test
+    public void testTasksAfterCloseRunInTheCaller() {
+        XyzStateMachineScheduler scheduler = new XyzStateMachineScheduler(1);
+        scheduler.close();
+
+        Thread[] runner = new Thread[1];
+        scheduler.executor(0).execute(() -> runner[0] = Thread.currentThread());
+
+        assertEquals(Thread.currentThread(), runner[0]);
+    }
+
+    @Test
+    public void testTasksOfAnExecutorStayInOrder() throws Exception {
+        List<Integer> executed = new ArrayList<>(); // the tasks never overlap
+        int taskCount = 100_000;
+
+        try (XyzStateMachineScheduler scheduler = new XyzStateMachineScheduler(4)) {
+            Executor executor = scheduler.executor(0);
+            CompletableFuture<Void> done = new CompletableFuture<>();
+
+            for (int i = 0; i < taskCount; i++) {
+                int task = i;
+
+                executor.execute(() -> {
+                    executed.add(task);
+
+                    if (task == taskCount - 1) {
+                        done.complete(null);
+                    }
+                });
+            }
+
+            done.get(30, TimeUnit.SECONDS);
+        }
+
+        for (int i = 0; i < taskCount; i++) {
+            assertEquals(i, (int) executed.get(i));
+        }
+    }
+
+    @Test
+    public void testWorkersSurviveTasksThrowingErrors() throws Exception {
+        CompletableFuture<Throwable> uncaught = new CompletableFuture<>();
+        CompletableFuture<Thread> next = new CompletableFuture<>();
+
+        try (XyzStateMachineScheduler scheduler = new XyzStateMachineScheduler(1, runnable -> {
+            Thread thread = new Thread(runnable);
+            thread.setDaemon(true);
+            thread.setUncaughtExceptionHandler((t, e) -> uncaught.complete(e));
+            return thread;
+        })) {
+            Executor executor = scheduler.executor(0);
+            Thread[] worker = new Thread[1];
+
+            executor.execute(() -> {
+                worker[0] = Thread.currentThread();
+                throw new AssertionError("task error");
+            });
+            executor.execute(() -> next.complete(Thread.currentThread()));
+
+            assertEquals("task error", uncaught.get(5, TimeUnit.SECONDS).getMessage());
+            assertEquals(worker[0], next.get(5, TimeUnit.SECONDS));
+        }
+    }
+
+    private static void checkOrder(XyzStateMachineScheduler scheduler) throws Exception {
+        int stateMachineCount = 1000;
+        int messageCount = 100;
+
+        List<XyzStateMachineMailbox> mailboxes = new ArrayList<>();
+        AtomicInteger outOfOrder = new AtomicInteger();
+
+        for (int i = 0; i < stateMachineCount; i++) {
+            XyzStateMachine stateMachine = new XyzStateMachine();
+            int[] expected = {0};
+
+            // not synchronized: the mailbox never runs two commands at once.
+            stateMachine.onData(XyzState.DEFAULT, (XyzDataEvent<Integer> ev) -> {
+                if (ev.getData() != expected[0]++) {
+                    outOfOrder.incrementAndGet();
+                }
+            });
+
+            mailboxes.add(scheduler.mailbox(i, stateMachine));
+        }
+
+        List<CompletableFuture<XyzState>> results = new ArrayList<>();
+
+        for (int message = 0; message < messageCount; message++) {
+            for (XyzStateMachineMailbox mailbox : mailboxes) {
+                results.add(mailbox.sendData(message));
+            }
+        }
+
+        CompletableFuture.allOf(results.toArray(new CompletableFuture[0])).get(30, TimeUnit.SECONDS);
+
+        assertEquals(0, outOfOrder.get());
+    }
+}
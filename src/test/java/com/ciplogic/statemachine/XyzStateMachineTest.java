@@ -1,16 +1,45 @@
 package com.ciplogic.statemachine;
 
+import com.ciplogic.statemachine.impl.XyzBulkResult;
 import com.ciplogic.statemachine.impl.XyzDataEvent;
+import com.ciplogic.statemachine.impl.XyzDataListenerRegistration;
+import com.ciplogic.statemachine.impl.XyzDiagnostics;
+import com.ciplogic.statemachine.impl.XyzMetrics;
+import com.ciplogic.statemachine.impl.XyzMetricsSnapshot;
+import com.ciplogic.statemachine.impl.XyzSendResult;
+import com.ciplogic.statemachine.impl.XyzSnapshotReader;
+import com.ciplogic.statemachine.impl.XyzSnapshotWriter;
 import com.ciplogic.statemachine.impl.XyzStateChangeEvent;
+import com.ciplogic.statemachine.impl.XyzStateException;
+import com.ciplogic.statemachine.impl.XyzStateListenerRegistration;
+import com.ciplogic.statemachine.impl.XyzTransitionOutcome;
 import org.junit.Test;
-import org.omg.CORBA.INITIALIZE;
 
-import javax.print.attribute.standard.RequestingUserName;
-import java.awt.*;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class XyzStateMachineTest {
     @Test
@@ -225,6 +254,249 @@ public class XyzStateMachineTest {
         assertEquals(XyzState.RUNNING, stateMachine.getState());
     }
 
+    @Test
+    public void testUnknownLinksAreNotFollowed() {
+        XyzStateMachine stateMachine = new XyzStateMachine(XyzState.RUNNING);
+
+        assertNull(stateMachine.transition("run"));
+        assertNull(stateMachine.transition("stop"));
+        assertNull(stateMachine.transition(XyzLink.run));
+        assertEquals(XyzState.RUNNING, stateMachine.getState());
+    }
+
+    @Test
+    public void testTransitionByLink() {
+        XyzStateMachine stateMachine = new XyzStateMachine();
+        Object[] receivedData = {null};
+
+        stateMachine.afterEnter(XyzState.RUNNING, (XyzStateChangeEvent ev) -> {
+            receivedData[0] = ev.getData();
+        });
+
+        assertEquals(XyzState.RUNNING, stateMachine.transition(XyzLink.run, "data"));
+        assertEquals("data", receivedData[0]);
+    }
+
+    @Test
+    public void testBulkChangeState() {
+        List<XyzStateMachine> stateMachines = new ArrayList<>();
+
+        for (int i = 0; i < 1000; i++) {
+            stateMachines.add(new XyzStateMachine(i % 2 == 0 ? XyzState.RUNNING : XyzState.STOPPED));
+        }
+
+        XyzBulkResult result = XyzStateMachine.changeStateAll(stateMachines, XyzState.STOPPED);
+
+        assertEquals(500, result.count(XyzTransitionOutcome.CHANGED));
+        assertEquals(500, result.count(XyzTransitionOutcome.NO_OP));
+        assertEquals(XyzTransitionOutcome.CHANGED, result.getOutcome(0));
+        assertEquals(XyzTransitionOutcome.NO_OP, result.getOutcome(1));
+
+        result = XyzStateMachine.transitionAll(stateMachines, XyzLink.run);
+
+        assertEquals(1000, result.count(XyzTransitionOutcome.REJECTED));
+    }
+
+    @Test
+    public void testBulkOutcomesUnderConcurrentTransitions() throws Exception {
+        XyzStateMachineDefinition definition = new XyzStateMachineDefinition();
+        AtomicInteger entered = new AtomicInteger();
+        definition.afterEnter(XyzState.RUNNING, (XyzStateChangeEvent ev) -> entered.incrementAndGet());
+
+        List<XyzStateMachine> stateMachines = new ArrayList<>();
+
+        for (int i = 0; i < 20_000; i++) {
+            XyzStateMachine stateMachine = definition.newStateMachine();
+            stateMachine.getState();
+            stateMachines.add(stateMachine);
+        }
+
+        // races the bulk transition, making RUNNING unreachable.
+        CompletableFuture<Void> stopping = CompletableFuture.runAsync(() -> {
+            for (XyzStateMachine stateMachine : stateMachines) {
+                stateMachine.changeState(XyzState.STOPPED);
+            }
+        });
+
+        XyzBulkResult result = XyzStateMachine.changeStateAll(stateMachines, XyzState.RUNNING);
+        stopping.get(30, TimeUnit.SECONDS);
+
+        assertEquals(entered.get(), result.count(XyzTransitionOutcome.CHANGED));
+        assertEquals(stateMachines.size() - entered.get(), result.count(XyzTransitionOutcome.REJECTED));
+    }
+
+    @Test
+    public void testStateIndexFollowsTheTransitions() {
+        XyzStateIndex index = new XyzStateIndex();
+        List<XyzStateMachine> stateMachines = new ArrayList<>();
+
+        for (int i = 0; i < 1000; i++) {
+            XyzStateMachine stateMachine = new XyzStateMachine();
+            stateMachine.setIndex(index);
+            stateMachines.add(stateMachine);
+        }
+
+        // not initialized yet.
+        assertEquals(0, index.count(XyzState.DEFAULT));
+
+        XyzStateMachine.changeStateAll(stateMachines, XyzState.RUNNING);
+        stateMachines.get(0).changeState(XyzState.STOPPED);
+
+        assertEquals(0, index.count(XyzState.DEFAULT));
+        assertEquals(999, index.count(XyzState.RUNNING));
+        assertEquals(1, index.count(XyzState.STOPPED));
+        assertEquals(Collections.singleton(stateMachines.get(0)), index.getStateMachines(XyzState.STOPPED));
+
+        stateMachines.get(1).setIndex(null);
+
+        assertEquals(998, index.count(XyzState.RUNNING));
+        assertFalse(index.getStateMachines(XyzState.RUNNING).contains(stateMachines.get(1)));
+    }
+
+    @Test
+    public void testStateIndexFollowsConcurrentLockFreeTransitions() throws Exception {
+        XyzStateIndex index = new XyzStateIndex();
+        List<XyzStateMachine> stateMachines = new ArrayList<>();
+
+        for (int i = 0; i < 100; i++) {
+            XyzStateMachine stateMachine = new XyzStateMachine();
+            stateMachine.setIndex(index);
+            stateMachines.add(stateMachine);
+        }
+
+        ExecutorService executorService = Executors.newFixedThreadPool(4);
+
+        for (int thread = 0; thread < 4; thread++) {
+            executorService.execute(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    for (XyzStateMachine stateMachine : stateMachines) {
+                        stateMachine.changeState(XyzState.RUNNING);
+                        stateMachine.changeState(XyzState.DEFAULT);
+                    }
+                }
+            });
+        }
+
+        executorService.shutdown();
+        assertTrue(executorService.awaitTermination(30, TimeUnit.SECONDS));
+
+        long total = 0;
+
+        for (XyzState state : XyzState.values()) {
+            total += index.count(state);
+
+            for (XyzStateMachine stateMachine : index.getStateMachines(state)) {
+                assertEquals(state, stateMachine.getState());
+            }
+        }
+
+        assertEquals(stateMachines.size(), total);
+    }
+
+    @Test
+    public void testWhenEntersCompletesOnTheTransition() throws Exception {
+        XyzStateMachine stateMachine = new XyzStateMachine();
+
+        CompletableFuture<XyzStateChangeEvent> running = stateMachine.whenEnters(XyzState.RUNNING);
+        CompletableFuture<XyzStateChangeEvent> stopped = stateMachine.whenEnters(XyzState.STOPPED);
+
+        assertTrue(stateMachine.whenEnters(XyzState.DEFAULT).isDone());
+        assertFalse(running.isDone());
+
+        stateMachine.changeState(XyzState.RUNNING, "data");
+
+        assertEquals(XyzState.DEFAULT, running.get().getPreviousState());
+        assertEquals("data", running.get().getData());
+        assertFalse(stopped.isDone());
+    }
+
+    @Test
+    public void testAwaitStateWakesUpWaitingThreads() throws Exception {
+        XyzStateMachine stateMachine = new XyzStateMachine();
+        ExecutorService executorService = Executors.newFixedThreadPool(8);
+        List<CompletableFuture<Boolean>> results = new ArrayList<>();
+
+        for (int i = 0; i < 8; i++) {
+            results.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return stateMachine.awaitState(XyzState.STOPPED, 5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            }, executorService));
+        }
+
+        stateMachine.changeState(XyzState.RUNNING);
+        stateMachine.changeState(XyzState.STOPPED);
+
+        for (CompletableFuture<Boolean> result : results) {
+            assertTrue(result.get(5, TimeUnit.SECONDS));
+        }
+
+        assertFalse(stateMachine.awaitState(XyzState.DEFAULT, 10, TimeUnit.MILLISECONDS));
+        assertEquals(0, stateMachine.getWaiterCount(XyzState.DEFAULT));
+        assertEquals(0, stateMachine.getWaiterCount(XyzState.STOPPED));
+
+        executorService.shutdown();
+    }
+
+    @Test(timeout = 10000)
+    public void testManyWaitersAreCompletedByOneTransition() {
+        XyzStateMachine stateMachine = new XyzStateMachine();
+        List<CompletableFuture<XyzStateChangeEvent>> futures = new ArrayList<>();
+
+        for (int i = 0; i < 100000; i++) {
+            futures.add(stateMachine.whenEnters(XyzState.RUNNING));
+        }
+
+        assertEquals(100000, stateMachine.getWaiterCount(XyzState.RUNNING));
+
+        stateMachine.changeState(XyzState.RUNNING);
+
+        for (CompletableFuture<XyzStateChangeEvent> future : futures) {
+            assertEquals(XyzState.DEFAULT, future.join().getPreviousState());
+        }
+
+        assertEquals(0, stateMachine.getWaiterCount(XyzState.RUNNING));
+    }
+
+    @Test
+    public void testCancelledWaitersAreDropped() {
+        XyzStateMachine stateMachine = new XyzStateMachine();
+
+        CompletableFuture<XyzStateChangeEvent> running = stateMachine.whenEnters(XyzState.RUNNING);
+        assertEquals(1, stateMachine.getWaiterCount(XyzState.RUNNING));
+
+        running.cancel(false);
+
+        assertEquals(0, stateMachine.getWaiterCount(XyzState.RUNNING));
+    }
+
+    @Test
+    public void testInterruptedAwaitStateDropsItsWaiter() throws Exception {
+        XyzStateMachine stateMachine = new XyzStateMachine();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        Thread waiter = new Thread(() -> {
+            try {
+                stateMachine.awaitState(XyzState.RUNNING, 5, TimeUnit.SECONDS);
+            } catch (Throwable e) {
+                failure.set(e);
+            }
+        });
+        waiter.start();
+
+        while (stateMachine.getWaiterCount(XyzState.RUNNING) == 0) {
+            Thread.yield();
+        }
+
+        waiter.interrupt();
+        waiter.join(5000);
+
+        assertTrue(failure.get() instanceof InterruptedException);
+        assertEquals(0, stateMachine.getWaiterCount(XyzState.RUNNING));
+    }
+
     @Test
     public void testResendingData() {
         XyzStateMachine stateMachine = new XyzStateMachine();
@@ -315,4 +587,824 @@ public class XyzStateMachineTest {
 
         assertEquals(21, currentCount[0]);
     }
+
+    @Test
+    public void testPrimitiveDataListeners() {
+        XyzStateMachine stateMachine = new XyzStateMachine(XyzState.RUNNING);
+        List<String> received = new ArrayList<>();
+
+        stateMachine.onLong(XyzState.RUNNING, (ev, data) -> {
+            received.add("long " + data);
+            return data > 100 ? XyzState.STOPPED : null;
+        });
+        stateMachine.onInt(XyzState.RUNNING, (ev, data) -> {
+            received.add("int " + data);
+            ev.consume();
+            return null;
+        });
+        stateMachine.onDouble(XyzState.RUNNING, (ev, data) -> {
+            received.add("double " + data);
+            return null;
+        });
+        stateMachine.onData(XyzState.RUNNING, (XyzDataEvent<Number> ev) -> {
+            received.add(ev.getData().getClass().getSimpleName() + " " + ev.getData());
+        });
+
+        stateMachine.sendLong(1L);
+        stateMachine.sendInt(2);         // consumed by the int listener
+        stateMachine.sendDouble(3.5);
+        stateMachine.sendData(4L);       // boxed data still reaches the long listener
+
+        assertEquals(Arrays.asList(
+                "long 1", "Long 1",
+                "int 2",
+                "double 3.5", "Double 3.5",
+                "long 4", "Long 4"), received);
+
+        assertEquals(XyzState.STOPPED, stateMachine.sendLong(101L));
+    }
+
+    @Test
+    public void testNarrowPrimitiveDataKeepsItsType() {
+        XyzStateMachine stateMachine = new XyzStateMachine(XyzState.RUNNING);
+        List<String> received = new ArrayList<>();
+
+        stateMachine.onData(XyzState.RUNNING, Character.class, (XyzDataEvent<Character> ev) -> {
+            received.add("char " + ev.getData());
+        });
+        stateMachine.onData(XyzState.RUNNING, Short.class, (XyzDataEvent<Short> ev) -> {
+            received.add("short " + ev.getData());
+        });
+        stateMachine.onData(XyzState.RUNNING, Byte.class, (XyzDataEvent<Byte> ev) -> {
+            received.add("byte " + ev.getData());
+        });
+        stateMachine.onData(XyzState.RUNNING, Float.class, (XyzDataEvent<Float> ev) -> {
+            received.add("float " + ev.getData());
+        });
+        stateMachine.onLong(XyzState.RUNNING, (ev, data) -> {
+            received.add("long " + data);
+            return null;
+        });
+        stateMachine.onInt(XyzState.RUNNING, (ev, data) -> {
+            received.add("int " + data);
+            return null;
+        });
+        stateMachine.onDouble(XyzState.RUNNING, (ev, data) -> {
+            received.add("double " + data);
+            return null;
+        });
+
+        stateMachine.sendData('c');
+        stateMachine.sendData((short) 1);
+        stateMachine.sendData((byte) 2);
+        stateMachine.sendData(3.5f);
+
+        assertEquals(Arrays.asList("char c", "short 1", "byte 2", "float 3.5"), received);
+    }
+
+    @Test
+    public void testPrimitiveDataSentFromAListener() {
+        XyzStateMachine stateMachine = new XyzStateMachine(XyzState.RUNNING);
+        List<Long> received = new ArrayList<>();
+
+        // the nested sendData can't reuse the event of the outer one.
+        stateMachine.onLong(XyzState.RUNNING, (ev, data) -> {
+            if (data > 0) {
+                stateMachine.sendLong(data - 1);
+            }
+
+            received.add(data);
+            return null;
+        });
+        stateMachine.onData(XyzState.RUNNING, (XyzDataEvent<Long> ev) -> {
+            received.add(ev.getData() * 10);
+        });
+
+        stateMachine.sendLong(2L);
+
+        assertEquals(Arrays.asList(0L, 0L, 1L, 10L, 2L, 20L), received);
+    }
+
+    @Test
+    public void testTransitionQueries() {
+        assertTrue(XyzStateMachine.canTransition(XyzState.DEFAULT, XyzState.RUNNING));
+        assertTrue(XyzStateMachine.canTransition(XyzState.RUNNING, XyzState.RUNNING));
+        assertFalse(XyzStateMachine.canTransition(XyzState.STOPPED, XyzState.RUNNING));
+
+        assertEquals(EnumSet.of(XyzState.DEFAULT, XyzState.RUNNING, XyzState.STOPPED),
+                XyzStateMachine.allowedTargets(XyzState.RUNNING));
+        assertEquals(EnumSet.of(XyzState.RUNNING, XyzState.STOPPED),
+                XyzStateMachine.allowedTargets(XyzState.DEFAULT));
+        assertTrue(XyzStateMachine.allowedTargets(XyzState.STOPPED).isEmpty());
+    }
+
+    @Test
+    public void testDetachingListeners() {
+        XyzStateMachine stateMachine = new XyzStateMachine();
+        final int[] currentCount = { 0 };
+
+        XyzStateListenerRegistration<XyzStateChangeEvent> enterRegistration =
+                stateMachine.afterEnter(XyzState.RUNNING, () -> currentCount[0]++);
+        XyzDataListenerRegistration<Object> dataRegistration =
+                stateMachine.onData(null, () -> currentCount[0] += 10);
+
+        stateMachine.changeState(XyzState.RUNNING);
+        stateMachine.sendData("data");
+        assertEquals(11, currentCount[0]);
+
+        enterRegistration.detach();
+        dataRegistration.detach();
+
+        stateMachine.changeState(XyzState.DEFAULT);
+        stateMachine.changeState(XyzState.RUNNING);
+        stateMachine.sendData("data");
+        assertEquals(11, currentCount[0]);
+    }
+
+    @Test
+    public void testTransitioningAfterACancelledEvent() {
+        XyzStateMachine stateMachine = new XyzStateMachine();
+
+        stateMachine.beforeEnter(XyzState.RUNNING, XyzStateChangeEvent::cancel);
+
+        assertEquals(XyzState.DEFAULT, stateMachine.changeState(XyzState.RUNNING));
+        assertEquals(XyzState.STOPPED, stateMachine.changeState(XyzState.STOPPED));
+    }
+
+    @Test
+    public void testConcurrentLockFreeAndLockedTransitions() throws Exception {
+        XyzStateMachine stateMachine = new XyzStateMachine();
+        AtomicInteger stoppedCount = new AtomicInteger();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        // DEFAULT <-> RUNNING has no listeners, entering STOPPED goes through the lock.
+        stateMachine.beforeEnter(XyzState.STOPPED, XyzStateChangeEvent::cancel);
+        stateMachine.afterEnter(XyzState.STOPPED, stoppedCount::incrementAndGet);
+
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 100_000; j++) {
+                    stateMachine.changeState(XyzState.RUNNING);
+                    stateMachine.changeState(XyzState.STOPPED);
+                    stateMachine.changeState(XyzState.DEFAULT);
+                }
+            });
+            threads[i].setUncaughtExceptionHandler((thread, e) -> failure.set(e));
+            threads[i].start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertNull(failure.get());
+        assertEquals(0, stoppedCount.get());
+        assertTrue(stateMachine.getState() != XyzState.STOPPED);
+    }
+
+    @Test
+    public void testListenerOrderIsKeptWhenDetaching() {
+        XyzStateMachine stateMachine = new XyzStateMachine();
+        StringBuilder calls = new StringBuilder();
+        List<XyzDataListenerRegistration<Object>> registrations = new ArrayList<>();
+
+        for (int i = 0; i < 10; i++) {
+            final int index = i;
+            registrations.add(stateMachine.onData(XyzState.DEFAULT, () -> calls.append(index)));
+        }
+
+        for (int i = 0; i < 10; i += 2) {
+            registrations.get(i).detach();
+        }
+        registrations.get(0).detach(); // detaching twice does nothing
+
+        stateMachine.onData(XyzState.DEFAULT, () -> calls.append("a"));
+
+        for (int i = 1; i < 9; i += 2) {
+            registrations.get(i).detach();
+        }
+
+        stateMachine.onData(XyzState.DEFAULT, () -> calls.append("b"));
+
+        stateMachine.sendData("data");
+        assertEquals("9ab", calls.toString());
+    }
+
+    @Test
+    public void testListenersDetachedAfterACompactionAreNotCalled() {
+        XyzStateMachine stateMachine = new XyzStateMachine();
+        StringBuilder calls = new StringBuilder();
+        List<XyzStateListenerRegistration<XyzStateChangeEvent>> registrations = new ArrayList<>();
+
+        // the first listener detaches the others while the transition
+        // notifies the listeners it got before any detach.
+        registrations.add(stateMachine.afterEnter(XyzState.RUNNING, () -> {
+            calls.append(0);
+
+            for (int i = 1; i <= 5; i++) { // compacts the listeners
+                registrations.get(i).detach();
+            }
+
+            registrations.get(6).detach();
+        }));
+
+        for (int i = 1; i < 8; i++) {
+            final int index = i;
+            registrations.add(stateMachine.afterEnter(XyzState.RUNNING, () -> calls.append(index)));
+        }
+
+        stateMachine.changeState(XyzState.RUNNING);
+        assertEquals("07", calls.toString());
+
+        stateMachine.changeState(XyzState.DEFAULT);
+        stateMachine.changeState(XyzState.RUNNING);
+        assertEquals("0707", calls.toString());
+    }
+
+    @Test
+    public void testAttachingAndDetachingListenersDoesNotLeak() {
+        XyzStateMachine stateMachine = new XyzStateMachine();
+        final int[] permanentCount = { 0 };
+        final int[] temporaryCount = { 0 };
+
+        stateMachine.afterEnter(XyzState.RUNNING, () -> permanentCount[0]++);
+
+        Runnable request = () -> {
+            XyzStateListenerRegistration<XyzStateChangeEvent> enterRegistration =
+                    stateMachine.afterEnter(XyzState.RUNNING, () -> temporaryCount[0]++);
+            XyzDataListenerRegistration<Object> dataRegistration =
+                    stateMachine.onData(null, () -> temporaryCount[0]++);
+
+            stateMachine.changeState(XyzState.RUNNING);
+            stateMachine.sendData("data");
+            stateMachine.changeState(XyzState.DEFAULT);
+
+            enterRegistration.detach();
+            dataRegistration.detach();
+        };
+
+        for (int i = 0; i < 100_000; i++) {
+            request.run();
+        }
+
+        long heapBefore = usedHeap();
+
+        for (int i = 0; i < 1_000_000; i++) {
+            request.run();
+        }
+
+        long heapAfter = usedHeap();
+
+        assertEquals(1_100_000, permanentCount[0]);
+        assertEquals(2_200_000, temporaryCount[0]);
+        assertTrue("Heap grew by " + (heapAfter - heapBefore) + " bytes",
+                heapAfter - heapBefore < 4 * 1024 * 1024);
+
+        stateMachine.changeState(XyzState.RUNNING);
+        stateMachine.sendData("data");
+        assertEquals(1_100_001, permanentCount[0]);
+        assertEquals(2_200_000, temporaryCount[0]);
+    }
+
+    @Test
+    public void testAfterListenersOnAnExecutor() {
+        XyzStateMachine stateMachine = new XyzStateMachine();
+        List<Runnable> tasks = new ArrayList<>();
+        StringBuilder events = new StringBuilder();
+
+        stateMachine.setAfterListenersExecutor(tasks::add);
+        stateMachine.afterEnter(null, (XyzStateChangeEvent ev) -> events.append(ev.getTargetState()).append(","));
+        stateMachine.afterLeave(XyzState.RUNNING, () -> events.append("leave,"));
+
+        assertEquals(XyzState.RUNNING, stateMachine.changeState(XyzState.RUNNING));
+        assertEquals(XyzState.STOPPED, stateMachine.changeState(XyzState.STOPPED));
+        assertEquals("", events.toString());
+
+        // the draining task was scheduled once, and it runs everything in order.
+        assertEquals(1, tasks.size());
+        tasks.get(0).run();
+
+        assertEquals("DEFAULT,RUNNING,leave,STOPPED,", events.toString());
+    }
+
+    @Test
+    public void testFailingAfterListenersOnAnExecutorAreReported() {
+        XyzStateMachine stateMachine = new XyzStateMachine();
+        List<Exception> errors = new ArrayList<>();
+
+        stateMachine.setDiagnostics(new XyzDiagnostics() {
+            @Override
+            public void invalidTransition(XyzState fromState, XyzState toState) {
+            }
+
+            @Override
+            public void listenerFailed(Exception error) {
+                errors.add(error);
+            }
+        });
+        stateMachine.setAfterListenersExecutor(Runnable::run);
+        stateMachine.afterEnter(XyzState.RUNNING, () -> {
+            throw new XyzStateException("listener error");
+        });
+
+        assertEquals(XyzState.RUNNING, stateMachine.changeState(XyzState.RUNNING));
+        assertEquals(1, errors.size());
+        assertEquals("listener error", errors.get(0).getMessage());
+    }
+
+    @Test
+    public void testAfterListenersOnAnExecutorRunAfterAnError() throws Exception {
+        XyzStateMachine stateMachine = new XyzStateMachine();
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        CompletableFuture<Error> thrown = new CompletableFuture<>();
+        CountDownLatch entered = new CountDownLatch(1);
+
+        stateMachine.setAfterListenersExecutor(task -> executorService.execute(() -> {
+            try {
+                task.run();
+            } catch (Error e) {
+                thrown.complete(e);
+            }
+        }));
+        stateMachine.afterEnter(XyzState.RUNNING, (XyzStateChangeEvent ev) -> {
+            if ("fail".equals(ev.getData())) {
+                throw new AssertionError("listener error");
+            }
+
+            entered.countDown();
+        });
+
+        stateMachine.changeState(XyzState.RUNNING, "fail");
+        assertEquals("listener error", thrown.get(5, TimeUnit.SECONDS).getMessage());
+
+        stateMachine.changeState(XyzState.DEFAULT);
+        stateMachine.changeState(XyzState.RUNNING, "ok");
+
+        assertTrue(entered.await(5, TimeUnit.SECONDS));
+
+        executorService.shutdown();
+    }
+
+    @Test
+    public void testAfterListenersOnAThreadPoolKeepTheOrder() throws Exception {
+        XyzStateMachine stateMachine = new XyzStateMachine();
+        ExecutorService executorService = Executors.newFixedThreadPool(4);
+        List<XyzState> enteredStates = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(1);
+
+        stateMachine.setAfterListenersExecutor(executorService);
+        stateMachine.afterEnter(null, (XyzStateChangeEvent ev) -> enteredStates.add(ev.getTargetState()));
+        stateMachine.afterEnter(XyzState.STOPPED, done::countDown);
+
+        for (int i = 0; i < 10_000; i++) {
+            stateMachine.changeState(XyzState.RUNNING);
+            stateMachine.changeState(XyzState.DEFAULT);
+        }
+        stateMachine.changeState(XyzState.STOPPED);
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        executorService.shutdown();
+
+        assertEquals(20_002, enteredStates.size());
+        for (int i = 1; i < 20_001; i += 2) {
+            assertEquals(XyzState.RUNNING, enteredStates.get(i));
+            assertEquals(XyzState.DEFAULT, enteredStates.get(i + 1));
+        }
+        assertEquals(XyzState.STOPPED, enteredStates.get(20_001));
+    }
+
+    @Test
+    public void testSendingDataInBatches() {
+        XyzStateMachine stateMachine = new XyzStateMachine();
+        StringBuilder data = new StringBuilder();
+
+        stateMachine.onData(XyzState.DEFAULT, (XyzDataEvent<Integer> ev) -> {
+            data.append("DEFAULT:").append(ev.getData()).append(",");
+
+            return ev.getData() == 2 ? XyzState.RUNNING : null;
+        });
+        stateMachine.onData(XyzState.RUNNING, (XyzDataEvent<Integer> ev) -> {
+            data.append("RUNNING:").append(ev.getData()).append(",");
+            ev.consume();
+        });
+        stateMachine.onData(XyzState.RUNNING, (XyzDataEvent<Integer> ev) -> {
+            data.append("not called,");
+        });
+
+        XyzSendResult result = stateMachine.sendAll(Arrays.asList(1, 2, 3, 4));
+
+        assertEquals(4, result.getCount());
+        assertEquals(1, result.getTransitions());
+        assertEquals(XyzState.RUNNING, result.getState());
+        assertEquals("DEFAULT:1,DEFAULT:2,RUNNING:3,RUNNING:4,", data.toString());
+
+        assertEquals(2, stateMachine.sendAll(Stream.of(5, 6)).getCount());
+        assertEquals(1, stateMachine.sendAll(new Integer[] { 7 }).getCount());
+        assertEquals("DEFAULT:1,DEFAULT:2,RUNNING:3,RUNNING:4,RUNNING:5,RUNNING:6,RUNNING:7,", data.toString());
+    }
+
+    @Test
+    public void testTypedDataListenersKeepTheRegistrationOrder() {
+        XyzStateMachine stateMachine = new XyzStateMachine(XyzState.RUNNING);
+        StringBuilder calls = new StringBuilder();
+
+        stateMachine.onData(XyzState.RUNNING, Number.class, () -> calls.append("number,"));
+        stateMachine.onData(XyzState.RUNNING, () -> calls.append("any,"));
+        stateMachine.onData(XyzState.RUNNING, String.class, () -> calls.append("string,"));
+        stateMachine.onData(XyzState.RUNNING, Integer.class, (XyzDataEvent<Integer> ev) -> {
+            calls.append("integer,");
+            ev.consume();
+        });
+        stateMachine.onData(XyzState.RUNNING, Object.class, () -> calls.append("object,"));
+
+        stateMachine.sendData(1);
+        assertEquals("number,any,integer,", calls.toString());
+
+        calls.setLength(0);
+        stateMachine.sendData("text");
+        assertEquals("any,string,object,", calls.toString());
+
+        calls.setLength(0);
+        stateMachine.sendData(2.0);
+        assertEquals("number,any,object,", calls.toString());
+
+        calls.setLength(0);
+        stateMachine.sendData(null);
+        assertEquals("any,", calls.toString());
+    }
+
+    @Test
+    public void testDiagnostics() {
+        List<String> problems = new ArrayList<>();
+        XyzDiagnostics diagnostics = new XyzDiagnostics() {
+            @Override
+            public void invalidTransition(XyzState fromState, XyzState toState) {
+                problems.add(fromState + " -> " + toState);
+            }
+
+            @Override
+            public void listenerFailed(Exception error) {
+                problems.add(error.getMessage());
+            }
+        };
+
+        XyzStateMachine stoppedStateMachine = new XyzStateMachine(XyzState.STOPPED);
+        stoppedStateMachine.setDiagnostics(diagnostics);
+        stoppedStateMachine.changeState(XyzState.RUNNING);
+
+        XyzStateMachine stateMachine = new XyzStateMachine();
+        stateMachine.setDiagnostics(diagnostics);
+        stateMachine.afterLeave(XyzState.DEFAULT, () -> {
+            throw new IllegalStateException("listener error");
+        });
+        stateMachine.changeState(XyzState.RUNNING);
+
+        assertEquals(Arrays.asList("STOPPED -> RUNNING", "listener error"), problems);
+        assertEquals(XyzState.RUNNING, stateMachine.getState());
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        XyzMetrics metrics = new XyzMetrics();
+        XyzStateMachine stateMachine = new XyzStateMachine();
+        stateMachine.setMetrics(metrics);
+
+        stateMachine.beforeEnter(XyzState.STOPPED, (XyzStateChangeEvent ev) -> {
+            if (ev.getPreviousState() == XyzState.DEFAULT) {
+                ev.cancel();
+            }
+        });
+        stateMachine.beforeLeave(XyzState.RUNNING, (XyzStateChangeEvent ev) -> {
+            if (ev.getTargetState() == XyzState.DEFAULT) {
+                stateMachine.changeState(XyzState.STOPPED);
+            }
+        });
+        stateMachine.onData(XyzState.RUNNING, () -> {});
+
+        stateMachine.changeState(XyzState.STOPPED); // initialized, then cancelled
+        stateMachine.changeState(XyzState.RUNNING);
+        stateMachine.sendData("data");
+        stateMachine.sendData("data");
+        try {
+            stateMachine.changeState(XyzState.DEFAULT); // nested changeState
+        } catch (XyzStateException e) {
+            // expected
+        }
+        stateMachine.changeState(XyzState.STOPPED);
+        stateMachine.changeState(XyzState.RUNNING); // rejected
+
+        XyzMetricsSnapshot snapshot = metrics.snapshot();
+        assertEquals(1, snapshot.getCommitted(null, XyzState.DEFAULT));
+        assertEquals(0, snapshot.getCommitted(XyzState.DEFAULT, XyzState.DEFAULT));
+        assertEquals(1, snapshot.getCommitted(XyzState.DEFAULT, XyzState.RUNNING));
+        assertEquals(1, snapshot.getCommitted(XyzState.RUNNING, XyzState.STOPPED));
+        assertEquals(3, snapshot.getCommitted());
+        assertEquals(Long.valueOf(1), metrics.getCommittedTransitionCounts().get("null->DEFAULT"));
+        assertFalse(metrics.getCommittedTransitionCounts().containsKey("DEFAULT->DEFAULT"));
+        assertEquals(1, snapshot.getCancelled(XyzState.DEFAULT, XyzState.STOPPED));
+        assertEquals(1, snapshot.getRejected(XyzState.STOPPED, XyzState.RUNNING));
+        assertEquals(1, snapshot.getReentrancyErrors());
+        assertEquals(2, snapshot.getData(XyzState.RUNNING));
+        assertEquals(2, snapshot.getDataListenerLatency().getCount());
+        assertEquals(4, snapshot.getStateListenerLatency().getCount());
+
+        ObjectName objectName = metrics.registerMBean("testMetrics");
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            assertEquals(3L, mBeanServer.getAttribute(objectName, "CommittedTransitions"));
+            assertEquals(1L, mBeanServer.getAttribute(objectName, "RejectedTransitions"));
+        } finally {
+            metrics.unregisterMBean("testMetrics");
+        }
+    }
+
+    @Test
+    public void testNoOpRejectedAndListenerFreeTransitionsDoNotAllocate() {
+        XyzStateMachine stateMachine = new XyzStateMachine(XyzState.DEFAULT);
+        XyzStateMachine stoppedStateMachine = new XyzStateMachine(XyzState.STOPPED);
+
+        // listeners on states that are not involved don't matter.
+        stateMachine.afterEnter(XyzState.STOPPED, () -> {});
+
+        Runnable transitions = () -> {
+            for (int i = 0; i < 100_000; i++) {
+                stateMachine.changeState(XyzState.DEFAULT);
+                stateMachine.changeState(XyzState.RUNNING);
+                stateMachine.changeState(XyzState.RUNNING);
+                stateMachine.changeState(XyzState.DEFAULT);
+                stoppedStateMachine.changeState(XyzState.RUNNING); // rejected
+            }
+        };
+
+        transitions.run(); // warm up
+
+        // less than a byte per iteration means the loop itself doesn't allocate. The
+        // default diagnostics might still format one rejection message per second.
+        assertTrue(allocatedBytes(transitions) < 100_000);
+    }
+
+    @Test
+    public void testStateMachinesShareTheDefinitionListeners() {
+        XyzStateMachineDefinition definition = new XyzStateMachineDefinition(XyzState.DEFAULT);
+        List<String> events = new ArrayList<>();
+
+        definition.beforeLeave(XyzState.DEFAULT, (XyzStateChangeEvent ev) -> events.add("definition leave"));
+        definition.afterEnter(XyzState.RUNNING, (XyzStateChangeEvent ev) -> events.add("definition enter"));
+        definition.onData(XyzState.RUNNING, (XyzDataEvent<String> ev) -> {
+            events.add("definition data " + ev.getData());
+            return XyzState.STOPPED;
+        });
+
+        XyzStateMachine first = definition.newStateMachine();
+        XyzStateMachine second = definition.newStateMachine();
+
+        assertTrue(definition.isFrozen());
+
+        // only for the first state machine, notified after the definition ones.
+        first.beforeLeave(XyzState.DEFAULT, (XyzStateChangeEvent ev) -> events.add("own leave"));
+        first.afterEnter(XyzState.RUNNING, (XyzStateChangeEvent ev) -> events.add("own enter"));
+        first.onData(XyzState.RUNNING, (XyzDataEvent<String> ev) -> {
+            events.add("own data " + ev.getData());
+        });
+
+        first.changeState(XyzState.RUNNING);
+        assertEquals(XyzState.STOPPED, first.sendData("x"));
+
+        assertEquals(Arrays.asList(
+                "definition leave",
+                "own leave",
+                "definition enter",
+                "own enter",
+                "definition data x",
+                "own data x"), events);
+
+        events.clear();
+
+        second.changeState(XyzState.RUNNING);
+        assertEquals(XyzState.STOPPED, second.sendData("y"));
+
+        assertEquals(Arrays.asList(
+                "definition leave",
+                "definition enter",
+                "definition data y"), events);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testFrozenDefinitionRejectsListeners() {
+        XyzStateMachineDefinition definition = new XyzStateMachineDefinition();
+        definition.newStateMachine();
+
+        definition.afterEnter(XyzState.RUNNING, (XyzStateChangeEvent ev) -> {});
+    }
+
+    @Test
+    public void testFrozenDefinitionKeepsItsListeners() {
+        XyzStateMachineDefinition definition = new XyzStateMachineDefinition();
+        AtomicInteger calls = new AtomicInteger();
+
+        XyzStateListenerRegistration<XyzStateChangeEvent> registration =
+                definition.afterEnter(XyzState.RUNNING, (XyzStateChangeEvent ev) -> calls.incrementAndGet());
+        XyzDataListenerRegistration<String> dataRegistration =
+                definition.onData(XyzState.DEFAULT, (XyzDataEvent<String> ev) -> {});
+
+        XyzStateMachine stateMachine = definition.newStateMachine();
+
+        try {
+            registration.detach();
+            fail("detached a listener of a frozen definition");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        try {
+            dataRegistration.detach();
+            fail("detached a data listener of a frozen definition");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        stateMachine.changeState(XyzState.RUNNING);
+
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void testListenersDetachedBeforeFreezing() {
+        XyzStateMachineDefinition definition = new XyzStateMachineDefinition();
+        AtomicInteger calls = new AtomicInteger();
+
+        definition.afterEnter(XyzState.RUNNING, (XyzStateChangeEvent ev) -> calls.incrementAndGet()).detach();
+        definition.newStateMachine().changeState(XyzState.RUNNING);
+
+        assertEquals(0, calls.get());
+    }
+
+    @Test
+    public void testSnapshots() throws Exception {
+        List<XyzStateMachine> stateMachines = new ArrayList<>();
+
+        for (int i = 0; i < 100_000; i++) {
+            XyzStateMachine stateMachine = new XyzStateMachine();
+            stateMachine.getState(); // initialized
+
+            if (i % 3 == 1) {
+                stateMachine.changeState(XyzState.RUNNING);
+            } else if (i % 3 == 2) {
+                stateMachine.changeState(XyzState.STOPPED);
+            }
+
+            stateMachines.add(stateMachine);
+        }
+
+        stateMachines.add(new XyzStateMachine()); // not initialized
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        assertEquals(100_001, XyzStateMachine.writeSnapshots(Channels.newChannel(output), stateMachines));
+
+        List<XyzStateMachine> restored = new ArrayList<>();
+        AtomicInteger enteredStates = new AtomicInteger();
+        XyzStateMachineDefinition definition = new XyzStateMachineDefinition(XyzState.STOPPED);
+        definition.afterEnter(null, (XyzStateChangeEvent ev) -> enteredStates.incrementAndGet());
+
+        int count = XyzStateMachine.readSnapshots(
+                Channels.newChannel(new ByteArrayInputStream(output.toByteArray())),
+                definition::newStateMachine,
+                restored::add);
+
+        assertEquals(100_001, count);
+        assertEquals(0, enteredStates.get()); // restoring doesn't notify listeners
+
+        for (int i = 0; i < 100_000; i++) {
+            assertEquals(stateMachines.get(i).getState(), restored.get(i).getState());
+        }
+
+        // the last one gets initialized with the initial state of its definition.
+        assertEquals(XyzState.STOPPED, restored.get(100_000).getState());
+    }
+
+    @Test
+    public void testSnapshotValues() throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        XyzSnapshotWriter writer = new XyzSnapshotWriter(Channels.newChannel(output));
+
+        char[] longText = new char[100_000];
+        Arrays.fill(longText, '\u0103');
+
+        List<Object> values = Arrays.asList(null, true, (byte) 1, (short) 2, 'c', 3, 4L, 5.0f, 6.0, "text", new String(longText));
+
+        for (Object value : values) {
+            writer.writeValue(value);
+        }
+
+        writer.flush();
+
+        XyzSnapshotReader reader = new XyzSnapshotReader(Channels.newChannel(new ByteArrayInputStream(output.toByteArray())));
+
+        for (Object value : values) {
+            assertEquals(value, reader.readValue());
+        }
+
+        assertFalse(reader.hasNext());
+    }
+
+    @Test(expected = XyzStateException.class)
+    public void testSnapshotsOfOtherStateMachinesAreRefused() throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        XyzStateMachine.writeSnapshots(Channels.newChannel(output), Collections.singletonList(new XyzStateMachine()));
+
+        byte[] data = output.toByteArray();
+        data[5] ^= 1; // schema id
+
+        new XyzSnapshotReader(Channels.newChannel(new ByteArrayInputStream(data)));
+    }
+
+    @Test
+    public void testMailboxQueuesTransitionsFromBeforeListeners() throws Exception {
+        XyzStateMachine stateMachine = new XyzStateMachine(XyzState.DEFAULT);
+        XyzStateMachineMailbox mailbox = new XyzStateMachineMailbox(stateMachine);
+        List<String> events = new ArrayList<>();
+
+        stateMachine.beforeEnter(XyzState.RUNNING, (XyzStateChangeEvent ev) -> {
+            events.add("before RUNNING");
+            stateMachine.changeState(XyzState.STOPPED); // queued, doesn't throw
+        });
+
+        stateMachine.afterEnter(null, (XyzStateChangeEvent ev) -> events.add("after " + ev.getTargetState()));
+
+        CompletableFuture<XyzState> result = mailbox.changeState(XyzState.RUNNING);
+
+        assertEquals(XyzState.RUNNING, result.get(1, TimeUnit.SECONDS));
+        assertEquals(XyzState.STOPPED, stateMachine.getState());
+        assertEquals(Arrays.asList("after DEFAULT", "before RUNNING", "after RUNNING", "after STOPPED"), events);
+    }
+
+    @Test
+    public void testMailboxRunsTheCommandsInOrder() throws Exception {
+        ExecutorService executorService = Executors.newFixedThreadPool(4);
+        XyzStateMachine stateMachine = new XyzStateMachine(XyzState.DEFAULT);
+        XyzStateMachineMailbox mailbox = new XyzStateMachineMailbox(stateMachine, executorService);
+
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger overlaps = new AtomicInteger();
+        List<Integer> received = Collections.synchronizedList(new ArrayList<>());
+
+        stateMachine.onData(XyzState.DEFAULT, (XyzDataEvent<Integer> ev) -> {
+            if (running.incrementAndGet() != 1) {
+                overlaps.incrementAndGet();
+            }
+
+            received.add(ev.getData());
+            running.decrementAndGet();
+        });
+
+        List<CompletableFuture<XyzState>> results = new ArrayList<>();
+
+        for (int i = 0; i < 10_000; i++) {
+            results.add(mailbox.sendData(i));
+        }
+
+        CompletableFuture.allOf(results.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+        executorService.shutdown();
+
+        assertEquals(0, overlaps.get());
+        assertEquals(10_000, received.size());
+
+        for (int i = 0; i < 10_000; i++) {
+            assertEquals(Integer.valueOf(i), received.get(i));
+        }
+    }
+
+    @Test(expected = XyzStateException.class)
+    public void testChangingTheStateInBeforeListenersOutsideTheMailboxStillFails() {
+        XyzStateMachine stateMachine = new XyzStateMachine(XyzState.DEFAULT);
+        new XyzStateMachineMailbox(stateMachine);
+
+        stateMachine.beforeEnter(XyzState.RUNNING, (XyzStateChangeEvent ev) -> {
+            stateMachine.changeState(XyzState.STOPPED);
+        });
+
+        stateMachine.changeState(XyzState.RUNNING);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static long allocatedBytes(Runnable runnable) {
+        com.sun.management.ThreadMXBean threadMXBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        long start = threadMXBean.getThreadAllocatedBytes(threadId);
+        runnable.run();
+
+        return threadMXBean.getThreadAllocatedBytes(threadId) - start;
+    }
 }
@@ -0,0 +1,202 @@
+package com.ciplogic.statemachine;
+
+import com.ciplogic.statemachine.impl.XyzDiagnostics;
+import com.ciplogic.statemachine.impl.XyzStateException;
+import com.ciplogic.statemachine.impl.XyzTimeout;
+import com.ciplogic.statemachine.impl.XyzTimingWheel;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class XyzStateTimeoutsTest {
+    private static final long TICK = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private long now;
+
+    @Test
+    public void testTimeoutMovesTheStateMachineAfterTheDelay() {
+        XyzStateTimeouts timeouts = new XyzStateTimeouts(TICK, () -> now, false);
+        XyzStateMachine stateMachine = new XyzStateMachine();
+
+        timeouts.timeout(stateMachine, XyzState.RUNNING, 30, TimeUnit.SECONDS, XyzState.STOPPED);
+        stateMachine.changeState(XyzState.RUNNING);
+
+        assertEquals(1, timeouts.size());
+
+        advance(timeouts, 29, TimeUnit.SECONDS);
+        assertEquals(XyzState.RUNNING, stateMachine.getState());
+
+        advance(timeouts, 1, TimeUnit.SECONDS);
+        assertEquals(XyzState.STOPPED, stateMachine.getState());
+        assertEquals(0, timeouts.size());
+    }
+
+    @Test
+    public void testLeavingTheStateCancelsTheTimeout() {
+        XyzStateTimeouts timeouts = new XyzStateTimeouts(TICK, () -> now, false);
+        XyzStateMachine stateMachine = new XyzStateMachine();
+
+        timeouts.timeout(stateMachine, XyzState.RUNNING, 1, TimeUnit.SECONDS, XyzState.STOPPED);
+        stateMachine.changeState(XyzState.RUNNING);
+        stateMachine.changeState(XyzState.DEFAULT);
+
+        assertEquals(0, timeouts.size());
+
+        advance(timeouts, 2, TimeUnit.SECONDS);
+        assertEquals(XyzState.DEFAULT, stateMachine.getState());
+    }
+
+    @Test
+    public void testTimeoutFromStateIsOnlyArmedForThatTransition() {
+        XyzStateTimeouts timeouts = new XyzStateTimeouts(TICK, () -> now, false);
+        XyzStateMachine direct = new XyzStateMachine();
+        XyzStateMachine running = new XyzStateMachine();
+
+        // STOPPED can not be left, so the expired timeout just finds the state unchanged.
+        timeouts.timeout(direct, XyzState.RUNNING, XyzState.STOPPED, 1, TimeUnit.SECONDS, XyzState.DEFAULT);
+        timeouts.timeout(running, XyzState.RUNNING, XyzState.STOPPED, 1, TimeUnit.SECONDS, XyzState.DEFAULT);
+
+        direct.changeState(XyzState.STOPPED);
+
+        assertEquals(0, timeouts.size());
+
+        running.changeState(XyzState.RUNNING);
+        running.changeState(XyzState.STOPPED);
+
+        assertEquals(1, timeouts.size());
+        assertEquals(1, advance(timeouts, 1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testFailingTimeoutsAreReported() {
+        XyzStateTimeouts timeouts = new XyzStateTimeouts(TICK, () -> now, false);
+        XyzStateMachine failing = new XyzStateMachine();
+        XyzStateMachine other = new XyzStateMachine();
+        List<Exception> errors = new ArrayList<>();
+
+        timeouts.setDiagnostics(new XyzDiagnostics() {
+            @Override
+            public void invalidTransition(XyzState fromState, XyzState toState) {
+            }
+
+            @Override
+            public void listenerFailed(Exception error) {
+                errors.add(error);
+            }
+        });
+
+        failing.beforeEnter(XyzState.STOPPED, () -> {
+            throw new XyzStateException("listener error");
+        });
+
+        timeouts.timeout(failing, XyzState.RUNNING, 1, TimeUnit.SECONDS, XyzState.STOPPED);
+        timeouts.timeout(other, XyzState.RUNNING, 1, TimeUnit.SECONDS, XyzState.STOPPED);
+        failing.changeState(XyzState.RUNNING);
+        other.changeState(XyzState.RUNNING);
+
+        advance(timeouts, 1, TimeUnit.SECONDS);
+
+        assertEquals(1, errors.size());
+        assertEquals("listener error", errors.get(0).getMessage());
+        assertEquals(XyzState.RUNNING, failing.getState());
+        assertEquals(XyzState.STOPPED, other.getState());
+    }
+
+    @Test
+    public void testDetachingTheTimeoutCancelsIt() {
+        XyzStateTimeouts timeouts = new XyzStateTimeouts(TICK, () -> now, false);
+        XyzStateMachine stateMachine = new XyzStateMachine();
+
+        timeouts.timeout(stateMachine, XyzState.RUNNING, 1, TimeUnit.SECONDS, XyzState.STOPPED)
+                .detach();
+        stateMachine.changeState(XyzState.RUNNING);
+
+        advance(timeouts, 2, TimeUnit.SECONDS);
+        assertEquals(XyzState.RUNNING, stateMachine.getState());
+    }
+
+    @Test
+    public void testFleetTimeoutsExpireInTheSameTick() {
+        XyzStateTimeouts timeouts = new XyzStateTimeouts(TICK, () -> now, false);
+        XyzStateMachineFleet fleet = new XyzStateMachineFleet(100);
+
+        timeouts.timeout(fleet, XyzState.RUNNING, 5, TimeUnit.SECONDS, XyzState.STOPPED);
+
+        for (int id = 0; id < fleet.size(); id++) {
+            fleet.changeState(id, XyzState.RUNNING);
+        }
+
+        fleet.changeState(7, XyzState.DEFAULT);
+
+        assertEquals(99, advance(timeouts, 5, TimeUnit.SECONDS));
+
+        for (int id = 0; id < fleet.size(); id++) {
+            assertEquals(id == 7 ? XyzState.DEFAULT : XyzState.STOPPED, fleet.getState(id));
+        }
+    }
+
+    @Test
+    public void testTimeoutsRunOnTheDriverThread() throws Exception {
+        try (XyzStateTimeouts timeouts = new XyzStateTimeouts(1, TimeUnit.MILLISECONDS)) {
+            XyzStateMachine stateMachine = new XyzStateMachine();
+
+            timeouts.timeout(stateMachine, XyzState.RUNNING, 20, TimeUnit.MILLISECONDS, XyzState.STOPPED);
+            stateMachine.changeState(XyzState.RUNNING);
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+
+            while (stateMachine.getState() != XyzState.STOPPED && System.nanoTime() < deadline) {
+                Thread.sleep(5);
+            }
+
+            assertEquals(XyzState.STOPPED, stateMachine.getState());
+        }
+    }
+
+    @Test
+    public void testTimingWheelCascadesFarTimers() {
+        XyzTimingWheel wheel = new XyzTimingWheel();
+        List<Long> fired = new ArrayList<>();
+        long[] delays = {1, 255, 256, 257, 65535, 65536, 70000, 16777216, 20000000};
+
+        for (long delay : delays) {
+            wheel.schedule(delay, () -> {});
+        }
+
+        XyzTimeout cancelled = wheel.schedule(300, () -> {});
+        assertTrue(cancelled.cancel());
+        assertFalse(cancelled.cancel());
+
+        List<XyzTimeout> expired = new ArrayList<>();
+
+        for (long tick = 0; tick <= 20000000; tick += 1000) {
+            expired.clear();
+            wheel.advance(tick, expired);
+
+            for (XyzTimeout timeout : expired) {
+                // the deadlines are exact, whatever the step of the advance is.
+                fired.add(timeout.getDeadline());
+            }
+        }
+
+        List<Long> expected = new ArrayList<>();
+
+        for (long delay : delays) {
+            expected.add(delay);
+        }
+
+        assertEquals(expected, fired);
+        assertEquals(0, wheel.size());
+    }
+
+    private int advance(XyzStateTimeouts timeouts, long duration, TimeUnit unit) {
+        now += unit.toNanos(duration);
+        return timeouts.expireTimeouts();
+    }
+}